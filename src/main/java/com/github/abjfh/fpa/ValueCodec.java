@@ -0,0 +1,48 @@
+package com.github.abjfh.fpa;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 值的二进制编解码器，用于将查询结果写入文件或从映射内存中读取
+ *
+ * @param <V> 值类型
+ */
+public interface ValueCodec<V> {
+
+    /** UTF-8 字符串编解码器 */
+    ValueCodec<String> UTF8 =
+            new ValueCodec<String>() {
+                @Override
+                public byte[] encode(String value) {
+                    return value.getBytes(StandardCharsets.UTF_8);
+                }
+
+                @Override
+                public String decode(ByteBuffer buffer, int offset, int length) {
+                    byte[] bytes = new byte[length];
+                    for (int i = 0; i < length; i++) {
+                        bytes[i] = buffer.get(offset + i);
+                    }
+                    return new String(bytes, StandardCharsets.UTF_8);
+                }
+            };
+
+    /**
+     * 编码值
+     *
+     * @param value 非 null 的值
+     * @return 编码后的字节
+     */
+    byte[] encode(V value);
+
+    /**
+     * 从缓冲区的指定位置解码值，不得修改缓冲区的 position
+     *
+     * @param buffer 缓冲区
+     * @param offset 起始位置（绝对位置）
+     * @param length 字节数
+     * @return 解码后的值
+     */
+    V decode(ByteBuffer buffer, int offset, int length);
+}
@@ -4,6 +4,7 @@ import com.github.abjfh.fpa.IpSearcher;
 
 import java.util.*;
 import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
 
 public class BitTrie<V> implements IpSearcher<V> {
     TrieNode<V> root;
@@ -43,13 +44,22 @@ public class BitTrie<V> implements IpSearcher<V> {
      * @param value 要存储的值
      */
     public void put(byte[] prefixKey, int prefixLength, V value) {
-        if (prefixKey == null) {
-            throw new IllegalArgumentException("prefixKey cannot be null");
-        }
-        if (prefixLength < 0 || prefixLength > prefixKey.length * 8) {
-            throw new IllegalArgumentException(
-                    "prefixLength must be between 0 and " + (prefixKey.length * 8));
-        }
+        put(prefixKey, prefixLength, value, true);
+    }
+
+    /**
+     * 将前缀键精确插入到Trie中：即使祖先节点已存储相同的值也保留该前缀，之后可通过 {@link #remove(byte[], int)} 删除
+     *
+     * @param prefixKey 字节数组表示的键
+     * @param prefixLength 前缀长度（位数）
+     * @param value 要存储的值
+     */
+    public void putExact(byte[] prefixKey, int prefixLength, V value) {
+        put(prefixKey, prefixLength, value, false);
+    }
+
+    private void put(byte[] prefixKey, int prefixLength, V value, boolean skipCovered) {
+        checkPrefix(prefixKey, prefixLength);
         if (value == null) {
             throw new IllegalArgumentException("value cannot be null");
         }
@@ -59,7 +69,7 @@ public class BitTrie<V> implements IpSearcher<V> {
         // 遍历前缀的每一位
         for (int i = 0; i < prefixLength; i++) {
             // 父节点已经存储时，不需要创建对应字节点
-            if (node.isLeaf && Objects.equals(node.value, value)) {
+            if (skipCovered && node.isLeaf && Objects.equals(node.value, value)) {
                 return;
             }
 
@@ -93,6 +103,64 @@ public class BitTrie<V> implements IpSearcher<V> {
         node.isLeaf = true;
     }
 
+    /**
+     * 删除与给定前缀精确匹配的值，并裁剪不再需要的节点
+     *
+     * <p>通过 {@link #put(byte[], int, V)} 插入时被祖先覆盖而跳过的前缀无法单独删除，需要删除时应使用 {@link
+     * #putExact(byte[], int, V)}
+     *
+     * @param prefixKey 字节数组表示的键
+     * @param prefixLength 前缀长度（位数）
+     * @return 被删除的值，前缀不存在时返回null
+     */
+    public V remove(byte[] prefixKey, int prefixLength) {
+        checkPrefix(prefixKey, prefixLength);
+
+        List<TrieNode<V>> path = new ArrayList<>(prefixLength + 1);
+        TrieNode<V> node = root;
+        path.add(node);
+        for (int i = 0; i < prefixLength; i++) {
+            boolean isRight = ((prefixKey[i / 8] >> (7 - (i % 8))) & 1) == 1;
+            node = isRight ? node.rightChild : node.leftChild;
+            if (node == null) {
+                return null;
+            }
+            path.add(node);
+        }
+        if (!node.isLeaf) {
+            return null;
+        }
+
+        V removed = node.value;
+        node.value = null;
+        node.isLeaf = false;
+
+        // 自底向上删除既无值也无子节点的节点
+        for (int i = prefixLength; i > 0; i--) {
+            TrieNode<V> current = path.get(i);
+            if (current.isLeaf || current.hasChild()) {
+                break;
+            }
+            TrieNode<V> parent = path.get(i - 1);
+            if (parent.leftChild == current) {
+                parent.leftChild = null;
+            } else {
+                parent.rightChild = null;
+            }
+        }
+        return removed;
+    }
+
+    private static void checkPrefix(byte[] prefixKey, int prefixLength) {
+        if (prefixKey == null) {
+            throw new IllegalArgumentException("prefixKey cannot be null");
+        }
+        if (prefixLength < 0 || prefixLength > prefixKey.length * 8) {
+            throw new IllegalArgumentException(
+                    "prefixLength must be between 0 and " + (prefixKey.length * 8));
+        }
+    }
+
     /**
      * 查找与给定键匹配的最长前缀对应的值
      *
@@ -184,6 +252,56 @@ public class BitTrie<V> implements IpSearcher<V> {
         }
     }
 
+    public MemoryStats memoryStats() {
+        return memoryStats(null);
+    }
+
+    /**
+     * 按深度每 8 位一层统计节点的内存，条目数为其中的叶子节点数；root 层包含 BitTrie 对象本身
+     *
+     * @param valueBytes 值对象大小的估算函数，为 null 时只统计值对象个数
+     * @return 内存统计
+     */
+    public MemoryStats memoryStats(ToLongFunction<? super V> valueBytes) {
+        int ref = MemoryStats.referenceSize();
+        // value、isLeaf、leftChild、rightChild
+        long nodeBytes = MemoryStats.objectBytes(ref * 3 + 1);
+        MemoryStats stats = new MemoryStats("BitTrie");
+        List<V> values = new ArrayList<>();
+        List<TrieNode<V>> level = Collections.singletonList(root);
+        int depth = 0;
+        while (!level.isEmpty()) {
+            long nodes = 0;
+            long leaves = 0;
+            // 根节点单独一层
+            int bandEnd = depth == 0 ? 0 : depth + 7;
+            for (; depth <= bandEnd && !level.isEmpty(); depth++) {
+                List<TrieNode<V>> next = new ArrayList<>();
+                for (TrieNode<V> node : level) {
+                    nodes++;
+                    if (node.isLeaf) {
+                        leaves++;
+                        values.add(node.value);
+                    }
+                    if (node.leftChild != null) {
+                        next.add(node.leftChild);
+                    }
+                    if (node.rightChild != null) {
+                        next.add(node.rightChild);
+                    }
+                }
+                level = next;
+            }
+            if (bandEnd == 0) {
+                stats.add("root", nodes, leaves, nodeBytes + MemoryStats.objectBytes(ref));
+            } else {
+                stats.add(
+                        "depth " + (bandEnd - 7) + "-" + bandEnd, nodes, leaves, nodes * nodeBytes);
+            }
+        }
+        return stats.addValues("value objects", values, valueBytes);
+    }
+
     @SuppressWarnings("unchecked")
     public void preorderTraversalIterative(BiConsumer<List<Boolean>, V> consumer) {
 
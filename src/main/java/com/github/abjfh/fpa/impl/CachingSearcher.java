@@ -0,0 +1,316 @@
+package com.github.abjfh.fpa.impl;
+
+import com.github.abjfh.fpa.IpSearcher;
+
+import java.util.Arrays;
+
+/**
+ * 带线程本地结果缓存的查询器，适用于少量前缀占大部分查询的流量
+ *
+ * <p>每个线程持有 IPv4、IPv6 各一张直接映射的缓存表，每张 capacity 项，首次查询对应地址族时分配，
+ * 随线程结束回收，内存上限为 capacity × 活跃线程数；各线程的统计计数在线程结束后并入总数，同样不随线程累积。
+ *
+ * <p>被包装的是 FPATree、{@link MutableFPATree}，或当前版本为 FPATree 的 {@link ReloadableSearcher} 时，
+ * 缓存以地址所在的前缀块为键：
+ * 查询在前缀块长度之内到达叶子时整个块的结果相同，一项即可服务整个块；到达叶子更深的查询不缓存。
+ * 其他查询器无法得知结果的覆盖范围，以完整地址为键。
+ *
+ * <p>被包装的是 ReloadableSearcher 或 MutableFPATree 时每次查询先读取其版本号，版本变化后各线程在下一次查询时
+ * 清空自己的缓存，不会返回已被替换的版本的结果；其他可变的查询器在修改后调用 {@link #invalidate()}。
+ *
+ * @param <V> 值类型
+ */
+public class CachingSearcher<V> implements IpSearcher<V> {
+    // 缓存表中 null 表示空槽位，未命中的结果以该对象代替
+    private static final Object NULL_VALUE = new Object();
+
+    // ========== 计数数组布局，见 ThreadCounters ==========
+
+    private static final int HITS = ThreadCounters.BASE;
+    private static final int MISSES = HITS + 1;
+    private static final int UNCACHEABLE = HITS + 2;
+    private static final int INVALIDATIONS = HITS + 3;
+
+    /** 单个线程的缓存表 */
+    private static final class Cache {
+        final long[] counts;
+        long version = -1;
+        int[] keys4;
+        Object[] values4;
+        long[] his6;
+        long[] los6;
+        Object[] values6;
+
+        Cache(long[] counts) {
+            this.counts = counts;
+        }
+    }
+
+    private final IpSearcher<V> delegate;
+    private final ReloadableSearcher<V> reloadable;
+    private final MutableFPATree<V> mutable;
+    private final int capacity;
+    private final int ipv4BlockBits;
+    private final int ipv6BlockBits;
+    private final int ipv4Mask;
+    private final long ipv6MaskHi;
+    private final long ipv6MaskLo;
+    private volatile long epoch;
+
+    // 计数与缓存表分开登记，线程结束后缓存表随线程回收，计数并入总数
+    private final ThreadCounters counters = new ThreadCounters(INVALIDATIONS + 1 - HITS);
+    private final ThreadLocal<Cache> localCache =
+            ThreadLocal.withInitial(() -> new Cache(counters.local()));
+
+    /**
+     * 每个线程每个地址族缓存 4096 项，IPv4 以 /24、IPv6 以 /48 为块
+     *
+     * @param delegate 被包装的查询器
+     */
+    public CachingSearcher(IpSearcher<V> delegate) {
+        this(delegate, 4096, 24, 48);
+    }
+
+    /**
+     * @param delegate 被包装的查询器
+     * @param capacity 每个线程每个地址族的缓存项数，须为 2 的幂
+     * @param ipv4BlockBits IPv4 前缀块长度，1 到 32
+     * @param ipv6BlockBits IPv6 前缀块长度，1 到 128
+     */
+    @SuppressWarnings("unchecked")
+    public CachingSearcher(
+            IpSearcher<V> delegate, int capacity, int ipv4BlockBits, int ipv6BlockBits) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate cannot be null");
+        }
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+        if (ipv4BlockBits < 1 || ipv4BlockBits > 32) {
+            throw new IllegalArgumentException("ipv4BlockBits must be between 1 and 32");
+        }
+        if (ipv6BlockBits < 1 || ipv6BlockBits > 128) {
+            throw new IllegalArgumentException("ipv6BlockBits must be between 1 and 128");
+        }
+        this.delegate = delegate;
+        this.reloadable =
+                delegate instanceof ReloadableSearcher ? (ReloadableSearcher<V>) delegate : null;
+        this.mutable = delegate instanceof MutableFPATree ? (MutableFPATree<V>) delegate : null;
+        this.capacity = capacity;
+        this.ipv4BlockBits = ipv4BlockBits;
+        this.ipv6BlockBits = ipv6BlockBits;
+        this.ipv4Mask = -1 << (32 - ipv4BlockBits);
+        this.ipv6MaskHi = ipv6BlockBits >= 64 ? -1L : -1L << (64 - ipv6BlockBits);
+        this.ipv6MaskLo = ipv6BlockBits <= 64 ? 0 : -1L << (128 - ipv6BlockBits);
+    }
+
+    @Override
+    public V search(byte[] ipBytes) throws Exception {
+        if (ipBytes.length == 4) {
+            return search(toInt(ipBytes, 0), ipBytes);
+        }
+        if (ipBytes.length != 16) {
+            throw new IllegalArgumentException(
+                    "ipBytes must be 4 or 16 bytes long, got " + ipBytes.length);
+        }
+        long hi = (long) toInt(ipBytes, 0) << 32 | toInt(ipBytes, 4) & 0xFFFFFFFFL;
+        long lo = (long) toInt(ipBytes, 8) << 32 | toInt(ipBytes, 12) & 0xFFFFFFFFL;
+        return search(hi, lo, ipBytes);
+    }
+
+    /**
+     * @param ipv4 大端序 IPv4 地址
+     * @return 查找到的值，未找到返回 null
+     */
+    public V search(int ipv4) throws Exception {
+        return search(ipv4, null);
+    }
+
+    /**
+     * @param hi IPv6 地址高 64 位（大端序）
+     * @param lo IPv6 地址低 64 位（大端序）
+     * @return 查找到的值，未找到返回 null
+     */
+    public V search(long hi, long lo) throws Exception {
+        return search(hi, lo, null);
+    }
+
+    /** ipBytes 为调用方传入的原始地址，以完整地址查询被包装的查询器时直接使用，为 null 时按需构造 */
+    @SuppressWarnings("unchecked")
+    private V search(int ipv4, byte[] ipBytes) throws Exception {
+        Cache cache = localCache.get();
+        IpSearcher<V> searcher = current(cache);
+        boolean blocks = searcher instanceof FPATree;
+        int key = blocks ? ipv4 & ipv4Mask : ipv4;
+        if (cache.keys4 == null) {
+            cache.keys4 = new int[capacity];
+            cache.values4 = new Object[capacity];
+        }
+        int h = key * 0x9E3779B9;
+        int slot = (h ^ h >>> 16) & (capacity - 1);
+        Object cached = cache.values4[slot];
+        if (cached != null && cache.keys4[slot] == key) {
+            cache.counts[HITS]++;
+            return cached == NULL_VALUE ? null : (V) cached;
+        }
+
+        cache.counts[MISSES]++;
+        V value;
+        if (blocks) {
+            FPATree<V> tree = (FPATree<V>) searcher;
+            long indexAndDepth = tree.lookupIndexAndDepth(ipv4);
+            value = tree.getValue((int) indexAndDepth);
+            if ((indexAndDepth >>> 32) << 3 > ipv4BlockBits) {
+                cache.counts[UNCACHEABLE]++;
+                return value;
+            }
+        } else {
+            value = searcher.search(ipBytes != null ? ipBytes : toBytes(ipv4));
+        }
+        cache.keys4[slot] = key;
+        cache.values4[slot] = value == null ? NULL_VALUE : value;
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V search(long hi, long lo, byte[] ipBytes) throws Exception {
+        Cache cache = localCache.get();
+        IpSearcher<V> searcher = current(cache);
+        boolean blocks = searcher instanceof FPATree;
+        long keyHi = blocks ? hi & ipv6MaskHi : hi;
+        long keyLo = blocks ? lo & ipv6MaskLo : lo;
+        if (cache.his6 == null) {
+            cache.his6 = new long[capacity];
+            cache.los6 = new long[capacity];
+            cache.values6 = new Object[capacity];
+        }
+        long h = (keyHi ^ keyLo * 0x9E3779B97F4A7C15L) * 0x9E3779B97F4A7C15L;
+        int slot = (int) (h ^ h >>> 32) & (capacity - 1);
+        Object cached = cache.values6[slot];
+        if (cached != null && cache.his6[slot] == keyHi && cache.los6[slot] == keyLo) {
+            cache.counts[HITS]++;
+            return cached == NULL_VALUE ? null : (V) cached;
+        }
+
+        cache.counts[MISSES]++;
+        V value;
+        if (blocks) {
+            FPATree<V> tree = (FPATree<V>) searcher;
+            long indexAndDepth = tree.lookupIndexAndDepth(hi, lo);
+            value = tree.getValue((int) indexAndDepth);
+            if ((indexAndDepth >>> 32) << 3 > ipv6BlockBits) {
+                cache.counts[UNCACHEABLE]++;
+                return value;
+            }
+        } else {
+            value = searcher.search(ipBytes != null ? ipBytes : toBytes(hi, lo));
+        }
+        cache.his6[slot] = keyHi;
+        cache.los6[slot] = keyLo;
+        cache.values6[slot] = value == null ? NULL_VALUE : value;
+        return value;
+    }
+
+    /**
+     * 取得本次查询使用的查询器，版本变化时清空当前线程的缓存
+     *
+     * <p>先读版本号再取当前版本：两次读取之间发生替换时，新版本的结果以旧版本号缓存，下一次查询即被清空；
+     * 反之则可能以新版本号缓存旧版本的结果。ReloadableSearcher 的版本号随版本一同发布，MutableFPATree
+     * 先发布新版本再增加版本号，读到新版本号时必然能取到对应的版本
+     */
+    private IpSearcher<V> current(Cache cache) {
+        // 被包装查询器的版本号与 epoch 都只增不减，两者之和变化即表示需要失效
+        long version = epoch;
+        if (reloadable != null) {
+            version += reloadable.version();
+        } else if (mutable != null) {
+            version += mutable.version();
+        }
+        if (version != cache.version) {
+            if (cache.version != -1) {
+                cache.counts[INVALIDATIONS]++;
+            }
+            cache.version = version;
+            if (cache.values4 != null) {
+                Arrays.fill(cache.values4, null);
+            }
+            if (cache.values6 != null) {
+                Arrays.fill(cache.values6, null);
+            }
+        }
+        if (reloadable != null) {
+            return reloadable.current();
+        }
+        // 取出当前发布的 FPATree，以便按前缀块缓存
+        return mutable != null ? mutable.snapshot() : delegate;
+    }
+
+    /** 使所有线程的缓存失效，各线程在下一次查询时清空；用于被包装的查询器在原地修改之后 */
+    public void invalidate() {
+        epoch++;
+    }
+
+    private static int toInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24
+                | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8
+                | bytes[offset + 3] & 0xFF;
+    }
+
+    private static byte[] toBytes(int ipv4) {
+        return new byte[] {
+            (byte) (ipv4 >>> 24), (byte) (ipv4 >>> 16), (byte) (ipv4 >>> 8), (byte) ipv4
+        };
+    }
+
+    private static byte[] toBytes(long hi, long lo) {
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (hi >>> (56 - (i << 3)));
+            bytes[i + 8] = (byte) (lo >>> (56 - (i << 3)));
+        }
+        return bytes;
+    }
+
+    // ========== 统计 ==========
+    // 各线程的计数以普通写入累加，汇总结果是弱一致的
+
+    /**
+     * @return 命中缓存的查询数
+     */
+    public long hits() {
+        return counters.sum()[HITS];
+    }
+
+    /**
+     * @return 未命中缓存、转交被包装查询器的查询数
+     */
+    public long misses() {
+        return counters.sum()[MISSES];
+    }
+
+    /**
+     * @return 未命中且因结果不覆盖整个前缀块而未缓存的查询数
+     */
+    public long uncacheable() {
+        return counters.sum()[UNCACHEABLE];
+    }
+
+    /**
+     * @return 各线程因版本变化清空缓存的次数之和
+     */
+    public long invalidations() {
+        return counters.sum()[INVALIDATIONS];
+    }
+
+    public double hitRate() {
+        long[] sum = counters.sum();
+        long total = sum[HITS] + sum[MISSES];
+        return total == 0 ? 0 : (double) sum[HITS] / total;
+    }
+
+    /** 清零统计，不影响缓存内容 */
+    public void resetStats() {
+        counters.reset();
+    }
+}
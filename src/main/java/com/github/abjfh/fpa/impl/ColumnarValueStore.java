@@ -0,0 +1,308 @@
+package com.github.abjfh.fpa.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * 按列字典编码的多属性值存储
+ *
+ * <p>每一行对应 FPATree 的一个值索引，行 0 对应未命中。每列的不同取值只以 UTF-8 存储一次，行中只保存字典编号，
+ * 编号宽度按字典大小取 1、2 或 4 字节。调用方通过 {@link FPATree#lookupIndex(int)} 等方法取得值索引后，
+ * 可单独读取某一列的编号或字节，不必解码、拆分整行。每列的数据位于一个 ByteBuffer 中，可选择放在堆外。
+ *
+ * <p>列数据布局（小端序）：
+ *
+ * <pre>
+ * byte[]  各行的字典编号，共 行数 × 编号宽度 字节，补齐到 4 字节
+ * int[]   字典各项的起始偏移，共 字典大小 + 1 个，相对于 UTF-8 数据起点
+ * byte[]  字典各项的 UTF-8 数据
+ * </pre>
+ *
+ * 缺失的属性与空字符串都编码为字典编号 0。
+ */
+public class ColumnarValueStore {
+
+    private static final class Column {
+        final ByteBuffer data;
+        final int codeWidth;
+        final int offsetsBase;
+        final int bytesBase;
+        final int dictionarySize;
+
+        Column(ByteBuffer data, int codeWidth, int offsetsBase, int bytesBase, int dictionarySize) {
+            this.data = data;
+            this.codeWidth = codeWidth;
+            this.offsetsBase = offsetsBase;
+            this.bytesBase = bytesBase;
+            this.dictionarySize = dictionarySize;
+        }
+
+        int code(int row) {
+            switch (codeWidth) {
+                case 1:
+                    return data.get(row) & 0xFF;
+                case 2:
+                    return data.getShort(row << 1) & 0xFFFF;
+                default:
+                    return data.getInt(row << 2);
+            }
+        }
+
+        int start(int code) {
+            return bytesBase + data.getInt(offsetsBase + (code << 2));
+        }
+
+        int end(int code) {
+            return bytesBase + data.getInt(offsetsBase + ((code + 1) << 2));
+        }
+    }
+
+    private final Column[] columns;
+    private final int rowCount;
+
+    private ColumnarValueStore(Column[] columns, int rowCount) {
+        this.columns = columns;
+        this.rowCount = rowCount;
+    }
+
+    /**
+     * 按分隔符拆分 FPATree 中的各个值，行号与值索引一致
+     *
+     * @param tree 值为分隔字符串的树
+     * @param delimiter 分隔符，按字面匹配
+     * @param offHeap 是否把列数据放在堆外
+     * @return 值存储
+     */
+    public static ColumnarValueStore of(FPATree<String> tree, String delimiter, boolean offHeap) {
+        List<String> resultList = tree.resultList();
+        Pattern pattern = Pattern.compile(Pattern.quote(delimiter));
+        Builder builder = new Builder().offHeap(offHeap);
+        for (int i = 1; i < resultList.size(); i++) {
+            builder.addRow(pattern.split(resultList.get(i), -1));
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return 行数，含行 0
+     */
+    public int rowCount() {
+        return rowCount;
+    }
+
+    public int columnCount() {
+        return columns.length;
+    }
+
+    /**
+     * @param column 列号
+     * @return 该列字典中不同取值的数量，含编号 0 的空值
+     */
+    public int dictionarySize(int column) {
+        return columns[column].dictionarySize;
+    }
+
+    /**
+     * 取得某行某列的字典编号，同一列中相同的取值编号相同，可直接用于比较或分组
+     *
+     * @param valueIndex 值索引
+     * @param column 列号
+     * @return 字典编号，0 表示缺失或空字符串
+     */
+    public int code(int valueIndex, int column) {
+        return columns[column].code(valueIndex);
+    }
+
+    /**
+     * 解码某行某列的取值，只分配这一列的字符串
+     *
+     * @param valueIndex 值索引
+     * @param column 列号
+     * @return 取值，缺失时为空字符串
+     */
+    public String get(int valueIndex, int column) {
+        return dictionaryValue(column, code(valueIndex, column));
+    }
+
+    /**
+     * @param column 列号
+     * @param code 字典编号
+     * @return 字典中该编号的取值
+     */
+    public String dictionaryValue(int column, int code) {
+        Column c = columns[column];
+        int start = c.start(code);
+        byte[] bytes = new byte[c.end(code) - start];
+        ByteBuffer data = c.data.duplicate();
+        data.position(start);
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return 某行某列取值的 UTF-8 字节数
+     */
+    public int utf8Length(int valueIndex, int column) {
+        Column c = columns[column];
+        int code = c.code(valueIndex);
+        return c.end(code) - c.start(code);
+    }
+
+    /**
+     * 把某行某列取值的 UTF-8 字节复制到 dst，不产生分配
+     *
+     * @param valueIndex 值索引
+     * @param column 列号
+     * @param dst 目标数组
+     * @param offset 目标起始位置
+     * @return 复制的字节数
+     */
+    public int copyUtf8(int valueIndex, int column, byte[] dst, int offset) {
+        Column c = columns[column];
+        int code = c.code(valueIndex);
+        int start = c.start(code);
+        int length = c.end(code) - start;
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = c.data.get(start + i);
+        }
+        return length;
+    }
+
+    /**
+     * @return 所有列数据占用的字节数
+     */
+    public long bytes() {
+        long bytes = 0;
+        for (Column column : columns) {
+            bytes += column.data.capacity();
+        }
+        return bytes;
+    }
+
+    /** 逐行构建 {@link ColumnarValueStore}，第一次 addRow 的行号为 1 */
+    public static class Builder {
+        private final List<Map<String, Integer>> dictionaries = new ArrayList<>();
+        private final List<List<String>> dictionaryValues = new ArrayList<>();
+        // codes.get(column)[row]，按需扩容
+        private final List<int[]> codes = new ArrayList<>();
+        private int rowCount = 1;
+        private boolean offHeap;
+
+        /**
+         * @param offHeap 是否把列数据放在堆外
+         * @return this
+         */
+        public Builder offHeap(boolean offHeap) {
+            this.offHeap = offHeap;
+            return this;
+        }
+
+        /**
+         * 追加一行，列数不足的行其余列视为缺失
+         *
+         * @param attributes 各列取值，null 视为缺失
+         * @return 该行的行号
+         */
+        public int addRow(String... attributes) {
+            int row = rowCount++;
+            for (int column = 0; column < attributes.length; column++) {
+                if (column == dictionaries.size()) {
+                    addColumn();
+                }
+                int[] columnCodes = codes.get(column);
+                if (row >= columnCodes.length) {
+                    columnCodes =
+                            Arrays.copyOf(columnCodes, Math.max(row + 1, columnCodes.length << 1));
+                    codes.set(column, columnCodes);
+                }
+                columnCodes[row] = code(column, attributes[column]);
+            }
+            return row;
+        }
+
+        private void addColumn() {
+            Map<String, Integer> dictionary = new HashMap<>();
+            List<String> values = new ArrayList<>();
+            dictionary.put("", 0);
+            values.add("");
+            dictionaries.add(dictionary);
+            dictionaryValues.add(values);
+            codes.add(new int[16]);
+        }
+
+        private int code(int column, String value) {
+            if (value == null) {
+                return 0;
+            }
+            List<String> values = dictionaryValues.get(column);
+            return dictionaries
+                    .get(column)
+                    .computeIfAbsent(
+                            value,
+                            v -> {
+                                values.add(v);
+                                return values.size() - 1;
+                            });
+        }
+
+        public ColumnarValueStore build() {
+            Column[] columns = new Column[dictionaries.size()];
+            for (int column = 0; column < columns.length; column++) {
+                columns[column] = buildColumn(dictionaryValues.get(column), codes.get(column));
+            }
+            return new ColumnarValueStore(columns, rowCount);
+        }
+
+        private Column buildColumn(List<String> values, int[] columnCodes) {
+            int dictionarySize = values.size();
+            int codeWidth = dictionarySize <= 0x100 ? 1 : dictionarySize <= 0x10000 ? 2 : 4;
+            byte[][] encoded = new byte[dictionarySize][];
+            long utf8Length = 0;
+            for (int i = 0; i < dictionarySize; i++) {
+                encoded[i] = values.get(i).getBytes(StandardCharsets.UTF_8);
+                utf8Length += encoded[i].length;
+            }
+            int offsetsBase = (rowCount * codeWidth + 3) & ~3;
+            int bytesBase = offsetsBase + ((dictionarySize + 1) << 2);
+            long size = bytesBase + utf8Length;
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalStateException("column too large: " + size + " bytes");
+            }
+
+            ByteBuffer data =
+                    offHeap
+                            ? ByteBuffer.allocateDirect((int) size)
+                            : ByteBuffer.allocate((int) size);
+            data.order(ByteOrder.LITTLE_ENDIAN);
+            for (int row = 0; row < rowCount; row++) {
+                int code = row < columnCodes.length ? columnCodes[row] : 0;
+                switch (codeWidth) {
+                    case 1:
+                        data.put(row, (byte) code);
+                        break;
+                    case 2:
+                        data.putShort(row << 1, (short) code);
+                        break;
+                    default:
+                        data.putInt(row << 2, code);
+                        break;
+                }
+            }
+            int offset = 0;
+            for (int i = 0; i < dictionarySize; i++) {
+                data.putInt(offsetsBase + (i << 2), offset);
+                offset += encoded[i].length;
+            }
+            data.putInt(offsetsBase + (dictionarySize << 2), offset);
+            data.position(bytesBase);
+            for (byte[] bytes : encoded) {
+                data.put(bytes);
+            }
+            data.clear();
+            return new Column(data, codeWidth, offsetsBase, bytesBase, dictionarySize);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.github.abjfh.fpa.impl;
+
+import com.github.abjfh.fpa.IpSearcher;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * 同时持有 IPv4 与 IPv6 两棵 FPATree 的查询器，按地址族分派
+ *
+ * <p>内嵌 IPv4 地址的 IPv6 地址先按其中的 IPv4 地址查询 IPv4 树：
+ *
+ * <ul>
+ *   <li>IPv4 映射地址 {@code ::ffff:a.b.c.d}，始终识别
+ *   <li>6to4 地址 {@code 2002:aabb:ccdd::/48}，IPv4 地址位于第 16 到 47 位
+ *   <li>NAT64 知名前缀 {@code 64:ff9b::/96}，IPv4 地址位于最低 32 位
+ * </ul>
+ *
+ * 后两种可通过构造参数关闭。6to4 与 NAT64 地址在 IPv4 树中未命中时再以原地址查询 IPv6 树，
+ * 保留 IPv6 数据中为这些前缀配置的值。地址的识别与拆分只使用位运算，不分配对象。
+ *
+ * @param <V> 值类型
+ */
+public class DualStackSearcher<V> implements IpSearcher<V> {
+    // ::ffff:0:0/96
+    private static final long MAPPED_LO_PREFIX = 0x0000FFFFL;
+    // 2002::/16
+    private static final long SIX_TO_FOUR_PREFIX = 0x2002L;
+    // 64:ff9b::/96
+    private static final long NAT64_HI = 0x0064FF9B00000000L;
+
+    // Inet4Address.hashCode() 在 OpenJDK 中即为大端序地址，启动时确认后用于避免 getAddress() 复制数组
+    private static final boolean IPV4_HASH_IS_ADDRESS;
+
+    static {
+        boolean hashIsAddress;
+        try {
+            hashIsAddress =
+                    InetAddress.getByAddress(new byte[] {(byte) 192, (byte) 168, 1, 2}).hashCode()
+                            == 0xC0A80102;
+        } catch (UnknownHostException e) {
+            hashIsAddress = false;
+        }
+        IPV4_HASH_IS_ADDRESS = hashIsAddress;
+    }
+
+    // 标记值索引来自 IPv6 树，值索引总小于 2^30
+    private static final int IPV6_INDEX = 1 << 30;
+
+    private final FPATree<V> ipv4Tree;
+    private final FPATree<V> ipv6Tree;
+    private final boolean embeddedIpv4;
+
+    private final IpAddressText.IndexLookup textLookup =
+            new IpAddressText.IndexLookup() {
+                @Override
+                public int lookupIndex(int ipv4) {
+                    return DualStackSearcher.this.lookupIndex(ipv4);
+                }
+
+                @Override
+                public int lookupIndex(long hi, long lo) {
+                    return DualStackSearcher.this.lookupIndex(hi, lo);
+                }
+            };
+
+    /**
+     * 识别 IPv4 映射、6to4 与 NAT64 地址
+     *
+     * @param ipv4Tree 由 IPv4 数据构建的树，为 null 时 IPv4 地址均未命中
+     * @param ipv6Tree 由 IPv6 数据构建的树，为 null 时 IPv6 地址均未命中
+     */
+    public DualStackSearcher(FPATree<V> ipv4Tree, FPATree<V> ipv6Tree) {
+        this(ipv4Tree, ipv6Tree, true);
+    }
+
+    /**
+     * @param ipv4Tree 由 IPv4 数据构建的树，为 null 时 IPv4 地址均未命中
+     * @param ipv6Tree 由 IPv6 数据构建的树，为 null 时 IPv6 地址均未命中
+     * @param embeddedIpv4 是否将 6to4 与 NAT64 地址按内嵌的 IPv4 地址查询；IPv4 映射地址不受影响
+     */
+    public DualStackSearcher(FPATree<V> ipv4Tree, FPATree<V> ipv6Tree, boolean embeddedIpv4) {
+        if (ipv4Tree == null && ipv6Tree == null) {
+            throw new IllegalArgumentException("at least one tree is required");
+        }
+        if (ipv4Tree != null && ipv4Tree.ipType() == TrieToFPAConverter.IP_TYPE.IPV6) {
+            throw new IllegalArgumentException("ipv4Tree was built from IPv6 data");
+        }
+        if (ipv6Tree != null && ipv6Tree.ipType() == TrieToFPAConverter.IP_TYPE.IPV4) {
+            throw new IllegalArgumentException("ipv6Tree was built from IPv4 data");
+        }
+        this.ipv4Tree = ipv4Tree;
+        this.ipv6Tree = ipv6Tree;
+        this.embeddedIpv4 = embeddedIpv4;
+    }
+
+    // ========== 查询 ==========
+
+    /**
+     * @param ipBytes 4 字节的 IPv4 地址或 16 字节的 IPv6 地址
+     * @return 查找到的值，未找到返回 null
+     */
+    @Override
+    public V search(byte[] ipBytes) {
+        if (ipBytes.length == 4) {
+            return search(toInt(ipBytes, 0));
+        }
+        if (ipBytes.length != 16) {
+            throw new IllegalArgumentException(
+                    "ipBytes must be 4 or 16 bytes long, got " + ipBytes.length);
+        }
+        long hi = (long) toInt(ipBytes, 0) << 32 | toInt(ipBytes, 4) & 0xFFFFFFFFL;
+        long lo = (long) toInt(ipBytes, 8) << 32 | toInt(ipBytes, 12) & 0xFFFFFFFFL;
+        return search(hi, lo);
+    }
+
+    /**
+     * IPv4 地址在 {@code hashCode()} 即为地址的 JVM 上直接取用，不复制地址数组；
+     * IPv6 地址经 {@link InetAddress#getAddress()} 复制为 16 字节后查询
+     *
+     * @param address IPv4 或 IPv6 地址
+     * @return 查找到的值，未找到返回 null
+     */
+    public V search(InetAddress address) {
+        if (address instanceof Inet4Address && IPV4_HASH_IS_ADDRESS) {
+            return search(address.hashCode());
+        }
+        return search(address.getAddress());
+    }
+
+    /**
+     * @param ipv4 大端序 IPv4 地址
+     * @return 查找到的值，未找到返回 null
+     */
+    public V search(int ipv4) {
+        return ipv4Tree == null ? null : ipv4Tree.search(ipv4);
+    }
+
+    /**
+     * 查询 IPv6 地址，内嵌 IPv4 地址的按类注释中的规则先查询 IPv4 树
+     *
+     * @param hi IPv6 地址高 64 位（大端序）
+     * @param lo IPv6 地址低 64 位（大端序）
+     * @return 查找到的值，未找到返回 null
+     */
+    public V search(long hi, long lo) {
+        return value(lookupIndex(hi, lo));
+    }
+
+    /**
+     * 直接从文本查询地址，IPv4 映射等内嵌 IPv4 的 IPv6 文本同样按类注释中的规则处理
+     *
+     * @param text IPv4 或 IPv6 地址文本
+     * @return 查找到的值；未找到或文本不是合法的地址时返回 null
+     * @see FPATree#search(CharSequence)
+     */
+    public V search(CharSequence text) {
+        int index = IpAddressText.lookupIndex(textLookup, null, text);
+        return index == IpAddressText.MALFORMED ? null : value(index);
+    }
+
+    /**
+     * @param utf8 包含地址文本的字节
+     * @param offset 地址文本的起始位置
+     * @param length 地址文本的字节数
+     * @return 查找到的值；未找到或文本不是合法的地址时返回 null
+     * @see FPATree#search(byte[], int, int)
+     */
+    public V search(byte[] utf8, int offset, int length) {
+        int index = IpAddressText.lookupIndex(textLookup, null, utf8, offset, length);
+        return index == IpAddressText.MALFORMED ? null : value(index);
+    }
+
+    private int lookupIndex(int ipv4) {
+        return ipv4Tree == null ? 0 : ipv4Tree.lookupIndex(ipv4);
+    }
+
+    /**
+     * @return IPv4 树的值索引，或置 {@link #IPV6_INDEX} 位的 IPv6 树的值索引
+     */
+    private int lookupIndex(long hi, long lo) {
+        if (hi == 0 && lo >>> 32 == MAPPED_LO_PREFIX) {
+            return lookupIndex((int) lo);
+        }
+        if (embeddedIpv4 && ipv4Tree != null) {
+            int valueIndex = 0;
+            if (hi >>> 48 == SIX_TO_FOUR_PREFIX) {
+                valueIndex = ipv4Tree.lookupIndex((int) (hi >>> 16));
+            } else if (hi == NAT64_HI && lo >>> 32 == 0) {
+                valueIndex = ipv4Tree.lookupIndex((int) lo);
+            }
+            if (valueIndex != 0) {
+                return valueIndex;
+            }
+        }
+        return ipv6Tree == null ? 0 : ipv6Tree.lookupIndex(hi, lo) | IPV6_INDEX;
+    }
+
+    private V value(int index) {
+        if (index == 0) {
+            return null;
+        }
+        return (index & IPV6_INDEX) == 0
+                ? ipv4Tree.getValue(index)
+                : ipv6Tree.getValue(index & ~IPV6_INDEX);
+    }
+
+    private static int toInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24
+                | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8
+                | bytes[offset + 3] & 0xFF;
+    }
+
+    public FPATree<V> ipv4Tree() {
+        return ipv4Tree;
+    }
+
+    public FPATree<V> ipv6Tree() {
+        return ipv6Tree;
+    }
+
+    // ========== 内存统计 ==========
+
+    /**
+     * 两棵树各层的内存统计，层名以 ipv4、ipv6 开头，值对象本身不计入
+     *
+     * @return 内存统计
+     */
+    public MemoryStats memoryStats() {
+        return memoryStats(null);
+    }
+
+    /**
+     * 两棵树各层的内存统计，层名以 ipv4、ipv6 开头；两棵树共享的值对象只计一次
+     *
+     * @param valueBytes 值对象大小的估算函数；为 null 时只统计值对象个数
+     * @return 内存统计
+     */
+    public MemoryStats memoryStats(ToLongFunction<? super V> valueBytes) {
+        MemoryStats stats = new MemoryStats("DualStackSearcher");
+        List<V> values = new ArrayList<>();
+        if (ipv4Tree != null) {
+            addLayers(stats, "ipv4 ", ipv4Tree);
+            values.addAll(ipv4Tree.resultList());
+        }
+        if (ipv6Tree != null) {
+            addLayers(stats, "ipv6 ", ipv6Tree);
+            values.addAll(ipv6Tree.resultList());
+        }
+        return stats.addValues("value objects", values, valueBytes);
+    }
+
+    private static void addLayers(MemoryStats stats, String prefix, FPATree<?> tree) {
+        for (MemoryStats.Layer layer : tree.memoryStats().layers()) {
+            if (!layer.name().equals("value objects")) {
+                stats.add(prefix + layer.name(), layer.count(), layer.elements(), layer.bytes());
+            }
+        }
+    }
+}
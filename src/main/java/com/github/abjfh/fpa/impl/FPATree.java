@@ -4,25 +4,55 @@ import com.github.abjfh.fpa.IpSearcher;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.ToLongFunction;
 
-public class FPATree<V> implements IpSearcher<V>, Serializable {
+public class FPATree<V> implements IpSearcher<V>, IpAddressText.IndexLookup, Serializable {
     // ========== 常量定义 ==========
 
-    private static final int TYPE_LEAF = 0;
-    private static final int TYPE_DENSE = 1;
-    private static final int TYPE_SPARSE = 2;
-    private static final int DEFAULT_K = 3;
+    static final int TYPE_LEAF = 0;
+    static final int TYPE_DENSE = 1;
+    static final int TYPE_SPARSE = 2;
+    // 扩展类型：第 29 位区分子类型，低 29 位为索引
+    static final int TYPE_EXT = 3;
+    static final int EXT_RANGE = 0;
+    static final int EXT_SKIP = 1;
+    static final int EXT_INDEX_MASK = 0x1FFFFFFF;
+    // lookupEntry 高 3 位等于该值时为跳跃节点
+    static final int SKIP_TAG = TYPE_EXT << 1 | EXT_SKIP;
+    // 跳跃节点一次最多跳过的层数，跳过的字节存放在一个 int 中
+    static final int MAX_SKIP_LENGTH = 4;
+    static final int DEFAULT_K = 3;
+    static final int DEFAULT_MAX_RANGE_RUNS = 32;
+    static final int DEFAULT_PROBE_WEIGHT = 8;
+
+    // 打包布局中 Dense Chunk 的 32 个 codeWord 两两合并为 16 个 int
+    static final int PACKED_DENSE_HEADER = 16;
 
     // ========== Layer 1: Root Chunk ==========
-    private final int[] rootChunk = new int[65536];
+    private final int[] rootChunk;
 
     // ========== Layer 2/3: Chunk Array ==========
     private short[] denseChunkCodes;
     private int[][] denseChunkLookupEntries;
     private List<SparseChunkEntry[]> sparseChunkList;
+    private List<RangeChunkEntry> rangeChunkList;
+    private List<SkipChunkEntry> skipChunkList;
+
+    // ========== Layer 2/3: 打包布局（可选） ==========
+    // 所有 chunk 连续存放，非叶子 lookupEntry 的索引即 chunk 起始偏移
+    // Dense:  [16 个 int 的 codeWord][lookupEntries...]
+    // Sparse: [entry 数量][(prefix | mask << 8), lookupEntry]...
+    // Range:  [段数 | 边界数组长度 << 16][边界，每个 int 存 4 个][lookupEntries...]
+    // Skip:   [跳过的层数][跳过的字节，左对齐][各层不匹配时的 lookupEntry...][子节点 lookupEntry]
+    private int[] chunkData;
 
     private List<V> resultList;
 
+    // 构建时的地址类型，文本查询据此拒绝另一地址族的地址；直接组装的树为 null，不做检查
+    private TrieToFPAConverter.IP_TYPE ipType;
+
     // ========== 辅助数据 ==========
     static final byte[] INDEX_TABLE = new byte[256];
 
@@ -48,128 +78,640 @@ public class FPATree<V> implements IpSearcher<V>, Serializable {
         }
     }
 
+    /**
+     * 区间 chunk：把 256 个槽位按连续相同的 lookupEntry 划分为若干段，按段起点做无分支二分查找
+     *
+     * <p>bounds 长度为 2 的幂，bounds[k] 为第 k 段的起始槽位，多余位置以 0xFF 填充；
+     * 填充位置可能在查询 255 时被命中，此时取最后一段，结果不变
+     */
+    static class RangeChunkEntry implements Serializable {
+        byte[] bounds;
+        int[] lookupEntries;
+    }
+
+    /**
+     * 跳跃节点：把只有一个槽位不同于其余槽位的连续若干层合并为一个节点，一次比较多个字节
+     *
+     * <p>keys 左对齐存放各层唯一的子槽位；lookupEntries[i] 为第 i 层不匹配时的叶子 lookupEntry，
+     * lookupEntries[length] 为全部匹配后的子节点 lookupEntry
+     */
+    static class SkipChunkEntry implements Serializable {
+        int keys;
+        int length;
+        int[] lookupEntries;
+    }
+
+    public FPATree() {
+        this.rootChunk = new int[65536];
+    }
+
+    /**
+     * 以打包布局直接组装一棵树，供增量更新发布新版本使用
+     *
+     * @param ipType 地址类型，未知时为 null
+     * @param rootChunk 根节点数组
+     * @param chunkData 打包后的 chunk 数组
+     * @param resultList 值列表，索引 0 为 null
+     */
+    FPATree(
+            TrieToFPAConverter.IP_TYPE ipType,
+            int[] rootChunk,
+            int[] chunkData,
+            List<V> resultList) {
+        this.ipType = ipType;
+        this.rootChunk = rootChunk;
+        this.chunkData = chunkData;
+        this.resultList = resultList;
+    }
+
+    /**
+     * @return 构建时的地址类型；不是由 ForwardingPortArray 或 StreamingFPATreeBuilder 构建的树为 null
+     */
+    public TrieToFPAConverter.IP_TYPE ipType() {
+        return ipType;
+    }
+
     @Override
     public V search(byte[] ipBytes) {
+        return resultList.get(lookupIndex(ipBytes));
+    }
+
+    /**
+     * 查询地址对应的值索引
+     *
+     * @param ipBytes IP 地址的字节数组
+     * @return 值索引，0 表示未命中；可通过 {@link #getValue(int)} 取得对应的值
+     */
+    public int lookupIndex(byte[] ipBytes) {
         int lookupEntry = rootChunk[(ipBytes[0] & 0xFF) << 8 | ipBytes[1] & 0xFF];
-        int type, index;
         int byteIdx = 2;
-        do {
-            if (lookupEntry == 0) {
-                return null;
+        while (lookupEntry >>> 30 != TYPE_LEAF) {
+            if (lookupEntry >>> 29 == SKIP_TAG) {
+                int length = skipLength(lookupEntry);
+                lookupEntry = skip(lookupEntry, window(ipBytes, byteIdx));
+                byteIdx += length;
+            } else {
+                lookupEntry = nextLookupEntry(lookupEntry, ipBytes[byteIdx++]);
             }
-            type = lookupEntry >>> 30;
-            index = lookupEntry & 0x3FFFFFFF;
-            if (type == TYPE_LEAF) {
-                return resultList.get(index);
-            } else if (type == TYPE_DENSE) {
-                lookupEntry = search(ipBytes[byteIdx++], index);
-            } else if (type == TYPE_SPARSE) {
-                lookupEntry = search(ipBytes[byteIdx++], sparseChunkList.get(index));
+        }
+        return lookupEntry;
+    }
+
+    /**
+     * 以 int 形式查询 IPv4 地址，无需构造 byte[4]
+     *
+     * @param ipv4 大端序 IPv4 地址，例如 192.168.1.1 对应 0xC0A80101
+     * @return 查找到的值，未找到返回 null
+     */
+    public V search(int ipv4) {
+        return resultList.get(lookupIndex(ipv4));
+    }
+
+    /**
+     * 查询 IPv4 地址对应的值索引，仅适用于由 IPv4 数据构建的树
+     *
+     * @param ipv4 大端序 IPv4 地址
+     * @return 值索引，0 表示未命中；可通过 {@link #getValue(int)} 取得对应的值
+     */
+    public int lookupIndex(int ipv4) {
+        return lookupIndex(rootChunk[ipv4 >>> 16], ipv4, 2);
+    }
+
+    /** 从第 byteIdx 个字节处的 lookupEntry 继续查询 IPv4 地址 */
+    private int lookupIndex(int lookupEntry, int ipv4, int byteIdx) {
+        while (lookupEntry >>> 30 != TYPE_LEAF) {
+            if (lookupEntry >>> 29 == SKIP_TAG) {
+                int length = skipLength(lookupEntry);
+                lookupEntry = skip(lookupEntry, ipv4 << (byteIdx << 3));
+                byteIdx += length;
             } else {
-                return null;
+                lookupEntry = nextLookupEntry(lookupEntry, (byte) (ipv4 >>> (24 - (byteIdx << 3))));
+                byteIdx++;
             }
-        } while (true);
+        }
+        return lookupEntry;
     }
 
-    public void printMemoryStats() {
-        System.out.println("========== FPATree 内存统计 ==========");
-        System.out.println();
-
-        // Layer 1: Root Chunk
-        long rootChunkMemory = rootChunk.length * 4L;
-        System.out.println("【Layer 1: Root Chunk】");
-        System.out.println("  大小: " + rootChunk.length + " 个 int");
-        System.out.println("  内存: " + formatBytes(rootChunkMemory));
-        System.out.println();
-
-        // Layer 2/3: Dense Chunks
-        System.out.println("【Layer 2/3: Dense Chunks】");
-        if (denseChunkCodes != null) {
-            long codesMemory = denseChunkCodes.length * 2L;
-            System.out.println("  denseChunkCodes: " + denseChunkCodes.length + " 个 short");
-            System.out.println("  内存: " + formatBytes(codesMemory));
-        }
-        if (denseChunkLookupEntries != null) {
-            long lookupMemory = 0;
-            int totalEntries = 0;
-            for (int[] entries : denseChunkLookupEntries) {
-                if (entries != null) {
-                    lookupMemory += entries.length * 4L;
-                    totalEntries += entries.length;
-                }
+    /**
+     * 以两个 long 形式查询 IPv6 地址，无需构造 byte[16]
+     *
+     * @param hi IPv6 地址高 64 位（大端序）
+     * @param lo IPv6 地址低 64 位（大端序）
+     * @return 查找到的值，未找到返回 null
+     */
+    public V search(long hi, long lo) {
+        return resultList.get(lookupIndex(hi, lo));
+    }
+
+    /**
+     * 查询 IPv6 地址对应的值索引，仅适用于由 IPv6 数据构建的树
+     *
+     * @param hi IPv6 地址高 64 位（大端序）
+     * @param lo IPv6 地址低 64 位（大端序）
+     * @return 值索引，0 表示未命中；可通过 {@link #getValue(int)} 取得对应的值
+     */
+    public int lookupIndex(long hi, long lo) {
+        return lookupIndex(rootChunk[(int) (hi >>> 48)], hi, lo, 2);
+    }
+
+    /** 从第 byteIdx 个字节处的 lookupEntry 继续查询 IPv6 地址 */
+    private int lookupIndex(int lookupEntry, long hi, long lo, int byteIdx) {
+        while (lookupEntry >>> 30 != TYPE_LEAF) {
+            if (lookupEntry >>> 29 == SKIP_TAG) {
+                int length = skipLength(lookupEntry);
+                lookupEntry = skip(lookupEntry, window(hi, lo, byteIdx));
+                byteIdx += length;
+            } else {
+                // 前 8 个字节取自高 64 位，之后取自低 64 位
+                long bits = byteIdx < 8 ? hi : lo;
+                int shift = 56 - ((byteIdx & 0b111) << 3);
+                lookupEntry = nextLookupEntry(lookupEntry, (byte) (bits >>> shift));
+                byteIdx++;
+            }
+        }
+        return lookupEntry;
+    }
+
+    // ========== 文本地址查询 ==========
+
+    /**
+     * 直接从文本查询地址，不产生中间字符串或数组：点分十进制按 IPv4 解析，其余按 RFC 4291 的 IPv6 文本形式解析
+     * （含 {@code ::} 压缩与末尾的点分十进制）。不接受空白、区域标识与前缀长度
+     *
+     * <p>文本的地址族须与 {@link #ipType()} 一致，另一地址族的地址不查询，直接返回 null
+     *
+     * @param text IPv4 或 IPv6 地址文本
+     * @return 查找到的值；未找到、文本不是合法的地址或地址族不符时返回 null
+     */
+    public V search(CharSequence text) {
+        int valueIndex = lookupIndex(text);
+        return valueIndex < 0 ? null : resultList.get(valueIndex);
+    }
+
+    /**
+     * 直接从 UTF-8 字节中的一段文本查询地址，适用于未解码的日志行
+     *
+     * @param utf8 包含地址文本的字节
+     * @param offset 地址文本的起始位置
+     * @param length 地址文本的字节数
+     * @return 查找到的值；未找到、文本不是合法的地址或地址族不符时返回 null
+     * @see #search(CharSequence)
+     */
+    public V search(byte[] utf8, int offset, int length) {
+        int valueIndex = lookupIndex(utf8, offset, length);
+        return valueIndex < 0 ? null : resultList.get(valueIndex);
+    }
+
+    /**
+     * @param text IPv4 或 IPv6 地址文本
+     * @return 值索引，0 表示未命中，-1 表示文本不是合法的地址或地址族不符
+     * @see #search(CharSequence)
+     */
+    public int lookupIndex(CharSequence text) {
+        return IpAddressText.lookupIndex(this, ipType, text);
+    }
+
+    /**
+     * @param utf8 包含地址文本的字节
+     * @param offset 地址文本的起始位置
+     * @param length 地址文本的字节数
+     * @return 值索引，0 表示未命中，-1 表示文本不是合法的地址或地址族不符
+     * @see #search(CharSequence)
+     */
+    public int lookupIndex(byte[] utf8, int offset, int length) {
+        return IpAddressText.lookupIndex(this, ipType, utf8, offset, length);
+    }
+
+    /**
+     * 查询 IPv4 地址，同时返回到达叶子时已消耗的字节数：前几个字节相同的地址查询路径相同，结果也相同
+     *
+     * @param ipv4 大端序 IPv4 地址
+     * @return 高 32 位为已消耗的字节数，低 32 位为值索引
+     */
+    long lookupIndexAndDepth(int ipv4) {
+        int lookupEntry = rootChunk[ipv4 >>> 16];
+        int byteIdx = 2;
+        while (lookupEntry >>> 30 != TYPE_LEAF) {
+            if (lookupEntry >>> 29 == SKIP_TAG) {
+                int length = skipLength(lookupEntry);
+                lookupEntry = skip(lookupEntry, ipv4 << (byteIdx << 3));
+                byteIdx += length;
+            } else {
+                lookupEntry = nextLookupEntry(lookupEntry, (byte) (ipv4 >>> (24 - (byteIdx << 3))));
+                byteIdx++;
+            }
+        }
+        return (long) byteIdx << 32 | lookupEntry;
+    }
+
+    /**
+     * 查询 IPv6 地址，同时返回到达叶子时已消耗的字节数
+     *
+     * @param hi IPv6 地址高 64 位（大端序）
+     * @param lo IPv6 地址低 64 位（大端序）
+     * @return 高 32 位为已消耗的字节数，低 32 位为值索引
+     * @see #lookupIndexAndDepth(int)
+     */
+    long lookupIndexAndDepth(long hi, long lo) {
+        int lookupEntry = rootChunk[(int) (hi >>> 48)];
+        int byteIdx = 2;
+        while (lookupEntry >>> 30 != TYPE_LEAF) {
+            if (lookupEntry >>> 29 == SKIP_TAG) {
+                int length = skipLength(lookupEntry);
+                lookupEntry = skip(lookupEntry, window(hi, lo, byteIdx));
+                byteIdx += length;
+            } else {
+                long bits = byteIdx < 8 ? hi : lo;
+                int shift = 56 - ((byteIdx & 0b111) << 3);
+                lookupEntry = nextLookupEntry(lookupEntry, (byte) (bits >>> shift));
+                byteIdx++;
             }
-            System.out.println(
-                    "  denseChunkLookupEntries: "
-                            + denseChunkLookupEntries.length
-                            + " 个 chunk, "
-                            + totalEntries
-                            + " 个 lookupEntry");
-            System.out.println("  内存: " + formatBytes(lookupMemory));
-        }
-        System.out.println();
-
-        // Layer 2/3: Sparse Chunks
-        System.out.println("【Layer 2/3: Sparse Chunks】");
-        if (sparseChunkList != null) {
-            long sparseMemory = 0;
-            int totalEntries = 0;
-            for (SparseChunkEntry[] entries : sparseChunkList) {
-                if (entries != null) {
-                    sparseMemory += entries.length * 6L;
-                    totalEntries += entries.length;
+        }
+        return (long) byteIdx << 32 | lookupEntry;
+    }
+
+    /**
+     * 批量查询 IPv4 地址的值索引
+     *
+     * <p>所有地址按层同步推进：每一轮让每个未结束的地址只前进一层，同一轮内各地址的访存互不依赖，
+     * CPU 可以重叠它们的缓存未命中。查询过程中 out 暂存各地址当前的 lookupEntry，不产生额外分配。
+     *
+     * @param ips 大端序 IPv4 地址
+     * @param n 查询数量
+     * @param out 输出的值索引，长度不小于 n
+     */
+    public void lookupIndexBatch(int[] ips, int n, int[] out) {
+        boolean pending = false;
+        for (int i = 0; i < n; i++) {
+            int lookupEntry = rootChunk[ips[i] >>> 16];
+            out[i] = lookupEntry;
+            pending |= lookupEntry >>> 30 != TYPE_LEAF;
+        }
+        for (int shift = 8; pending; shift -= 8) {
+            pending = false;
+            for (int i = 0; i < n; i++) {
+                int lookupEntry = out[i];
+                if (lookupEntry >>> 30 != TYPE_LEAF) {
+                    // 跳跃节点会一次前进多层，遇到时该地址改为单独查完
+                    lookupEntry =
+                            lookupEntry >>> 29 == SKIP_TAG
+                                    ? lookupIndex(lookupEntry, ips[i], 3 - (shift >>> 3))
+                                    : nextLookupEntry(lookupEntry, (byte) (ips[i] >>> shift));
+                    out[i] = lookupEntry;
+                    pending |= lookupEntry >>> 30 != TYPE_LEAF;
                 }
             }
-            System.out.println(
-                    "  sparseChunkList: "
-                            + sparseChunkList.size()
-                            + " 个 chunk, "
-                            + totalEntries
-                            + " 个 entry");
-            System.out.println("  内存: " + formatBytes(sparseMemory));
         }
-        System.out.println();
+    }
 
-        // Result List
-        System.out.println("【Result List】");
-        if (resultList != null) {
-            long resultMemory = resultList.size() * 8L; // 对象引用估算
-            System.out.println("  大小: " + resultList.size() + " 个元素");
-            System.out.println("  内存: " + formatBytes(resultMemory) + " (引用数组，不包含实际对象)");
+    /**
+     * 批量查询 IPv4 地址对应的值
+     *
+     * <p>valueIndexes 由调用方提供并可在多次调用间复用，查询不产生分配
+     *
+     * @param ips 大端序 IPv4 地址
+     * @param n 查询数量
+     * @param valueIndexes 暂存值索引的数组，长度不小于 n，返回后保存各地址的值索引
+     * @param out 输出的值，长度不小于 n，未命中为 null
+     * @see #lookupIndexBatch(int[], int, int[])
+     */
+    public void searchBatch(int[] ips, int n, int[] valueIndexes, V[] out) {
+        lookupIndexBatch(ips, n, valueIndexes);
+        for (int i = 0; i < n; i++) {
+            out[i] = resultList.get(valueIndexes[i]);
         }
-        System.out.println();
+    }
 
-        // 总计
-        long totalMemory = rootChunkMemory;
-        if (denseChunkCodes != null) totalMemory += denseChunkCodes.length * 2L;
-        if (denseChunkLookupEntries != null) {
-            for (int[] entries : denseChunkLookupEntries) {
-                if (entries != null) totalMemory += entries.length * 4L;
+    /**
+     * 批量查询 IPv6 地址的值索引，遍历方式同 {@link #lookupIndexBatch(int[], int, int[])}
+     *
+     * @param his IPv6 地址高 64 位（大端序）
+     * @param los IPv6 地址低 64 位（大端序）
+     * @param n 查询数量
+     * @param out 输出的值索引，长度不小于 n
+     */
+    public void lookupIndexBatch(long[] his, long[] los, int n, int[] out) {
+        boolean pending = false;
+        for (int i = 0; i < n; i++) {
+            int lookupEntry = rootChunk[(int) (his[i] >>> 48)];
+            out[i] = lookupEntry;
+            pending |= lookupEntry >>> 30 != TYPE_LEAF;
+        }
+        for (int byteIdx = 2; pending; byteIdx++) {
+            pending = false;
+            long[] words = byteIdx < 8 ? his : los;
+            int shift = 56 - ((byteIdx & 0b111) << 3);
+            for (int i = 0; i < n; i++) {
+                int lookupEntry = out[i];
+                if (lookupEntry >>> 30 != TYPE_LEAF) {
+                    lookupEntry =
+                            lookupEntry >>> 29 == SKIP_TAG
+                                    ? lookupIndex(lookupEntry, his[i], los[i], byteIdx)
+                                    : nextLookupEntry(lookupEntry, (byte) (words[i] >>> shift));
+                    out[i] = lookupEntry;
+                    pending |= lookupEntry >>> 30 != TYPE_LEAF;
+                }
             }
         }
-        if (sparseChunkList != null) {
-            for (SparseChunkEntry[] entries : sparseChunkList) {
-                if (entries != null) totalMemory += entries.length * 6L;
+    }
+
+    /**
+     * 批量查询 IPv6 地址对应的值
+     *
+     * <p>valueIndexes 的用法同 {@link #searchBatch(int[], int, int[], Object[])}
+     *
+     * @param his IPv6 地址高 64 位（大端序）
+     * @param los IPv6 地址低 64 位（大端序）
+     * @param n 查询数量
+     * @param valueIndexes 暂存值索引的数组，长度不小于 n，返回后保存各地址的值索引
+     * @param out 输出的值，长度不小于 n，未命中为 null
+     * @see #lookupIndexBatch(long[], long[], int, int[])
+     */
+    public void searchBatch(long[] his, long[] los, int n, int[] valueIndexes, V[] out) {
+        lookupIndexBatch(his, los, n, valueIndexes);
+        for (int i = 0; i < n; i++) {
+            out[i] = resultList.get(valueIndexes[i]);
+        }
+    }
+
+    /**
+     * 根据值索引取得对应的值
+     *
+     * @param valueIndex {@link #lookupIndex(int)} 返回的值索引
+     * @return 对应的值，索引 0 对应 null
+     */
+    public V getValue(int valueIndex) {
+        return resultList.get(valueIndex);
+    }
+
+    /**
+     * 返回共享同一组 chunk、但不持有值对象的树，值索引不变
+     *
+     * <p>值已转存到 {@link ColumnarValueStore} 等外部结构后，可用它替换原树以释放值对象占用的内存
+     *
+     * @return 只能通过 lookupIndex 系列方法查询的树，search 始终返回 null
+     */
+    public FPATree<Void> withoutValues() {
+        FPATree<Void> tree =
+                new FPATree<>(
+                        ipType,
+                        rootChunk,
+                        chunkData,
+                        Collections.<Void>nCopies(resultList.size(), null));
+        tree.denseChunkCodes = denseChunkCodes;
+        tree.denseChunkLookupEntries = denseChunkLookupEntries;
+        tree.sparseChunkList = sparseChunkList;
+        tree.rangeChunkList = rangeChunkList;
+        tree.skipChunkList = skipChunkList;
+        return tree;
+    }
+
+    /**
+     * 在 lookupEntry 指向的 chunk 中按 8 位索引前进一层
+     *
+     * <p>叶子类型的 lookupEntry 高两位为 0，其值即为值索引，调用方据此判断是否结束遍历。
+     * 跳跃节点一次消耗多个字节，须由调用方通过 {@link #skip(int, int)} 处理
+     *
+     * @param lookupEntry 非叶子类型的 lookupEntry
+     * @param index8 当前层的 8 位索引
+     * @return 下一层的 lookupEntry
+     */
+    int nextLookupEntry(int lookupEntry, byte index8) {
+        int index = lookupEntry & 0x3FFFFFFF;
+        switch (lookupEntry >>> 30) {
+            case TYPE_DENSE:
+                return chunkData != null ? searchPackedDense(index8, index) : search(index8, index);
+            case TYPE_SPARSE:
+                return chunkData != null
+                        ? searchPackedSparse(index8, index)
+                        : search(index8, sparseChunkList.get(index));
+            case TYPE_EXT:
+                if (index >>> 29 == EXT_RANGE) {
+                    index &= EXT_INDEX_MASK;
+                    return chunkData != null
+                            ? searchPackedRange(index8, index)
+                            : search(index8, rangeChunkList.get(index));
+                }
+                return 0;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @param index16 地址的前 16 位
+     * @return 根节点数组中对应的 lookupEntry
+     */
+    int rootLookupEntry(int index16) {
+        return rootChunk[index16];
+    }
+
+    /**
+     * @param lookupEntry 跳跃节点的 lookupEntry
+     * @return 跳跃节点跳过的层数
+     */
+    int skipLength(int lookupEntry) {
+        int index = lookupEntry & EXT_INDEX_MASK;
+        return chunkData != null ? chunkData[index] : skipChunkList.get(index).length;
+    }
+
+    /**
+     * 在跳跃节点中一次比较多个字节
+     *
+     * @param lookupEntry 跳跃节点的 lookupEntry
+     * @param window 从当前层开始的 4 个字节，左对齐；超出跳过层数的部分不参与比较
+     * @return 全部匹配时为子节点的 lookupEntry，否则为第一个不匹配层的叶子 lookupEntry
+     */
+    int skip(int lookupEntry, int window) {
+        int index = lookupEntry & EXT_INDEX_MASK;
+        if (chunkData != null) {
+            int length = chunkData[index];
+            int diff = (window ^ chunkData[index + 1]) & -1 << ((MAX_SKIP_LENGTH - length) << 3);
+            // 第一个不匹配的层，全部匹配时为 length
+            int layer = Math.min(Integer.numberOfLeadingZeros(diff) >>> 3, length);
+            return chunkData[index + 2 + layer];
+        }
+        SkipChunkEntry skipChunkEntry = skipChunkList.get(index);
+        int length = skipChunkEntry.length;
+        int diff = (window ^ skipChunkEntry.keys) & -1 << ((MAX_SKIP_LENGTH - length) << 3);
+        int layer = Math.min(Integer.numberOfLeadingZeros(diff) >>> 3, length);
+        return skipChunkEntry.lookupEntries[layer];
+    }
+
+    /** 取 ipBytes 从 byteIdx 开始的至多 4 个字节，左对齐 */
+    static int window(byte[] ipBytes, int byteIdx) {
+        int window = 0;
+        int end = Math.min(ipBytes.length, byteIdx + MAX_SKIP_LENGTH);
+        for (int i = byteIdx, shift = 24; i < end; i++, shift -= 8) {
+            window |= (ipBytes[i] & 0xFF) << shift;
+        }
+        return window;
+    }
+
+    /** 取 IPv6 地址从 byteIdx 开始的 4 个字节，左对齐 */
+    static int window(long hi, long lo, int byteIdx) {
+        int shift = (byteIdx & 0b111) << 3;
+        // shift 为 0 时 lo 先右移 1 位再右移 63 位得到 0，避免 Java 移位数取模
+        long bits = byteIdx < 8 ? hi << shift | lo >>> 1 >>> (63 - shift) : lo << shift;
+        return (int) (bits >>> 32);
+    }
+
+    /** 打印 {@link #memoryStats()} 的报告 */
+    public void printMemoryStats() {
+        System.out.print(memoryStats().report());
+    }
+
+    /**
+     * 各层的内存统计，值对象本身不计入
+     *
+     * @return 内存统计
+     */
+    public MemoryStats memoryStats() {
+        return memoryStats(null);
+    }
+
+    /**
+     * 各层的内存统计：root、dense、sparse、range、skip 与 values；打包布局下 chunk 按类型分层，
+     * chunk 数组的数组头与不可达的 int 计入 packed overhead
+     *
+     * @param valueBytes 值对象大小的估算函数，如 {@code MemoryStats::stringBytes}；为 null 时只统计值对象个数
+     * @return 内存统计
+     */
+    public MemoryStats memoryStats(ToLongFunction<? super V> valueBytes) {
+        int ref = MemoryStats.referenceSize();
+        MemoryStats stats = new MemoryStats("FPATree");
+        stats.add("root", 1, rootChunk.length, MemoryStats.arrayBytes(rootChunk.length, 4));
+
+        if (chunkData != null) {
+            addPackedMemoryStats(stats);
+        } else {
+            long denseEntries = 0;
+            long denseBytes = 0;
+            if (denseChunkLookupEntries != null) {
+                denseBytes =
+                        MemoryStats.arrayBytes(denseChunkCodes.length, 2)
+                                + MemoryStats.arrayBytes(denseChunkLookupEntries.length, ref);
+                for (int[] entries : denseChunkLookupEntries) {
+                    denseEntries += entries.length;
+                    denseBytes += MemoryStats.arrayBytes(entries.length, 4);
+                }
+            }
+            stats.add(
+                    "dense",
+                    denseChunkLookupEntries == null ? 0 : denseChunkLookupEntries.length,
+                    denseEntries,
+                    denseBytes);
+
+            List<SparseChunkEntry[]> sparseChunks = listOrEmpty(sparseChunkList);
+            long sparseEntries = 0;
+            long sparseBytes = MemoryStats.arrayListBytes(sparseChunks.size());
+            // prefix、mask、lookupEntry
+            long sparseEntryBytes = MemoryStats.objectBytes(1 + 1 + 4);
+            for (SparseChunkEntry[] entries : sparseChunks) {
+                sparseEntries += entries.length;
+                sparseBytes +=
+                        MemoryStats.arrayBytes(entries.length, ref)
+                                + entries.length * sparseEntryBytes;
             }
+            stats.add("sparse", sparseChunks.size(), sparseEntries, sparseBytes);
+
+            List<RangeChunkEntry> rangeChunks = listOrEmpty(rangeChunkList);
+            long runs = 0;
+            long rangeBytes = MemoryStats.arrayListBytes(rangeChunks.size());
+            for (RangeChunkEntry entry : rangeChunks) {
+                runs += entry.lookupEntries.length;
+                rangeBytes +=
+                        MemoryStats.objectBytes(ref * 2)
+                                + MemoryStats.arrayBytes(entry.bounds.length, 1)
+                                + MemoryStats.arrayBytes(entry.lookupEntries.length, 4);
+            }
+            stats.add("range", rangeChunks.size(), runs, rangeBytes);
+
+            List<SkipChunkEntry> skipChunks = listOrEmpty(skipChunkList);
+            long skippedLayers = 0;
+            long skipBytes = MemoryStats.arrayListBytes(skipChunks.size());
+            for (SkipChunkEntry entry : skipChunks) {
+                skippedLayers += entry.length;
+                skipBytes +=
+                        MemoryStats.objectBytes(4 + 4 + ref)
+                                + MemoryStats.arrayBytes(entry.lookupEntries.length, 4);
+            }
+            stats.add("skip", skipChunks.size(), skippedLayers, skipBytes);
         }
-        if (resultList != null) totalMemory += resultList.size() * 8L;
 
-        System.out.println("======================================");
-        System.out.println("总内存: " + formatBytes(totalMemory));
-        System.out.println("======================================");
+        // withoutValues 使用的 nCopies 等视图只有一个对象，不含数组
+        List<V> values = listOrEmpty(resultList);
+        stats.add(
+                "values",
+                1,
+                values.size(),
+                values instanceof ArrayList
+                        ? MemoryStats.arrayListBytes(values.size())
+                        : MemoryStats.objectBytes(4 + ref));
+        return stats.addValues("value objects", values, valueBytes);
+    }
+
+    /** 从根节点遍历打包布局，按 chunk 类型累计个数、条目数与 int 数 */
+    private void addPackedMemoryStats(MemoryStats stats) {
+        // 依次为 dense、sparse、range、skip
+        long[][] totals = new long[3][4];
+        BitSet visited = new BitSet(chunkData.length);
+        for (int lookupEntry : rootChunk) {
+            countPackedChunk(lookupEntry, visited, totals);
+        }
+        long reachable = 0;
+        String[] names = {"dense", "sparse", "range", "skip"};
+        for (int kind = 0; kind < names.length; kind++) {
+            stats.add(names[kind], totals[0][kind], totals[1][kind], totals[2][kind] * 4);
+            reachable += totals[2][kind];
+        }
+        stats.add(
+                "packed overhead",
+                1,
+                chunkData.length - reachable,
+                MemoryStats.arrayBytes(chunkData.length, 4) - reachable * 4);
     }
 
-    private static String formatBytes(long bytes) {
-        if (bytes < 1024) {
-            return bytes + " B";
-        } else if (bytes < 1024 * 1024) {
-            return String.format("%.2f KB", bytes / 1024.0);
-        } else if (bytes < 1024 * 1024 * 1024) {
-            return String.format("%.2f MB", bytes / (1024.0 * 1024));
+    private void countPackedChunk(int lookupEntry, BitSet visited, long[][] totals) {
+        int type = lookupEntry >>> 30;
+        if (type == TYPE_LEAF) {
+            return;
+        }
+        int offset = packedChunkOffset(lookupEntry);
+        if (visited.get(offset)) {
+            return;
+        }
+        visited.set(offset);
+        int end = offset + packedChunkLength(lookupEntry);
+        int childStart = offset + packedEntryStart(chunkData, lookupEntry);
+        int stride = type == TYPE_SPARSE ? 2 : 1;
+        int kind;
+        int elements;
+        if (type == TYPE_DENSE) {
+            kind = 0;
+            elements = end - childStart;
+        } else if (type == TYPE_SPARSE) {
+            kind = 1;
+            elements = chunkData[offset];
+        } else if ((lookupEntry & 0x3FFFFFFF) >>> 29 == EXT_RANGE) {
+            kind = 2;
+            elements = chunkData[offset] & 0xFFFF;
         } else {
-            return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+            kind = 3;
+            elements = chunkData[offset];
+        }
+        totals[0][kind]++;
+        totals[1][kind] += elements;
+        totals[2][kind] += end - offset;
+        for (int i = childStart; i < end; i += stride) {
+            countPackedChunk(chunkData[i], visited, totals);
         }
     }
 
+    private static <T> List<T> listOrEmpty(List<T> list) {
+        return list == null ? Collections.<T>emptyList() : list;
+    }
+
     private int search(byte index8, int baseDenseChunkIdx) {
         int idx = (index8 & 0xFF) >>> 3;
         short codeWord = denseChunkCodes[(baseDenseChunkIdx << 5) + idx];
@@ -188,6 +730,122 @@ public class FPATree<V> implements IpSearcher<V>, Serializable {
         return denseChunkEntry.lookupEntries[lookupIdx];
     }
 
+    /**
+     * 打包布局下 lookupEntry 指向的 chunk 本身占用的 int 数，不含下层 chunk
+     *
+     * @param lookupEntry 非叶子类型的 lookupEntry
+     * @return chunk 长度
+     */
+    int packedChunkLength(int lookupEntry) {
+        return packedChunkLength(chunkData, lookupEntry);
+    }
+
+    /**
+     * @param chunkData 打包后的 chunk 数组
+     * @param lookupEntry 非叶子类型的 lookupEntry
+     * @return chunk 长度
+     * @see #packedChunkLength(int)
+     */
+    static int packedChunkLength(int[] chunkData, int lookupEntry) {
+        int index = lookupEntry & 0x3FFFFFFF;
+        switch (lookupEntry >>> 30) {
+            case TYPE_DENSE:
+                short lastCodeWord = (short) (chunkData[index + PACKED_DENSE_HEADER - 1] >>> 16);
+                int runs = (lastCodeWord & 0xFF) + Integer.bitCount((lastCodeWord >>> 8) & 0xFF);
+                return PACKED_DENSE_HEADER + runs;
+            case TYPE_SPARSE:
+                return 1 + (chunkData[index] << 1);
+            case TYPE_EXT:
+                int header = chunkData[index & EXT_INDEX_MASK];
+                if (index >>> 29 == EXT_SKIP) {
+                    return 3 + header;
+                }
+                return 1 + ((header >>> 16) >>> 2) + (header & 0xFFFF);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @param lookupEntry 非叶子类型的 lookupEntry
+     * @return 打包布局下 chunk 的起始偏移
+     */
+    static int packedChunkOffset(int lookupEntry) {
+        int index = lookupEntry & 0x3FFFFFFF;
+        return lookupEntry >>> 30 == TYPE_EXT ? index & EXT_INDEX_MASK : index;
+    }
+
+    /**
+     * 打包布局下 chunk 中第一个 lookupEntry 相对 chunk 起点的位置
+     *
+     * <p>Sparse chunk 中 lookupEntry 与 prefix/mask 交替存放，步长为 2；其余类型的 lookupEntry 连续存放到 chunk 末尾
+     *
+     * @param chunkData 打包后的 chunk 数组
+     * @param lookupEntry 非叶子类型的 lookupEntry
+     * @return 相对位置
+     */
+    static int packedEntryStart(int[] chunkData, int lookupEntry) {
+        switch (lookupEntry >>> 30) {
+            case TYPE_DENSE:
+                return PACKED_DENSE_HEADER;
+            case TYPE_SPARSE:
+                return 2;
+            default:
+                int index = lookupEntry & 0x3FFFFFFF;
+                if (index >>> 29 == EXT_SKIP) {
+                    return 2;
+                }
+                return 1 + ((chunkData[index & EXT_INDEX_MASK] >>> 16) >>> 2);
+        }
+    }
+
+    private int searchPackedDense(byte index8, int offset) {
+        int idx = (index8 & 0xFF) >>> 3;
+        short codeWord = (short) (chunkData[offset + (idx >>> 1)] >>> ((idx & 1) << 4));
+        int before = codeWord & 0xFF;
+        int onesInCluster = INDEX_TABLE[((codeWord >>> 8) & 0xFF) >>> (7 - index8 & 0b111)];
+        int lookupIdx = before + onesInCluster - 1;
+        return chunkData[offset + PACKED_DENSE_HEADER + lookupIdx];
+    }
+
+    private int searchPackedSparse(byte index8, int offset) {
+        int end = offset + 1 + (chunkData[offset] << 1);
+        for (int i = offset + 1; i < end; i += 2) {
+            int prefixAndMask = chunkData[i];
+            if ((index8 & (prefixAndMask >>> 8)) == (prefixAndMask & 0xFF)) {
+                return chunkData[i + 1];
+            }
+        }
+        return 0;
+    }
+
+    private int searchPackedRange(byte index8, int offset) {
+        int header = chunkData[offset];
+        int runs = header & 0xFFFF;
+        int boundsLength = header >>> 16;
+        int boundsOffset = offset + 1;
+        int key = index8 & 0xFF;
+        int k = 0;
+        for (int half = boundsLength >>> 1; half > 0; half >>>= 1) {
+            int i = k + half;
+            int bound = chunkData[boundsOffset + (i >>> 2)] >>> ((i & 0b11) << 3) & 0xFF;
+            k = bound <= key ? i : k;
+        }
+        return chunkData[boundsOffset + (boundsLength >>> 2) + Math.min(k, runs - 1)];
+    }
+
+    private static int search(byte index8, RangeChunkEntry rangeChunkEntry) {
+        byte[] bounds = rangeChunkEntry.bounds;
+        int key = index8 & 0xFF;
+        int k = 0;
+        for (int half = bounds.length >>> 1; half > 0; half >>>= 1) {
+            int i = k + half;
+            k = (bounds[i] & 0xFF) <= key ? i : k;
+        }
+        int[] lookupEntries = rangeChunkEntry.lookupEntries;
+        return lookupEntries[Math.min(k, lookupEntries.length - 1)];
+    }
+
     private static int search(byte index8, SparseChunkEntry[] sparseChunkEntries) {
         for (SparseChunkEntry entry : sparseChunkEntries) {
             if (entry.prefix == (index8 & entry.mask)) {
@@ -197,6 +855,329 @@ public class FPATree<V> implements IpSearcher<V>, Serializable {
         return 0;
     }
 
+    /**
+     * 取得打包布局下的根节点数组与 chunk 数组；未打包的树返回打包后的副本，不改变当前树
+     *
+     * @return {rootChunk, chunkData}
+     */
+    int[][] packedArrays() {
+        if (chunkData != null) {
+            return new int[][] {rootChunk, chunkData};
+        }
+        int[] packedRootChunk = rootChunk.clone();
+        int[] packedChunkData =
+                packChunks(
+                        packedRootChunk,
+                        denseChunkCodes,
+                        denseChunkLookupEntries,
+                        sparseChunkList,
+                        rangeChunkList,
+                        skipChunkList,
+                        0,
+                        true);
+        return new int[][] {packedRootChunk, packedChunkData};
+    }
+
+    List<V> resultList() {
+        return resultList;
+    }
+
+    /**
+     * 将所有 chunk 打包进一个 int 数组，并把各 lookupEntry 中的 chunk 编号改写为数组偏移
+     *
+     * @param rootChunk 根节点数组，其中的 lookupEntry 会被原地改写
+     * @param baseOffset 返回数组在最终 chunk 数组中的起始偏移，用于追加到已有 chunk 之后
+     * @param relocateChildren chunk 内的 lookupEntry 是否需要改写；为 false 时其中的索引已是最终偏移
+     * @return 打包后的 chunk 数组
+     */
+    static int[] packChunks(
+            int[] rootChunk,
+            short[] denseChunkCodes,
+            int[][] denseChunkLookupEntries,
+            List<SparseChunkEntry[]> sparseChunkList,
+            List<RangeChunkEntry> rangeChunkList,
+            List<SkipChunkEntry> skipChunkList,
+            int baseOffset,
+            boolean relocateChildren) {
+        int[] denseOffsets = new int[denseChunkLookupEntries.length];
+        int[] sparseOffsets = new int[sparseChunkList.size()];
+        int[] rangeOffsets = new int[rangeChunkList.size()];
+        int[] skipOffsets = new int[skipChunkList.size()];
+        int[][] offsets = {denseOffsets, sparseOffsets, rangeOffsets, skipOffsets};
+        long size = baseOffset;
+        for (int i = 0; i < denseOffsets.length; i++) {
+            denseOffsets[i] = (int) size;
+            size += PACKED_DENSE_HEADER + denseChunkLookupEntries[i].length;
+        }
+        for (int i = 0; i < sparseOffsets.length; i++) {
+            sparseOffsets[i] = (int) size;
+            size += 1 + sparseChunkList.get(i).length * 2L;
+        }
+        for (int i = 0; i < rangeOffsets.length; i++) {
+            RangeChunkEntry rangeChunkEntry = rangeChunkList.get(i);
+            rangeOffsets[i] = (int) size;
+            size += 1 + (rangeChunkEntry.bounds.length >>> 2)
+                    + rangeChunkEntry.lookupEntries.length;
+        }
+        for (int i = 0; i < skipOffsets.length; i++) {
+            skipOffsets[i] = (int) size;
+            size += 2 + skipChunkList.get(i).lookupEntries.length;
+        }
+        if (size > EXT_INDEX_MASK) {
+            throw new IllegalStateException(
+                    "chunk data exceeds packed layout capacity: " + size);
+        }
+
+        int[] chunkData = new int[(int) size - baseOffset];
+        for (int i = 0; i < denseOffsets.length; i++) {
+            int offset = denseOffsets[i] - baseOffset;
+            int codeIdx = i << 5;
+            for (int j = 0; j < PACKED_DENSE_HEADER; j++) {
+                chunkData[offset + j] =
+                        (denseChunkCodes[codeIdx + (j << 1)] & 0xFFFF)
+                                | denseChunkCodes[codeIdx + (j << 1) + 1] << 16;
+            }
+            offset += PACKED_DENSE_HEADER;
+            for (int lookupEntry : denseChunkLookupEntries[i]) {
+                chunkData[offset++] =
+                        relocateChildren ? relocate(lookupEntry, offsets) : lookupEntry;
+            }
+        }
+        for (int i = 0; i < sparseOffsets.length; i++) {
+            SparseChunkEntry[] sparseChunkEntries = sparseChunkList.get(i);
+            int offset = sparseOffsets[i] - baseOffset;
+            chunkData[offset++] = sparseChunkEntries.length;
+            for (SparseChunkEntry entry : sparseChunkEntries) {
+                chunkData[offset++] = (entry.prefix & 0xFF) | (entry.mask & 0xFF) << 8;
+                chunkData[offset++] =
+                        relocateChildren ? relocate(entry.lookupEntry, offsets) : entry.lookupEntry;
+            }
+        }
+        for (int i = 0; i < rangeOffsets.length; i++) {
+            RangeChunkEntry rangeChunkEntry = rangeChunkList.get(i);
+            byte[] bounds = rangeChunkEntry.bounds;
+            int offset = rangeOffsets[i] - baseOffset;
+            chunkData[offset++] = rangeChunkEntry.lookupEntries.length | bounds.length << 16;
+            for (int j = 0; j < bounds.length; j++) {
+                chunkData[offset + (j >>> 2)] |= (bounds[j] & 0xFF) << ((j & 0b11) << 3);
+            }
+            offset += bounds.length >>> 2;
+            for (int lookupEntry : rangeChunkEntry.lookupEntries) {
+                chunkData[offset++] =
+                        relocateChildren ? relocate(lookupEntry, offsets) : lookupEntry;
+            }
+        }
+        for (int i = 0; i < skipOffsets.length; i++) {
+            SkipChunkEntry skipChunkEntry = skipChunkList.get(i);
+            int offset = skipOffsets[i] - baseOffset;
+            chunkData[offset++] = skipChunkEntry.length;
+            chunkData[offset++] = skipChunkEntry.keys;
+            for (int lookupEntry : skipChunkEntry.lookupEntries) {
+                chunkData[offset++] =
+                        relocateChildren ? relocate(lookupEntry, offsets) : lookupEntry;
+            }
+        }
+        for (int i = 0; i < rootChunk.length; i++) {
+            rootChunk[i] = relocate(rootChunk[i], offsets);
+        }
+        return chunkData;
+    }
+
+    /**
+     * @param offsets 各类 chunk 的编号到偏移的映射，依次为 dense、sparse、range、skip
+     */
+    private static int relocate(int lookupEntry, int[][] offsets) {
+        int type = lookupEntry >>> 30;
+        int index = lookupEntry & 0x3FFFFFFF;
+        if (type == TYPE_DENSE) {
+            return Builder.encodeLookupEntry(TYPE_DENSE, offsets[0][index]);
+        } else if (type == TYPE_SPARSE) {
+            return Builder.encodeLookupEntry(TYPE_SPARSE, offsets[1][index]);
+        } else if (type == TYPE_EXT) {
+            int extType = index >>> 29;
+            return Builder.encodeExtLookupEntry(
+                    extType, offsets[2 + extType][index & EXT_INDEX_MASK]);
+        }
+        return lookupEntry;
+    }
+
+    /**
+     * 值为 int 的 FPATree
+     *
+     * <p>叶子 lookupEntry 中的值索引直接下标一个 int 数组，查询不经过 List 与拆箱，索引 0 对应未命中值。
+     * 可由已有的数值型 FPATree 转换得到，也可通过 {@link OfInt.Builder} 从有序前缀直接构建，构建过程中不装箱。
+     */
+    public static final class OfInt implements Serializable {
+        // 不持有值对象的树，只用于 lookupIndex
+        private final FPATree<Void> tree;
+        private final int[] values;
+
+        private OfInt(FPATree<Void> tree, int[] values) {
+            this.tree = tree;
+            this.values = values;
+        }
+
+        /**
+         * 由值为数值的 FPATree 转换，与原树共享 chunk 数据；值复制为 int 数组后不再引用原树的值列表
+         *
+         * @param tree 原树
+         * @param missValue 未命中时返回的值
+         * @return int 值的树
+         */
+        public static OfInt of(FPATree<? extends Number> tree, int missValue) {
+            List<? extends Number> resultList = tree.resultList;
+            int[] values = new int[resultList.size()];
+            values[0] = missValue;
+            for (int i = 1; i < values.length; i++) {
+                values[i] = resultList.get(i).intValue();
+            }
+            return new OfInt(tree.withoutValues(), values);
+        }
+
+        public int search(byte[] ipBytes) {
+            return values[tree.lookupIndex(ipBytes)];
+        }
+
+        /**
+         * @see FPATree#search(int)
+         */
+        public int search(int ipv4) {
+            return values[tree.lookupIndex(ipv4)];
+        }
+
+        /**
+         * @see FPATree#search(long, long)
+         */
+        public int search(long hi, long lo) {
+            return values[tree.lookupIndex(hi, lo)];
+        }
+
+        /**
+         * 批量查询 IPv4 地址，out 先暂存值索引再原地替换为值
+         *
+         * @see FPATree#lookupIndexBatch(int[], int, int[])
+         */
+        public void searchBatch(int[] ips, int n, int[] out) {
+            tree.lookupIndexBatch(ips, n, out);
+            for (int i = 0; i < n; i++) {
+                out[i] = values[out[i]];
+            }
+        }
+
+        /**
+         * 批量查询 IPv6 地址，out 先暂存值索引再原地替换为值
+         *
+         * @see FPATree#lookupIndexBatch(long[], long[], int, int[])
+         */
+        public void searchBatch(long[] his, long[] los, int n, int[] out) {
+            tree.lookupIndexBatch(his, los, n, out);
+            for (int i = 0; i < n; i++) {
+                out[i] = values[out[i]];
+            }
+        }
+
+        /**
+         * @return 未命中时返回的值
+         */
+        public int missValue() {
+            return values[0];
+        }
+
+        /**
+         * 从有序前缀直接构建 {@link OfInt}，要求同 {@link StreamingFPATreeBuilder}
+         *
+         * <p>值到索引的映射使用开放寻址的 int 哈希表，不产生装箱对象
+         */
+        public static class Builder {
+            private final StreamingFPATreeBuilder<Void> streaming;
+            private int[] values = new int[16];
+            private int valueCount = 1;
+            // 开放寻址表：slotKeys 存值，slotIndexes 存值索引，0 表示空位
+            private int[] slotKeys = new int[32];
+            private int[] slotIndexes = new int[32];
+
+            /**
+             * @param ipType 地址类型
+             * @param missValue 未命中时返回的值
+             */
+            public Builder(TrieToFPAConverter.IP_TYPE ipType, int missValue) {
+                this(ipType, missValue, FPATree.Builder());
+            }
+
+            /**
+             * @param ipType 地址类型
+             * @param missValue 未命中时返回的值
+             * @param options 提供 K、区间 chunk、打包布局等构建参数的 Builder
+             */
+            public Builder(
+                    TrieToFPAConverter.IP_TYPE ipType,
+                    int missValue,
+                    FPATree.Builder<Void> options) {
+                this.streaming = new StreamingFPATreeBuilder<>(ipType, options);
+                this.values[0] = missValue;
+            }
+
+            /**
+             * @see StreamingFPATreeBuilder#add(byte[], int, Object)
+             */
+            public Builder add(byte[] prefixKey, int prefixLength, int value) {
+                streaming.addValueIndex(prefixKey, prefixLength, valueIndex(value));
+                return this;
+            }
+
+            public OfInt build() {
+                return new OfInt(
+                        streaming.build().withoutValues(), Arrays.copyOf(values, valueCount));
+            }
+
+            private int valueIndex(int value) {
+                int mask = slotKeys.length - 1;
+                int slot = mix(value) & mask;
+                while (slotIndexes[slot] != 0) {
+                    if (slotKeys[slot] == value) {
+                        return slotIndexes[slot];
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                if (valueCount == values.length) {
+                    values = Arrays.copyOf(values, valueCount << 1);
+                }
+                int index = valueCount++;
+                values[index] = value;
+                slotKeys[slot] = value;
+                slotIndexes[slot] = index;
+                // 装载因子不超过 1/2
+                if (valueCount << 1 > slotKeys.length) {
+                    rehash();
+                }
+                return index;
+            }
+
+            private void rehash() {
+                int[] oldKeys = slotKeys;
+                int[] oldIndexes = slotIndexes;
+                slotKeys = new int[oldKeys.length << 1];
+                slotIndexes = new int[oldKeys.length << 1];
+                int mask = slotKeys.length - 1;
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldIndexes[i] != 0) {
+                        int slot = mix(oldKeys[i]) & mask;
+                        while (slotIndexes[slot] != 0) {
+                            slot = (slot + 1) & mask;
+                        }
+                        slotKeys[slot] = oldKeys[i];
+                        slotIndexes[slot] = oldIndexes[i];
+                    }
+                }
+            }
+
+            private static int mix(int value) {
+                int h = value * 0x9E3779B9;
+                return h ^ (h >>> 16);
+            }
+        }
+    }
+
     public static <V> Builder<V> Builder() {
         return new Builder<>();
     }
@@ -211,10 +1192,17 @@ public class FPATree<V> implements IpSearcher<V>, Serializable {
 
         List<DenseChunkEntry> denseChunkList = new ArrayList<>();
         List<SparseChunkEntry[]> sparseChunkList = new ArrayList<>();
+        List<RangeChunkEntry> rangeChunkList = new ArrayList<>();
+        List<SkipChunkEntry> skipChunkList = new ArrayList<>();
         FPATree<V> tree;
 
         ForwardingPortArray<V> fpa_root;
         int K = DEFAULT_K;
+        int maxRangeRuns = DEFAULT_MAX_RANGE_RUNS;
+        int probeWeight = DEFAULT_PROBE_WEIGHT;
+        boolean packed;
+        boolean skipNodes = true;
+        int parallelism = 1;
         short[] denseChunkCodes;
         int[][] denseChunkLookupEntries;
 
@@ -223,6 +1211,76 @@ public class FPATree<V> implements IpSearcher<V>, Serializable {
             return this;
         }
 
+        /**
+         * 区间 chunk 可容纳的最大段数，超过时只在 dense / sparse 间选择；0 表示不使用区间 chunk
+         *
+         * @param maxRangeRuns 最大段数，不超过 256
+         * @return this
+         */
+        public Builder<V> maxRangeRuns(int maxRangeRuns) {
+            if (maxRangeRuns < 0 || maxRangeRuns > 256) {
+                throw new IllegalArgumentException("maxRangeRuns must be between 0 and 256");
+            }
+            this.maxRangeRuns = maxRangeRuns;
+            return this;
+        }
+
+        /**
+         * 选择 chunk 编码时，一次查询内访存/比较相对于 1 字节内存的代价
+         *
+         * <p>每个 chunk 的代价为 {@code 字节数 + probeWeight * 探测次数}，取代价最小的编码
+         *
+         * @param probeWeight 探测代价权重
+         * @return this
+         */
+        public Builder<V> probeWeight(int probeWeight) {
+            if (probeWeight < 0) {
+                throw new IllegalArgumentException("probeWeight must not be negative");
+            }
+            this.probeWeight = probeWeight;
+            return this;
+        }
+
+        /**
+         * 是否使用打包布局：所有 chunk 存放在同一个 int 数组中，省去每个 chunk 的数组对象和 List 间接访问
+         *
+         * @param packed 是否打包
+         * @return this
+         */
+        public Builder<V> packed(boolean packed) {
+            this.packed = packed;
+            return this;
+        }
+
+        /**
+         * 是否把只有一个槽位不同的连续若干层合并为跳跃节点，查询时一次比较多个字节
+         *
+         * <p>跳跃节点由下层向上层合并，要求子节点由同一个 Builder 编码
+         *
+         * @param skipNodes 是否使用跳跃节点
+         * @return this
+         */
+        public Builder<V> skipNodes(boolean skipNodes) {
+            this.skipNodes = skipNodes;
+            return this;
+        }
+
+        /**
+         * 构建时使用的线程数；大于 1 时根节点按段拆分，由 fork-join 线程池并行编码后合并
+         *
+         * <p>合并按段的顺序进行，构建结果与单线程构建完全相同
+         *
+         * @param parallelism 线程数
+         * @return this
+         */
+        public Builder<V> parallelism(int parallelism) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("parallelism must be positive");
+            }
+            this.parallelism = parallelism;
+            return this;
+        }
+
         public Builder<V> fpa(ForwardingPortArray<V> fpa_root) {
             this.fpa_root = fpa_root;
             return this;
@@ -230,20 +1288,173 @@ public class FPATree<V> implements IpSearcher<V>, Serializable {
 
         public FPATree<V> build() {
             tree = new FPATree<>();
+            tree.ipType = fpa_root.ipType;
             int size_l1 = fpa_root.table.size();
-            for (int i = 0; i < size_l1; i++) {
-                tree.rootChunk[i] = processLookupEntry(fpa_root.table.get(i));
+            if (parallelism > 1) {
+                buildParallel(size_l1);
+            } else {
+                for (int i = 0; i < size_l1; i++) {
+                    tree.rootChunk[i] = processLookupEntry(fpa_root.table.get(i));
+                }
             }
+            return finish();
+        }
+
+        // ========== 并行构建 ==========
+
+        /**
+         * 每个线程拆分出的根节点段数，段越多负载越均衡
+         *
+         * <p>各段由独立的 Builder 编码，chunk 索引与值索引都从 0 开始，合并时按段顺序重定位
+         */
+        private static final int SLICES_PER_THREAD = 8;
+
+        private void buildParallel(int rootSize) {
+            int sliceCount = Math.min(rootSize, parallelism * SLICES_PER_THREAD);
+            int sliceSize = (rootSize + sliceCount - 1) / sliceCount;
+            List<ForkJoinTask<Builder<V>>> slices = new ArrayList<>();
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                for (int from = 0; from < rootSize; from += sliceSize) {
+                    int start = from;
+                    int end = Math.min(rootSize, from + sliceSize);
+                    slices.add(pool.submit(() -> encodeSlice(start, end)));
+                }
+                for (int i = 0; i < slices.size(); i++) {
+                    int start = i * sliceSize;
+                    int end = Math.min(rootSize, start + sliceSize);
+                    mergeSlice(slices.get(i).join(), start, end);
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        /** 用独立的 Builder 编码根节点 [start, end) 段，结果写入 tree.rootChunk 的对应位置 */
+        private Builder<V> encodeSlice(int start, int end) {
+            Builder<V> worker = new Builder<>();
+            worker.K = K;
+            worker.maxRangeRuns = maxRangeRuns;
+            worker.probeWeight = probeWeight;
+            worker.skipNodes = skipNodes;
+            for (int i = start; i < end; i++) {
+                tree.rootChunk[i] = worker.processLookupEntry(fpa_root.table.get(i));
+            }
+            return worker;
+        }
+
+        /** 将根节点 [start, end) 段的 chunk 与值追加到本 Builder，并把其中的 lookupEntry 重定位 */
+        private void mergeSlice(Builder<V> worker, int start, int end) {
+            int[] valueIndexes = new int[worker.resultList.size()];
+            for (int i = 1; i < valueIndexes.length; i++) {
+                valueIndexes[i] = getValueIndex(worker.resultList.get(i));
+            }
+            // 各类 chunk 在合并后列表中的起始索引，依次为 dense、sparse、range、skip
+            int[] bases = {
+                denseChunkList.size(),
+                sparseChunkList.size(),
+                rangeChunkList.size(),
+                skipChunkList.size()
+            };
+
+            for (DenseChunkEntry denseChunkEntry : worker.denseChunkList) {
+                int[] lookupEntries = denseChunkEntry.lookupEntries;
+                for (int i = 0; i < lookupEntries.length; i++) {
+                    lookupEntries[i] = rebase(lookupEntries[i], valueIndexes, bases);
+                }
+            }
+            for (SparseChunkEntry[] sparseChunkArray : worker.sparseChunkList) {
+                for (SparseChunkEntry entry : sparseChunkArray) {
+                    entry.lookupEntry = rebase(entry.lookupEntry, valueIndexes, bases);
+                }
+            }
+            for (RangeChunkEntry rangeChunkEntry : worker.rangeChunkList) {
+                int[] lookupEntries = rangeChunkEntry.lookupEntries;
+                for (int i = 0; i < lookupEntries.length; i++) {
+                    lookupEntries[i] = rebase(lookupEntries[i], valueIndexes, bases);
+                }
+            }
+            for (SkipChunkEntry skipChunkEntry : worker.skipChunkList) {
+                int[] lookupEntries = skipChunkEntry.lookupEntries;
+                for (int i = 0; i < lookupEntries.length; i++) {
+                    lookupEntries[i] = rebase(lookupEntries[i], valueIndexes, bases);
+                }
+            }
+            denseChunkList.addAll(worker.denseChunkList);
+            sparseChunkList.addAll(worker.sparseChunkList);
+            rangeChunkList.addAll(worker.rangeChunkList);
+            skipChunkList.addAll(worker.skipChunkList);
+            for (int i = start; i < end; i++) {
+                tree.rootChunk[i] = rebase(tree.rootChunk[i], valueIndexes, bases);
+            }
+        }
+
+        private static int rebase(int lookupEntry, int[] valueIndexes, int[] bases) {
+            int type = lookupEntry >>> 30;
+            int index = lookupEntry & 0x3FFFFFFF;
+            switch (type) {
+                case TYPE_LEAF:
+                    return encodeLookupEntry(TYPE_LEAF, valueIndexes[index]);
+                case TYPE_DENSE:
+                    return encodeLookupEntry(TYPE_DENSE, bases[0] + index);
+                case TYPE_SPARSE:
+                    return encodeLookupEntry(TYPE_SPARSE, bases[1] + index);
+                default:
+                    int extType = index >>> 29;
+                    return encodeExtLookupEntry(
+                            extType, bases[2 + extType] + (index & EXT_INDEX_MASK));
+            }
+        }
+
+        /**
+         * 以已编码好的根节点数组完成构建，供不经过 ForwardingPortArray 的构建方式使用
+         *
+         * @param ipType 地址类型
+         * @param rootChunk 根节点数组，其中的非叶子 lookupEntry 引用本 Builder 中的 chunk
+         * @return 构建好的树
+         */
+        FPATree<V> build(TrieToFPAConverter.IP_TYPE ipType, int[] rootChunk) {
+            tree = new FPATree<>(ipType, rootChunk, null, null);
+            return finish();
+        }
+
+        private FPATree<V> finish() {
             transformDenseChunk();
-            tree.denseChunkCodes = denseChunkCodes;
-            tree.denseChunkLookupEntries = denseChunkLookupEntries;
-            tree.sparseChunkList = sparseChunkList;
+            if (packed) {
+                tree.chunkData =
+                        packChunks(
+                                tree.rootChunk,
+                                denseChunkCodes,
+                                denseChunkLookupEntries,
+                                sparseChunkList,
+                                rangeChunkList,
+                                skipChunkList,
+                                0,
+                                true);
+            } else {
+                trimToSize(sparseChunkList);
+                trimToSize(rangeChunkList);
+                trimToSize(skipChunkList);
+                tree.denseChunkCodes = denseChunkCodes;
+                tree.denseChunkLookupEntries = denseChunkLookupEntries;
+                tree.sparseChunkList = sparseChunkList;
+                tree.rangeChunkList = rangeChunkList;
+                tree.skipChunkList = skipChunkList;
+            }
+            trimToSize(resultList);
             tree.resultList = resultList;
             return tree;
         }
 
+        /** 构建完成后不再追加，释放 ArrayList 的扩容余量 */
+        private static void trimToSize(List<?> list) {
+            if (list instanceof ArrayList) {
+                ((ArrayList<?>) list).trimToSize();
+            }
+        }
+
         // 将 DenseChunkEntry展开
-        private void transformDenseChunk() {
+        void transformDenseChunk() {
             int size = denseChunkList.size();
             denseChunkCodes = new short[size * 32];
             denseChunkLookupEntries = new int[size][];
@@ -259,45 +1470,163 @@ public class FPATree<V> implements IpSearcher<V>, Serializable {
          * @return 编码后的 32 位整数
          */
         private int processLayer(ForwardingPortArray<V> root) {
+            int[] slotEntries = new int[root.table.size()];
+            ForwardingPortArray.FPANode<V> p1 = null;
+            int lookupEntry = 0;
+            for (int i = 0; i < slotEntries.length; i++) {
+                ForwardingPortArray.FPANode<V> p2 = root.table.get(i);
+                if (!Objects.equals(p1, p2)) {
+                    p1 = p2;
+                    lookupEntry = processLookupEntry(p1);
+                }
+                slotEntries[i] = lookupEntry;
+            }
+            return encodeChunk(slotEntries);
+        }
+
+        /**
+         * 按代价模型在 dense / sparse / range 三种编码中为一个 256 槽位的 chunk 选择存储方式
+         *
+         * @param slotEntries 256 个槽位各自的 lookupEntry
+         * @return 编码后的 32 位整数
+         */
+        int encodeChunk(int[] slotEntries) {
+            if (skipNodes) {
+                int slot = singleChildSlot(slotEntries);
+                if (slot >= 0) {
+                    return encodeSkip(slot, slotEntries[slot], slotEntries[slot == 0 ? 1 : 0]);
+                }
+            }
 
             DenseChunkEntry denseChunkEntry = new DenseChunkEntry();
-            LinkedList<Integer> lookupEntries = new LinkedList<>();
-            ForwardingPortArray.FPANode<V> p1 = null;
-            int before = 0;
+            int[] lookupEntries = new int[256];
+            byte[] runStarts = new byte[256];
+            int runs = 0;
             for (int i = 0; i < 32; i++) {
+                int before = runs;
                 for (int j = 0; j < 8; j++) {
-                    ForwardingPortArray.FPANode<V> p2 = root.table.get(i * 8 + j);
-                    if (!Objects.equals(p1, p2)) {
-                        p1 = p2;
-                        lookupEntries.add(processLookupEntry(p1));
+                    int slot = i * 8 + j;
+                    if (runs == 0 || slotEntries[slot] != lookupEntries[runs - 1]) {
+                        runStarts[runs] = (byte) slot;
+                        lookupEntries[runs++] = slotEntries[slot];
                         denseChunkEntry.codeWords[i] |= (short) (1 << (7 - j));
                     }
                 }
                 denseChunkEntry.codeWords[i] <<= 8;
                 denseChunkEntry.codeWords[i] |= (short) before;
-                before = lookupEntries.size();
             }
-            denseChunkEntry.lookupEntries =
-                    lookupEntries.stream().mapToInt(Integer::intValue).toArray();
+            denseChunkEntry.lookupEntries = Arrays.copyOf(lookupEntries, runs);
 
-            if (lookupEntries.size() <= K * 4) {
+            // 各编码的字节数按打包布局计算，探测次数为一次查询在 chunk 内的访存/比较次数
+            long denseCost = chunkCost(PACKED_DENSE_HEADER * 4 + runs * 4, 2);
+            SparseChunkEntry[] sparseChunkArray = null;
+            long sparseCost = Long.MAX_VALUE;
+            if (runs <= K * 4) {
                 // 尝试退化到稀疏结构
-                int layerIdx = processSparseLayer(root, denseChunkEntry);
-                if (layerIdx >= 0) {
-                    return encodeLookupEntry(TYPE_SPARSE, layerIdx);
+                sparseChunkArray = buildSparseLayer(denseChunkEntry);
+                if (sparseChunkArray != null) {
+                    int size = sparseChunkArray.length;
+                    sparseCost = chunkCost(4 + size * 8, size);
                 }
             }
+            long rangeCost = Long.MAX_VALUE;
+            int boundsLength = rangeBoundsLength(runs);
+            if (runs <= maxRangeRuns) {
+                rangeCost =
+                        chunkCost(
+                                4 + boundsLength + runs * 4,
+                                Integer.numberOfTrailingZeros(boundsLength) + 1);
+            }
+
+            if (sparseCost <= denseCost && sparseCost <= rangeCost) {
+                sparseChunkList.add(sparseChunkArray);
+                return encodeLookupEntry(TYPE_SPARSE, sparseChunkList.size() - 1);
+            }
+            if (rangeCost < denseCost) {
+                RangeChunkEntry rangeChunkEntry = new RangeChunkEntry();
+                rangeChunkEntry.bounds = new byte[boundsLength];
+                Arrays.fill(rangeChunkEntry.bounds, (byte) 0xFF);
+                System.arraycopy(runStarts, 0, rangeChunkEntry.bounds, 0, runs);
+                rangeChunkEntry.lookupEntries = denseChunkEntry.lookupEntries;
+                rangeChunkList.add(rangeChunkEntry);
+                return encodeExtLookupEntry(EXT_RANGE, rangeChunkList.size() - 1);
+            }
 
             int lookupEntry = encodeLookupEntry(TYPE_DENSE, denseChunkList.size());
             denseChunkList.add(denseChunkEntry);
             return lookupEntry;
         }
 
-        private int processSparseLayer(
-                ForwardingPortArray<V> root, DenseChunkEntry denseChunkEntry) {
+        /**
+         * @return 除一个槽位外其余槽位都是同一个叶子时返回该槽位，否则返回 -1
+         */
+        private static int singleChildSlot(int[] slotEntries) {
+            int other = slotEntries[0] == slotEntries[1] ? slotEntries[0] : slotEntries[2];
+            if (other >>> 30 != TYPE_LEAF) {
+                return -1;
+            }
+            int slot = -1;
+            for (int i = 0; i < slotEntries.length; i++) {
+                if (slotEntries[i] != other) {
+                    if (slot >= 0) {
+                        return -1;
+                    }
+                    slot = i;
+                }
+            }
+            return slot;
+        }
+
+        /**
+         * 为只有一个子槽位的 chunk 编码跳跃节点；子节点是同一 Builder 中未满的跳跃节点时， 把本层并入其前端
+         *
+         * @param slot 子槽位
+         * @param child 子槽位的 lookupEntry
+         * @param other 其余槽位的叶子 lookupEntry
+         * @return 编码后的 32 位整数
+         */
+        private int encodeSkip(int slot, int child, int other) {
+            if (child >>> 29 == SKIP_TAG) {
+                SkipChunkEntry skipChunkEntry = skipChunkList.get(child & EXT_INDEX_MASK);
+                if (skipChunkEntry.length < MAX_SKIP_LENGTH) {
+                    int[] lookupEntries = new int[skipChunkEntry.lookupEntries.length + 1];
+                    lookupEntries[0] = other;
+                    System.arraycopy(
+                            skipChunkEntry.lookupEntries,
+                            0,
+                            lookupEntries,
+                            1,
+                            skipChunkEntry.lookupEntries.length);
+                    skipChunkEntry.keys = slot << 24 | skipChunkEntry.keys >>> 8;
+                    skipChunkEntry.length++;
+                    skipChunkEntry.lookupEntries = lookupEntries;
+                    return child;
+                }
+            }
+            SkipChunkEntry skipChunkEntry = new SkipChunkEntry();
+            skipChunkEntry.keys = slot << 24;
+            skipChunkEntry.length = 1;
+            skipChunkEntry.lookupEntries = new int[] {other, child};
+            skipChunkList.add(skipChunkEntry);
+            return encodeExtLookupEntry(EXT_SKIP, skipChunkList.size() - 1);
+        }
+
+        private long chunkCost(int bytes, int probes) {
+            return bytes + (long) probeWeight * probes;
+        }
+
+        /** 区间 chunk 边界数组长度：不小于段数的 2 的幂，至少为 4 以便打包进一个 int */
+        private static int rangeBoundsLength(int runs) {
+            return Math.max(4, Integer.highestOneBit(runs - 1) << 1);
+        }
+
+        /**
+         * @return 稀疏 chunk 的 entry 数组，entry 数量超过 K 时返回 null
+         */
+        private SparseChunkEntry[] buildSparseLayer(DenseChunkEntry denseChunkEntry) {
             BitTrie<Integer> trie = new BitTrie<>();
             byte[] bytes = new byte[1];
-            for (int i = 0; i < root.table.size(); i++) {
+            for (int i = 0; i < 256; i++) {
                 bytes[0] = (byte) i; // 把索引i作为key（0-255）
                 int lookupEntry = search(bytes[0], denseChunkEntry);
                 trie.put(bytes, 8, lookupEntry);
@@ -322,18 +1651,14 @@ public class FPATree<V> implements IpSearcher<V>, Serializable {
                         sparseChunkEntries.add(entry);
                     });
             if (sparseChunkEntries.size() > K) {
-                return -1;
+                return null;
             }
 
             Collections.sort(sparseChunkEntries);
-            SparseChunkEntry[] sparseChunkArray =
-                    sparseChunkEntries.toArray(new SparseChunkEntry[0]);
-
-            sparseChunkList.add(sparseChunkArray);
-            return sparseChunkList.size() - 1;
+            return sparseChunkEntries.toArray(new SparseChunkEntry[0]);
         }
 
-        private int processLookupEntry(ForwardingPortArray.FPANode<V> fpaNode) {
+        int processLookupEntry(ForwardingPortArray.FPANode<V> fpaNode) {
             if (fpaNode.next == null) {
                 // [情况1] 叶子节点：直接存储值索引
                 return encodeLookupEntry(TYPE_LEAF, getValueIndex(fpaNode.value));
@@ -350,11 +1675,22 @@ public class FPATree<V> implements IpSearcher<V>, Serializable {
          * @param index 索引值
          * @return 编码后的 32 位整数
          */
-        private static int encodeLookupEntry(int type, int index) {
+        static int encodeLookupEntry(int type, int index) {
             return (type << 30) | (index & 0x3FFFFFFF);
         }
 
-        private int getValueIndex(V value) {
+        /**
+         * 编码扩展类型的 lookupEntry
+         *
+         * @param extType 扩展子类型 (EXT_RANGE, EXT_SKIP)
+         * @param index 索引值，最多 29 位
+         * @return 编码后的 32 位整数
+         */
+        private static int encodeExtLookupEntry(int extType, int index) {
+            return encodeLookupEntry(TYPE_EXT, extType << 29 | (index & EXT_INDEX_MASK));
+        }
+
+        int getValueIndex(V value) {
             if (value == null) {
                 return 0; // null 值索引为 0
             }
@@ -0,0 +1,567 @@
+package com.github.abjfh.fpa.impl;
+
+import static com.github.abjfh.fpa.impl.FPATree.*;
+
+import com.github.abjfh.fpa.ValueCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+import java.util.zip.CRC32;
+
+/**
+ * 两个 FPATree 版本之间的二进制增量：变化的根槽位、新增的 chunk 与新增的值
+ *
+ * <p>两次独立构建的树即使内容相同，chunk 的位置也不同，因此增量基于规范形式计算：按根槽位顺序深度优先遍历，
+ * 子 chunk 先于父 chunk 写入，内容完全相同的 chunk 只保留一份，值按编码后的字节去重并按首次出现的顺序编号。
+ * 逻辑结构相同的树，规范形式逐字节相同。
+ *
+ * <p>增量中的 lookupEntry 以基础版本的规范形式为坐标，超出基础版本 chunk 数组或值表长度的部分指向增量中新增的内容。
+ * 应用时在基础版本的规范形式之后追加新增内容，再重新规范化以去掉不再可达的 chunk 和值，
+ * 结果与目标版本的规范形式逐字节相同。基础版本与结果分别以规范形式的 CRC32 校验，
+ * 应用得到的树可以直接作为下一个增量的基础版本。
+ *
+ * <p>格式（小端序）：
+ *
+ * <pre>
+ * 0   int   魔数 "FPAD"
+ * 4   int   版本号
+ * 8   long  基础版本规范形式的 CRC32
+ * 16  long  目标版本规范形式的 CRC32
+ * 24  int   基础版本 chunk 数组长度（int 个数）
+ * 28  int   基础版本值数量（含索引 0 的 null）
+ * 32  int   变化的根槽位数量
+ * 36  int   新增 chunk 数组长度（int 个数）
+ * 40  int   新增值数量
+ * 44  int   新增值数据字节数
+ * 48  long  CRC32 校验和，覆盖头部之后的全部内容
+ * 56  int[] 变化的根槽位，槽位与新的 lookupEntry 交替存放
+ *     int[] 新增 chunk
+ *     int[] 新增值偏移，共 新增值数量 + 1 个，相对于值数据起点
+ *     byte[] 新增值数据
+ * </pre>
+ *
+ * @param <V> 值类型
+ */
+public final class FPATreeDelta<V> {
+    // ========== 常量定义 ==========
+
+    static final int MAGIC = 0x44415046; // "FPAD"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 56;
+
+    private final ValueCodec<V> codec;
+    private final long baseChecksum;
+    private final long targetChecksum;
+    private final int baseChunkLength;
+    private final int baseValueCount;
+    private final int[] rootChanges;
+    private final int[] chunks;
+    private final byte[][] values;
+
+    private FPATreeDelta(
+            ValueCodec<V> codec,
+            long baseChecksum,
+            long targetChecksum,
+            int baseChunkLength,
+            int baseValueCount,
+            int[] rootChanges,
+            int[] chunks,
+            byte[][] values) {
+        this.codec = codec;
+        this.baseChecksum = baseChecksum;
+        this.targetChecksum = targetChecksum;
+        this.baseChunkLength = baseChunkLength;
+        this.baseValueCount = baseValueCount;
+        this.rootChanges = rootChanges;
+        this.chunks = chunks;
+        this.values = values;
+    }
+
+    // ========== 计算与应用 ==========
+
+    /**
+     * 计算从 base 到 target 的增量
+     *
+     * @param base 基础版本
+     * @param target 目标版本
+     * @param codec 值编码器，值以编码后的字节比较
+     * @return 增量
+     * @throws IllegalArgumentException 两个版本的地址类型不同
+     */
+    public static <V> FPATreeDelta<V> diff(
+            FPATree<V> base, FPATree<V> target, ValueCodec<V> codec) {
+        if (base.ipType() != null && target.ipType() != null && base.ipType() != target.ipType()) {
+            throw new IllegalArgumentException("base and target must have the same address type");
+        }
+        Canonical<V> from = canonicalize(base, codec);
+        Canonical<V> to = canonicalize(target, codec);
+
+        // 目标版本的值在增量坐标中的索引：基础版本已有的值沿用原索引，其余依次追加
+        int[] valueIndexes = new int[to.values.size()];
+        List<byte[]> addedValues = new ArrayList<>();
+        for (int i = 1; i < valueIndexes.length; i++) {
+            Integer baseIndex = from.valueIndexes.get(ByteBuffer.wrap(to.encodedValues.get(i)));
+            if (baseIndex != null) {
+                valueIndexes[i] = baseIndex;
+            } else {
+                valueIndexes[i] = from.values.size() + addedValues.size();
+                addedValues.add(to.encodedValues.get(i));
+            }
+        }
+
+        // 规范形式中子 chunk 先于父 chunk，按顺序处理时子 chunk 的新坐标都已确定
+        int[] chunkEntries = new int[to.chunkData.length];
+        IntList addedChunks = new IntList();
+        for (int i = 0; i < to.chunkEntries.size; i++) {
+            int lookupEntry = to.chunkEntries.values[i];
+            int offset = packedChunkOffset(lookupEntry);
+            int[] content = chunkContent(to.chunkData, lookupEntry);
+            forEachEntry(
+                    to.chunkData,
+                    lookupEntry,
+                    content,
+                    entry -> translate(entry, valueIndexes, chunkEntries));
+            Integer baseEntry = from.chunkIndex.get(new ChunkKey(lookupEntry, content));
+            if (baseEntry != null) {
+                chunkEntries[offset] = baseEntry;
+            } else {
+                chunkEntries[offset] =
+                        withOffset(lookupEntry, from.chunkData.length + addedChunks.size);
+                addedChunks.addAll(content);
+            }
+        }
+
+        IntList rootChanges = new IntList();
+        for (int slot = 0; slot < to.rootChunk.length; slot++) {
+            int lookupEntry = translate(to.rootChunk[slot], valueIndexes, chunkEntries);
+            if (lookupEntry != from.rootChunk[slot]) {
+                rootChanges.add(slot);
+                rootChanges.add(lookupEntry);
+            }
+        }
+
+        return new FPATreeDelta<>(
+                codec,
+                from.checksum,
+                to.checksum,
+                from.chunkData.length,
+                from.values.size(),
+                rootChanges.toArray(),
+                addedChunks.toArray(),
+                addedValues.toArray(new byte[0][]));
+    }
+
+    private static int translate(int lookupEntry, int[] valueIndexes, int[] chunkEntries) {
+        if (lookupEntry >>> 30 == TYPE_LEAF) {
+            return valueIndexes[lookupEntry];
+        }
+        return chunkEntries[packedChunkOffset(lookupEntry)];
+    }
+
+    /**
+     * 将增量应用到基础版本，得到目标版本
+     *
+     * @param base 基础版本，须与计算增量时的基础版本逻辑结构相同
+     * @return 目标版本，采用打包布局，地址类型与 base 相同
+     * @throws IllegalArgumentException base 与增量的基础版本不一致
+     * @throws IllegalStateException 应用结果与目标版本的校验和不一致
+     */
+    public FPATree<V> apply(FPATree<V> base) {
+        Canonical<V> from = canonicalize(base, codec);
+        if (from.checksum != baseChecksum
+                || from.chunkData.length != baseChunkLength
+                || from.values.size() != baseValueCount) {
+            throw new IllegalArgumentException("tree does not match the base version of the delta");
+        }
+
+        int[] rootChunk = from.rootChunk.clone();
+        for (int i = 0; i < rootChanges.length; i += 2) {
+            rootChunk[rootChanges[i]] = rootChanges[i + 1];
+        }
+        int[] chunkData = Arrays.copyOf(from.chunkData, baseChunkLength + chunks.length);
+        System.arraycopy(chunks, 0, chunkData, baseChunkLength, chunks.length);
+        List<V> resultList = new ArrayList<>(from.values);
+        for (byte[] value : values) {
+            resultList.add(codec.decode(ByteBuffer.wrap(value), 0, value.length));
+        }
+
+        Canonical<V> to = canonicalize(rootChunk, chunkData, resultList, codec);
+        if (to.checksum != targetChecksum) {
+            throw new IllegalStateException("delta produced a tree that does not match the target");
+        }
+        return new FPATree<>(base.ipType(), to.rootChunk, to.chunkData, to.values);
+    }
+
+    /**
+     * @return 变化的根槽位数量
+     */
+    public int changedRootSlots() {
+        return rootChanges.length >>> 1;
+    }
+
+    /**
+     * @return 新增 chunk 占用的 int 数
+     */
+    public int addedChunkInts() {
+        return chunks.length;
+    }
+
+    /**
+     * @return 新增值的数量
+     */
+    public int addedValues() {
+        return values.length;
+    }
+
+    // ========== 序列化 ==========
+
+    public byte[] toByteArray() {
+        int valueDataLength = 0;
+        for (byte[] value : values) {
+            valueDataLength += value.length;
+        }
+        long size =
+                HEADER_SIZE
+                        + 4L * rootChanges.length
+                        + 4L * chunks.length
+                        + 4L * (values.length + 1)
+                        + valueDataLength;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalStateException("delta too large: " + size + " bytes");
+        }
+
+        ByteBuffer out = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putLong(baseChecksum);
+        out.putLong(targetChecksum);
+        out.putInt(baseChunkLength);
+        out.putInt(baseValueCount);
+        out.putInt(rootChanges.length >>> 1);
+        out.putInt(chunks.length);
+        out.putInt(values.length);
+        out.putInt(valueDataLength);
+        out.putLong(0);
+
+        out.asIntBuffer().put(rootChanges);
+        out.position(out.position() + 4 * rootChanges.length);
+        out.asIntBuffer().put(chunks);
+        out.position(out.position() + 4 * chunks.length);
+        int valueOffset = 0;
+        out.putInt(0);
+        for (byte[] value : values) {
+            valueOffset += value.length;
+            out.putInt(valueOffset);
+        }
+        for (byte[] value : values) {
+            out.put(value);
+        }
+        out.putLong(48, checksum(out.array()));
+        return out.array();
+    }
+
+    /**
+     * 读取 {@link #toByteArray()} 写出的增量
+     *
+     * @param bytes 增量数据
+     * @param codec 值解码器
+     * @return 增量
+     * @throws IOException 格式、版本或校验和不匹配
+     */
+    public static <V> FPATreeDelta<V> fromByteArray(byte[] bytes, ValueCodec<V> codec)
+            throws IOException {
+        if (bytes.length < HEADER_SIZE) {
+            throw new IOException("invalid FPATree delta size: " + bytes.length);
+        }
+        ByteBuffer in = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (in.getInt(0) != MAGIC) {
+            throw new IOException("not an FPATree delta");
+        }
+        int version = in.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("unsupported FPATree delta version: " + version);
+        }
+        long baseChecksum = in.getLong(8);
+        long targetChecksum = in.getLong(16);
+        int baseChunkLength = in.getInt(24);
+        int baseValueCount = in.getInt(28);
+        int rootChangeCount = in.getInt(32);
+        int chunkLength = in.getInt(36);
+        int valueCount = in.getInt(40);
+        int valueDataLength = in.getInt(44);
+        long expectedSize =
+                HEADER_SIZE
+                        + 8L * rootChangeCount
+                        + 4L * chunkLength
+                        + 4L * (valueCount + 1L)
+                        + valueDataLength;
+        if (baseChunkLength < 0
+                || baseValueCount < 1
+                || rootChangeCount < 0
+                || rootChangeCount > 65536
+                || chunkLength < 0
+                || valueCount < 0
+                || valueDataLength < 0
+                || expectedSize != bytes.length) {
+            throw new IOException("corrupted FPATree delta header");
+        }
+        if (checksum(bytes) != in.getLong(48)) {
+            throw new IOException("FPATree delta checksum mismatch");
+        }
+
+        in.position(HEADER_SIZE);
+        int[] rootChanges = new int[rootChangeCount << 1];
+        in.asIntBuffer().get(rootChanges);
+        in.position(in.position() + 4 * rootChanges.length);
+        int[] chunks = new int[chunkLength];
+        in.asIntBuffer().get(chunks);
+        in.position(in.position() + 4 * chunks.length);
+        int[] valueOffsets = new int[valueCount + 1];
+        in.asIntBuffer().get(valueOffsets);
+        in.position(in.position() + 4 * valueOffsets.length);
+        byte[][] values = new byte[valueCount][];
+        for (int i = 0; i < valueCount; i++) {
+            int length = valueOffsets[i + 1] - valueOffsets[i];
+            if (length < 0 || length > in.remaining()) {
+                throw new IOException("corrupted FPATree delta value offsets");
+            }
+            values[i] = new byte[length];
+            in.get(values[i]);
+        }
+        for (int i = 0; i < rootChanges.length; i += 2) {
+            if (rootChanges[i] < 0 || rootChanges[i] >= 65536) {
+                throw new IOException("corrupted FPATree delta root slot: " + rootChanges[i]);
+            }
+        }
+        return new FPATreeDelta<>(
+                codec,
+                baseChecksum,
+                targetChecksum,
+                baseChunkLength,
+                baseValueCount,
+                rootChanges,
+                chunks,
+                values);
+    }
+
+    private static long checksum(byte[] bytes) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE);
+        return crc32.getValue();
+    }
+
+    // ========== 规范形式 ==========
+
+    /** 树的规范形式及计算增量所需的索引 */
+    private static final class Canonical<V> {
+        int[] rootChunk;
+        int[] chunkData;
+        final List<V> values = new ArrayList<>();
+        final List<byte[]> encodedValues = new ArrayList<>();
+        // 编码后的值到规范索引
+        final Map<ByteBuffer, Integer> valueIndexes = new HashMap<>();
+        // chunk 内容到规范形式中的 lookupEntry
+        final Map<ChunkKey, Integer> chunkIndex = new HashMap<>();
+        // 各 chunk 的 lookupEntry，按写入顺序
+        final IntList chunkEntries = new IntList();
+        long checksum;
+    }
+
+    private static <V> Canonical<V> canonicalize(FPATree<V> tree, ValueCodec<V> codec) {
+        int[][] packed = tree.packedArrays();
+        return canonicalize(packed[0], packed[1], tree.resultList(), codec);
+    }
+
+    private static <V> Canonical<V> canonicalize(
+            int[] rootChunk, int[] chunkData, List<V> values, ValueCodec<V> codec) {
+        Canonical<V> canonical = new Canonical<>();
+        canonical.values.add(null);
+        canonical.encodedValues.add(null);
+        Canonicalizer<V> canonicalizer =
+                new Canonicalizer<>(canonical, chunkData, values, codec);
+        canonical.rootChunk = new int[rootChunk.length];
+        for (int slot = 0; slot < rootChunk.length; slot++) {
+            canonical.rootChunk[slot] = canonicalizer.canonicalize(rootChunk[slot]);
+        }
+        canonical.chunkData = canonicalizer.out.toArray();
+        canonical.checksum = checksum(canonical);
+        return canonical;
+    }
+
+    private static final class Canonicalizer<V> {
+        final Canonical<V> canonical;
+        final int[] chunkData;
+        final List<V> values;
+        final ValueCodec<V> codec;
+        // 原 chunk 偏移或值索引到规范 lookupEntry 的缓存，chunk 的规范 lookupEntry 不为 0，0 表示尚未处理
+        final int[] chunkMemo;
+        final int[] valueMemo;
+        final IntList out = new IntList();
+
+        Canonicalizer(
+                Canonical<V> canonical, int[] chunkData, List<V> values, ValueCodec<V> codec) {
+            this.canonical = canonical;
+            this.chunkData = chunkData;
+            this.values = values;
+            this.codec = codec;
+            this.chunkMemo = new int[chunkData.length];
+            this.valueMemo = new int[values.size()];
+        }
+
+        int canonicalize(int lookupEntry) {
+            if (lookupEntry >>> 30 == TYPE_LEAF) {
+                return lookupEntry == 0 ? 0 : canonicalizeValue(lookupEntry);
+            }
+            int offset = packedChunkOffset(lookupEntry);
+            if (chunkMemo[offset] != 0) {
+                return chunkMemo[offset];
+            }
+            int[] content = chunkContent(chunkData, lookupEntry);
+            forEachEntry(chunkData, lookupEntry, content, this::canonicalize);
+            ChunkKey key = new ChunkKey(lookupEntry, content);
+            Integer existing = canonical.chunkIndex.get(key);
+            int result;
+            if (existing != null) {
+                result = existing;
+            } else {
+                if (out.size + content.length > EXT_INDEX_MASK) {
+                    throw new IllegalStateException(
+                            "chunk data exceeds packed layout capacity: "
+                                    + (out.size + content.length));
+                }
+                result = withOffset(lookupEntry, out.size);
+                out.addAll(content);
+                canonical.chunkIndex.put(key, result);
+                canonical.chunkEntries.add(result);
+            }
+            chunkMemo[offset] = result;
+            return result;
+        }
+
+        int canonicalizeValue(int valueIndex) {
+            if (valueMemo[valueIndex] != 0) {
+                return valueMemo[valueIndex];
+            }
+            V value = values.get(valueIndex);
+            byte[] encoded = codec.encode(value);
+            Integer existing = canonical.valueIndexes.get(ByteBuffer.wrap(encoded));
+            int result;
+            if (existing != null) {
+                result = existing;
+            } else {
+                result = canonical.values.size();
+                canonical.values.add(value);
+                canonical.encodedValues.add(encoded);
+                canonical.valueIndexes.put(ByteBuffer.wrap(encoded), result);
+            }
+            valueMemo[valueIndex] = result;
+            return result;
+        }
+    }
+
+    /** 规范形式的校验和，覆盖根节点、chunk 数组与各值的编码 */
+    private static long checksum(Canonical<?> canonical) {
+        CRC32 crc32 = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        updateInts(crc32, buffer, canonical.rootChunk);
+        updateInts(crc32, buffer, canonical.chunkData);
+        int[] valueLengths = new int[canonical.encodedValues.size()];
+        for (int i = 1; i < valueLengths.length; i++) {
+            valueLengths[i] = canonical.encodedValues.get(i).length;
+        }
+        updateInts(crc32, buffer, valueLengths);
+        for (int i = 1; i < valueLengths.length; i++) {
+            crc32.update(canonical.encodedValues.get(i));
+        }
+        return crc32.getValue();
+    }
+
+    private static void updateInts(CRC32 crc32, ByteBuffer buffer, int[] ints) {
+        for (int i = 0; i < ints.length; ) {
+            buffer.clear();
+            int n = Math.min(ints.length - i, buffer.capacity() >>> 2);
+            buffer.asIntBuffer().put(ints, i, n);
+            crc32.update(buffer.array(), 0, n << 2);
+            i += n;
+        }
+    }
+
+    // ========== 辅助方法 ==========
+
+    private static int[] chunkContent(int[] chunkData, int lookupEntry) {
+        int offset = packedChunkOffset(lookupEntry);
+        return Arrays.copyOfRange(
+                chunkData, offset, offset + packedChunkLength(chunkData, lookupEntry));
+    }
+
+    /** 依次改写 content 中的各 lookupEntry，content 为 lookupEntry 指向的 chunk 的副本 */
+    private static void forEachEntry(
+            int[] chunkData, int lookupEntry, int[] content, IntUnaryOperator mapper) {
+        int stride = lookupEntry >>> 30 == TYPE_SPARSE ? 2 : 1;
+        for (int i = packedEntryStart(chunkData, lookupEntry); i < content.length; i += stride) {
+            content[i] = mapper.applyAsInt(content[i]);
+        }
+    }
+
+    /** 保留 lookupEntry 的类型位，替换其中的 chunk 偏移 */
+    private static int withOffset(int lookupEntry, int offset) {
+        int typeMask = lookupEntry >>> 30 == TYPE_EXT ? ~EXT_INDEX_MASK : 0xC0000000;
+        return lookupEntry & typeMask | offset;
+    }
+
+    /** chunk 的类型与内容，内容中的 lookupEntry 均已换算到同一坐标 */
+    private static final class ChunkKey {
+        final int typeBits;
+        final int[] content;
+        final int hash;
+
+        ChunkKey(int lookupEntry, int[] content) {
+            this.typeBits = withOffset(lookupEntry, 0);
+            this.content = content;
+            this.hash = 31 * typeBits + Arrays.hashCode(content);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ChunkKey)) return false;
+            ChunkKey that = (ChunkKey) o;
+            return typeBits == that.typeBits && Arrays.equals(content, that.content);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class IntList {
+        int[] values = new int[1024];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size << 1);
+            }
+            values[size++] = value;
+        }
+
+        void addAll(int[] array) {
+            if (size + array.length > values.length) {
+                values = Arrays.copyOf(values, Math.max(size + array.length, size << 1));
+            }
+            System.arraycopy(array, 0, values, size, array.length);
+            size += array.length;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
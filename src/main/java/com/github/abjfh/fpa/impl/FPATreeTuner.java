@@ -0,0 +1,376 @@
+package com.github.abjfh.fpa.impl;
+
+import static com.github.abjfh.fpa.impl.FPATree.*;
+
+import java.util.*;
+
+/**
+ * 按实际数据为 FPATree 选择构建参数
+ *
+ * <p>对每组候选参数实际构建一棵打包布局的树，统计 chunk 占用的字节数和样本查询的平均探测次数（每次访存或比较记一次），
+ * 取 {@code 字节数 + bytesPerProbe × 平均探测次数} 最小的一组。参数逐个维度搜索：依次在跳跃节点、sparse 阈值 K、
+ * 区间 chunk 最大段数和 chunk 编码的探测权重的候选值中取最优，其余维度保持当前最优值。
+ *
+ * <p>没有提供样本查询时，从 ForwardingPortArray 中随机游走生成：每层以较大概率进入有子树的槽位，
+ * 模拟集中在已有前缀上的查询。
+ *
+ * <p>chunk 步长（根 16 位、其下每层 8 位）不在搜索范围内，各种布局与映射文件格式都以一个字节索引一层。
+ * 集中在 /32、/48 的前缀改用跳跃节点合并单子节点链，{@link com.github.abjfh.jmh.StrideReport} 在这类数据上
+ * 对比了跳跃节点与 16/16/16 等加宽步长的探测次数和内存。
+ *
+ * @param <V> 值类型
+ */
+public class FPATreeTuner<V> {
+    // ========== 常量定义 ==========
+
+    private static final int DEFAULT_SAMPLE_SIZE = 100_000;
+    // 默认每次平均探测折合 1MB 内存：平均探测次数相差 0.1 的两组参数，chunk 字节数相差超过约 100KB 时才由内存决定。
+    // 一次探测是一次依赖的访存，未命中缓存时约百纳秒；1MB 与常见的每核 L2 缓存同一量级，省下的内存少于此数时
+    // 通常不足以让更多热点 chunk 留在缓存中，抵不上每次查询多一次访存。内存受限时调小，查询延迟优先时调大
+    private static final long DEFAULT_BYTES_PER_PROBE = 1 << 20;
+
+    private final ForwardingPortArray<V> fpa;
+    private final int addressBytes;
+    private List<byte[]> sample;
+    private long bytesPerProbe = DEFAULT_BYTES_PER_PROBE;
+    private long seed = 1;
+
+    private int[] kCandidates = {1, 2, 3, 4, 6, 8};
+    private int[] maxRangeRunsCandidates = {0, 8, 16, 32, 64};
+    private int[] probeWeightCandidates = {2, 8, 32};
+
+    /**
+     * @param ipType 地址类型
+     * @param fpa 要构建的 ForwardingPortArray
+     */
+    public FPATreeTuner(TrieToFPAConverter.IP_TYPE ipType, ForwardingPortArray<V> fpa) {
+        this.fpa = fpa;
+        this.addressBytes = ipType == TrieToFPAConverter.IP_TYPE.IPV4 ? 4 : 16;
+    }
+
+    /**
+     * 使用实际的查询样本评估探测次数
+     *
+     * @param queries 查询地址，长度须与地址类型一致
+     * @return this
+     */
+    public FPATreeTuner<V> sample(List<byte[]> queries) {
+        for (byte[] query : queries) {
+            if (query.length != addressBytes) {
+                throw new IllegalArgumentException("query must be " + addressBytes + " bytes");
+            }
+        }
+        this.sample = queries;
+        return this;
+    }
+
+    /**
+     * 平均每次查询多一次探测折合的内存字节数，越大越偏向查询速度
+     *
+     * @param bytesPerProbe 折合字节数
+     * @return this
+     */
+    public FPATreeTuner<V> bytesPerProbe(long bytesPerProbe) {
+        if (bytesPerProbe < 0) {
+            throw new IllegalArgumentException("bytesPerProbe must not be negative");
+        }
+        this.bytesPerProbe = bytesPerProbe;
+        return this;
+    }
+
+    /**
+     * @param seed 生成样本查询的随机种子
+     * @return this
+     */
+    public FPATreeTuner<V> seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public FPATreeTuner<V> kCandidates(int... kCandidates) {
+        this.kCandidates = kCandidates.clone();
+        return this;
+    }
+
+    public FPATreeTuner<V> maxRangeRunsCandidates(int... maxRangeRunsCandidates) {
+        this.maxRangeRunsCandidates = maxRangeRunsCandidates.clone();
+        return this;
+    }
+
+    public FPATreeTuner<V> probeWeightCandidates(int... probeWeightCandidates) {
+        this.probeWeightCandidates = probeWeightCandidates.clone();
+        return this;
+    }
+
+    /** 一组构建参数及其评估结果 */
+    public static class Plan<V> {
+        private final boolean skipNodes;
+        private final int K;
+        private final int maxRangeRuns;
+        private final int probeWeight;
+        private long bytes;
+        private double averageProbes;
+        private double cost;
+        private FPATree<V> tree;
+
+        Plan(boolean skipNodes, int K, int maxRangeRuns, int probeWeight) {
+            this.skipNodes = skipNodes;
+            this.K = K;
+            this.maxRangeRuns = maxRangeRuns;
+            this.probeWeight = probeWeight;
+        }
+
+        /**
+         * @return 按本组参数配置好的 Builder，尚未设置 fpa
+         */
+        public FPATree.Builder<V> builder() {
+            return FPATree.<V>Builder()
+                    .skipNodes(skipNodes)
+                    .K(K)
+                    .maxRangeRuns(maxRangeRuns)
+                    .probeWeight(probeWeight);
+        }
+
+        public boolean skipNodes() {
+            return skipNodes;
+        }
+
+        public int K() {
+            return K;
+        }
+
+        public int maxRangeRuns() {
+            return maxRangeRuns;
+        }
+
+        public int probeWeight() {
+            return probeWeight;
+        }
+
+        /**
+         * @return 根节点与 chunk 占用的字节数，不含值
+         */
+        public long bytes() {
+            return bytes;
+        }
+
+        /**
+         * @return 样本查询的平均探测次数
+         */
+        public double averageProbes() {
+            return averageProbes;
+        }
+
+        public double cost() {
+            return cost;
+        }
+
+        /**
+         * @return 评估时构建的打包布局的树
+         */
+        public FPATree<V> tree() {
+            return tree;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "skipNodes=%b K=%d maxRangeRuns=%d probeWeight=%d: %d bytes, %.2f probes,"
+                            + " cost %.0f",
+                    skipNodes, K, maxRangeRuns, probeWeight, bytes, averageProbes, cost);
+        }
+    }
+
+    /** 调优结果：选中的参数以及所有评估过的候选 */
+    public static class Result<V> {
+        private final Plan<V> best;
+        private final List<Plan<V>> evaluated;
+
+        Result(Plan<V> best, List<Plan<V>> evaluated) {
+            this.best = best;
+            this.evaluated = evaluated;
+        }
+
+        public Plan<V> best() {
+            return best;
+        }
+
+        public List<Plan<V>> evaluated() {
+            return evaluated;
+        }
+
+        /**
+         * @return 选中的参数所构建的打包布局的树
+         */
+        public FPATree<V> tree() {
+            return best.tree;
+        }
+
+        /**
+         * @return 可读的调优报告，每个候选一行，选中的一行以 * 标记
+         */
+        public String report() {
+            StringBuilder report = new StringBuilder();
+            for (Plan<V> plan : evaluated) {
+                report.append(plan == best ? "* " : "  ").append(plan).append('\n');
+            }
+            return report.toString();
+        }
+    }
+
+    /**
+     * 逐个维度搜索构建参数
+     *
+     * @return 调优结果，除选中的树外其余候选的树不保留
+     */
+    public Result<V> tune() {
+        List<byte[]> queries = sample != null ? sample : generateSample(DEFAULT_SAMPLE_SIZE);
+        List<Plan<V>> evaluated = new ArrayList<>();
+        Map<String, Plan<V>> cache = new HashMap<>();
+
+        Plan<V> defaults =
+                new Plan<>(true, DEFAULT_K, DEFAULT_MAX_RANGE_RUNS, DEFAULT_PROBE_WEIGHT);
+        Plan<V> best = evaluate(defaults, queries, evaluated, cache);
+        Plan<V> noSkip = new Plan<>(false, best.K, best.maxRangeRuns, best.probeWeight);
+        best = better(best, evaluate(noSkip, queries, evaluated, cache));
+        for (int K : kCandidates) {
+            Plan<V> plan = new Plan<>(best.skipNodes, K, best.maxRangeRuns, best.probeWeight);
+            best = better(best, evaluate(plan, queries, evaluated, cache));
+        }
+        for (int maxRangeRuns : maxRangeRunsCandidates) {
+            Plan<V> plan = new Plan<>(best.skipNodes, best.K, maxRangeRuns, best.probeWeight);
+            best = better(best, evaluate(plan, queries, evaluated, cache));
+        }
+        for (int probeWeight : probeWeightCandidates) {
+            Plan<V> plan = new Plan<>(best.skipNodes, best.K, best.maxRangeRuns, probeWeight);
+            best = better(best, evaluate(plan, queries, evaluated, cache));
+        }
+        return new Result<>(best, evaluated);
+    }
+
+    /** 返回代价较小的一个，并释放另一个的树 */
+    private Plan<V> better(Plan<V> best, Plan<V> candidate) {
+        if (candidate.cost < best.cost) {
+            best.tree = null;
+            return candidate;
+        }
+        if (candidate != best) {
+            candidate.tree = null;
+        }
+        return best;
+    }
+
+    /** 构建并评估一组参数；已评估过的参数直接返回之前的结果 */
+    private Plan<V> evaluate(
+            Plan<V> plan,
+            List<byte[]> queries,
+            List<Plan<V>> evaluated,
+            Map<String, Plan<V>> cache) {
+        String key =
+                plan.skipNodes + "/" + plan.K + "/" + plan.maxRangeRuns + "/" + plan.probeWeight;
+        Plan<V> previous = cache.get(key);
+        if (previous != null) {
+            return previous;
+        }
+        FPATree<V> tree = plan.builder().packed(true).fpa(fpa).build();
+        int[][] packed = tree.packedArrays();
+        long probes = 0;
+        for (byte[] query : queries) {
+            probes += probes(tree, packed[0], packed[1], query);
+        }
+        plan.tree = tree;
+        plan.bytes = (packed[0].length + (long) packed[1].length) * 4;
+        plan.averageProbes = queries.isEmpty() ? 0 : (double) probes / queries.size();
+        plan.cost = plan.bytes + bytesPerProbe * plan.averageProbes;
+        cache.put(key, plan);
+        evaluated.add(plan);
+        return plan;
+    }
+
+    /** 按 {@link FPATree#search(byte[])} 的路径统计一次查询的探测次数，根节点记一次 */
+    private static int probes(FPATree<?> tree, int[] rootChunk, int[] chunkData, byte[] ipBytes) {
+        int lookupEntry = rootChunk[(ipBytes[0] & 0xFF) << 8 | ipBytes[1] & 0xFF];
+        int probes = 1;
+        int byteIdx = 2;
+        while (lookupEntry >>> 30 != TYPE_LEAF) {
+            int index = lookupEntry & 0x3FFFFFFF;
+            if (lookupEntry >>> 29 == SKIP_TAG) {
+                int length = tree.skipLength(lookupEntry);
+                lookupEntry = tree.skip(lookupEntry, FPATree.window(ipBytes, byteIdx));
+                byteIdx += length;
+                probes++;
+                continue;
+            }
+            switch (lookupEntry >>> 30) {
+                case TYPE_DENSE:
+                    // codeWord 与 lookupEntry 各一次
+                    probes += 2;
+                    break;
+                case TYPE_SPARSE:
+                    probes += sparseProbes(chunkData, index, ipBytes[byteIdx]);
+                    break;
+                default:
+                    // 二分查找的比较次数加读取 lookupEntry 一次
+                    int boundsLength = chunkData[index & EXT_INDEX_MASK] >>> 16;
+                    probes += Integer.numberOfTrailingZeros(boundsLength) + 1;
+                    break;
+            }
+            lookupEntry = tree.nextLookupEntry(lookupEntry, ipBytes[byteIdx++]);
+        }
+        return probes;
+    }
+
+    /** 稀疏 chunk 中顺序比较到命中为止的 entry 数 */
+    private static int sparseProbes(int[] chunkData, int offset, byte index8) {
+        int count = chunkData[offset];
+        for (int i = 0; i < count; i++) {
+            int prefixAndMask = chunkData[offset + 1 + (i << 1)];
+            if ((index8 & (prefixAndMask >>> 8)) == (prefixAndMask & 0xFF)) {
+                return i + 1;
+            }
+        }
+        return Math.max(count, 1);
+    }
+
+    // ========== 样本生成 ==========
+
+    private List<byte[]> generateSample(int size) {
+        Random random = new Random(seed);
+        List<Integer> rootSubtrees = subtreeSlots(fpa);
+        List<byte[]> queries = new ArrayList<>(size);
+        for (int n = 0; n < size; n++) {
+            byte[] query = new byte[addressBytes];
+            random.nextBytes(query);
+            int slot = pickSlot(random, fpa, rootSubtrees);
+            query[0] = (byte) (slot >>> 8);
+            query[1] = (byte) slot;
+            ForwardingPortArray<V> layer = fpa.table.get(slot).next;
+            for (int byteIdx = 2; layer != null && byteIdx < addressBytes; byteIdx++) {
+                slot = pickSlot(random, layer, subtreeSlots(layer));
+                query[byteIdx] = (byte) slot;
+                layer = layer.table.get(slot).next;
+            }
+            queries.add(query);
+        }
+        return queries;
+    }
+
+    /** 以 3/4 的概率进入有子树的槽位，否则随机取一个槽位 */
+    private static int pickSlot(
+            Random random, ForwardingPortArray<?> layer, List<Integer> subtrees) {
+        if (!subtrees.isEmpty() && random.nextInt(4) != 0) {
+            return subtrees.get(random.nextInt(subtrees.size()));
+        }
+        return random.nextInt(layer.table.size());
+    }
+
+    private static List<Integer> subtreeSlots(ForwardingPortArray<?> layer) {
+        List<Integer> slots = new ArrayList<>();
+        for (int i = 0; i < layer.table.size(); i++) {
+            if (layer.table.get(i).next != null) {
+                slots.add(i);
+            }
+        }
+        return slots;
+    }
+}
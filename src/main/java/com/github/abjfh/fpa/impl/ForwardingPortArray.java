@@ -4,14 +4,19 @@ import com.github.abjfh.fpa.IpSearcher;
 
 import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.function.ToLongFunction;
 
 public class ForwardingPortArray<V> implements IpSearcher<V> {
 
     BitSet bitSet;
     List<FPANode<V>> table;
     int depth; // 当前层处理的位数
+    TrieToFPAConverter.IP_TYPE ipType; // 地址类型，只在 TrieToFPAConverter 生成的根数组上设置
 
     public ForwardingPortArray(FPANode<V> root, int depth) {
         this.depth = depth;
@@ -123,6 +128,57 @@ public class ForwardingPortArray<V> implements IpSearcher<V> {
         return result;
     }
 
+    public MemoryStats memoryStats() {
+        return memoryStats(null);
+    }
+
+    /**
+     * 逐层统计内存：个数为该层的 ForwardingPortArray 数，条目数为槽位数；共享的节点只计一次，计入首次出现的层
+     *
+     * @param valueBytes 值对象大小的估算函数，为 null 时只统计值对象个数
+     * @return 内存统计
+     */
+    public MemoryStats memoryStats(ToLongFunction<? super V> valueBytes) {
+        int ref = MemoryStats.referenceSize();
+        // bitSet、table、depth
+        long arrayBytes = MemoryStats.objectBytes(ref * 2 + 4);
+        // value、next
+        long nodeBytes = MemoryStats.objectBytes(ref * 2);
+        MemoryStats stats = new MemoryStats("ForwardingPortArray");
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<V> values = new ArrayList<>();
+        List<ForwardingPortArray<V>> level = Collections.singletonList(this);
+        seen.add(this);
+        for (int levelNumber = 1; !level.isEmpty(); levelNumber++) {
+            long slots = 0;
+            long bytes = 0;
+            List<ForwardingPortArray<V>> next = new ArrayList<>();
+            for (ForwardingPortArray<V> array : level) {
+                slots += array.table.size();
+                bytes += arrayBytes + MemoryStats.arrayListBytes(array.table.size());
+                if (array.bitSet != null) {
+                    // words、wordsInUse、sizeIsSticky
+                    bytes +=
+                            MemoryStats.objectBytes(ref + 4 + 1)
+                                    + MemoryStats.arrayBytes(array.bitSet.size() / 64, 8);
+                }
+                for (FPANode<V> node : array.table) {
+                    if (node == null || !seen.add(node)) {
+                        continue;
+                    }
+                    bytes += nodeBytes;
+                    values.add(node.value);
+                    if (node.next != null && seen.add(node.next)) {
+                        next.add(node.next);
+                    }
+                }
+            }
+            stats.add("level " + levelNumber, level.size(), slots, bytes);
+            level = next;
+        }
+        return stats.addValues("value objects", values, valueBytes);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (o == null || getClass() != o.getClass()) return false;
@@ -0,0 +1,292 @@
+package com.github.abjfh.fpa.impl;
+
+import com.github.abjfh.fpa.IpSearcher;
+
+/**
+ * 带统计的 FPATree 查询器：记录每次查询访问的节点数、各类 chunk 的访问次数、未命中率，并抽样记录查询耗时
+ *
+ * <p>统计关闭时直接委托给 FPATree，只多一次 volatile 读；FPATree 本身的查询路径不含任何统计代码，
+ * 不包装时没有开销。统计开启时使用单独的遍历实现，每个线程写入自己的计数数组（见 {@link ThreadCounters}），
+ * 线程结束后其计数并入总数；{@link #snapshot()} 汇总所有线程的计数，结果是弱一致的。
+ *
+ * <p>耗时每隔 latencySampleInterval 次查询抽样一次，包含两次 {@link System#nanoTime()} 的开销，
+ * 按 2 的幂分桶。
+ *
+ * @param <V> 值类型
+ */
+public class InstrumentedSearcher<V> implements IpSearcher<V> {
+    // ========== 计数数组布局 ==========
+
+    // 访问的节点数，根节点计为 1，超过上限的计入最后一格
+    static final int DEPTH_BUCKETS = 16;
+    // 耗时分桶：第 i 格为 [2^(i-1), 2^i) 纳秒
+    static final int LATENCY_BUCKETS = 40;
+
+    private static final int DEPTH = ThreadCounters.BASE;
+    private static final int DENSE = DEPTH + DEPTH_BUCKETS;
+    private static final int SPARSE = DENSE + 1;
+    private static final int RANGE = DENSE + 2;
+    private static final int SKIP = DENSE + 3;
+    private static final int LOOKUPS = DENSE + 4;
+    private static final int MISSES = LOOKUPS + 1;
+    private static final int LATENCY_SAMPLES = LOOKUPS + 2;
+    private static final int LATENCY_NANOS = LOOKUPS + 3;
+    private static final int LATENCY = LATENCY_NANOS + 1;
+    // 距下一次耗时抽样的查询数，只供所属线程使用，汇总结果中没有意义
+    private static final int COUNTDOWN = LATENCY + LATENCY_BUCKETS;
+    private static final int COUNTERS = COUNTDOWN + 1 - ThreadCounters.BASE;
+
+    private final FPATree<V> tree;
+    private final int latencySampleInterval;
+    private volatile boolean enabled = true;
+    private final ThreadCounters counters = new ThreadCounters(COUNTERS);
+
+    /**
+     * 每 1024 次查询抽样一次耗时
+     *
+     * @param tree 被包装的树
+     */
+    public InstrumentedSearcher(FPATree<V> tree) {
+        this(tree, 1024);
+    }
+
+    /**
+     * @param tree 被包装的树
+     * @param latencySampleInterval 每隔多少次查询记录一次耗时
+     */
+    public InstrumentedSearcher(FPATree<V> tree, int latencySampleInterval) {
+        if (tree == null) {
+            throw new IllegalArgumentException("tree cannot be null");
+        }
+        if (latencySampleInterval < 1) {
+            throw new IllegalArgumentException("latencySampleInterval must be positive");
+        }
+        this.tree = tree;
+        this.latencySampleInterval = latencySampleInterval;
+    }
+
+    /**
+     * @param enabled 是否记录统计，关闭后已有的统计保留
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public V search(byte[] ipBytes) {
+        if (!enabled) {
+            return tree.search(ipBytes);
+        }
+        if (ipBytes.length == 4) {
+            return tree.getValue(lookup((long) toInt(ipBytes, 0) << 32, 0));
+        }
+        long hi = (long) toInt(ipBytes, 0) << 32 | toInt(ipBytes, 4) & 0xFFFFFFFFL;
+        long lo = (long) toInt(ipBytes, 8) << 32 | toInt(ipBytes, 12) & 0xFFFFFFFFL;
+        return tree.getValue(lookup(hi, lo));
+    }
+
+    /**
+     * @see FPATree#search(int)
+     */
+    public V search(int ipv4) {
+        if (!enabled) {
+            return tree.search(ipv4);
+        }
+        return tree.getValue(lookup((long) ipv4 << 32, 0));
+    }
+
+    /**
+     * @see FPATree#search(long, long)
+     */
+    public V search(long hi, long lo) {
+        if (!enabled) {
+            return tree.search(hi, lo);
+        }
+        return tree.getValue(lookup(hi, lo));
+    }
+
+    /** 与 FPATree 相同的遍历，IPv4 地址位于 hi 的高 32 位 */
+    private int lookup(long hi, long lo) {
+        long[] counts = counters.local();
+        boolean timed = --counts[COUNTDOWN] <= 0;
+        long start = 0;
+        if (timed) {
+            counts[COUNTDOWN] = latencySampleInterval;
+            start = System.nanoTime();
+        }
+
+        int lookupEntry = tree.rootLookupEntry((int) (hi >>> 48));
+        int byteIdx = 2;
+        int depth = 1;
+        while (lookupEntry >>> 30 != FPATree.TYPE_LEAF) {
+            depth++;
+            if (lookupEntry >>> 29 == FPATree.SKIP_TAG) {
+                counts[SKIP]++;
+                int length = tree.skipLength(lookupEntry);
+                lookupEntry = tree.skip(lookupEntry, FPATree.window(hi, lo, byteIdx));
+                byteIdx += length;
+            } else {
+                // TYPE_DENSE、TYPE_SPARSE、区间 chunk 依次对应 DENSE、SPARSE、RANGE
+                counts[DENSE + (lookupEntry >>> 30) - FPATree.TYPE_DENSE]++;
+                long bits = byteIdx < 8 ? hi : lo;
+                int shift = 56 - ((byteIdx & 0b111) << 3);
+                lookupEntry = tree.nextLookupEntry(lookupEntry, (byte) (bits >>> shift));
+                byteIdx++;
+            }
+        }
+
+        if (timed) {
+            long nanos = System.nanoTime() - start;
+            int bucket = Math.min(64 - Long.numberOfLeadingZeros(nanos), LATENCY_BUCKETS - 1);
+            counts[LATENCY + bucket]++;
+            counts[LATENCY_SAMPLES]++;
+            counts[LATENCY_NANOS] += nanos;
+        }
+        counts[DEPTH + Math.min(depth, DEPTH_BUCKETS - 1)]++;
+        counts[LOOKUPS]++;
+        if (lookupEntry == 0) {
+            counts[MISSES]++;
+        }
+        return lookupEntry;
+    }
+
+    private static int toInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24
+                | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8
+                | bytes[offset + 3] & 0xFF;
+    }
+
+    /**
+     * 汇总所有线程的计数
+     *
+     * @return 统计快照
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(counters.sum());
+    }
+
+    /** 清零所有计数，与正在进行的查询并发时可能遗漏少量计数 */
+    public void reset() {
+        counters.reset();
+    }
+
+    /** 某一时刻的统计，不随后续查询变化 */
+    public static final class Snapshot {
+        private final long[] counts;
+
+        private Snapshot(long[] counts) {
+            this.counts = counts;
+        }
+
+        public long lookups() {
+            return counts[LOOKUPS];
+        }
+
+        public long misses() {
+            return counts[MISSES];
+        }
+
+        public double missRate() {
+            return lookups() == 0 ? 0 : (double) misses() / lookups();
+        }
+
+        /**
+         * @return 第 i 格为访问 i 个节点（含根节点）的查询数，最后一格包含更深的查询
+         */
+        public long[] depthHistogram() {
+            long[] histogram = new long[DEPTH_BUCKETS];
+            System.arraycopy(counts, DEPTH, histogram, 0, DEPTH_BUCKETS);
+            return histogram;
+        }
+
+        public long denseVisits() {
+            return counts[DENSE];
+        }
+
+        public long sparseVisits() {
+            return counts[SPARSE];
+        }
+
+        public long rangeVisits() {
+            return counts[RANGE];
+        }
+
+        public long skipVisits() {
+            return counts[SKIP];
+        }
+
+        /**
+         * @return 第 i 格为耗时在 [2^(i-1), 2^i) 纳秒内的抽样数
+         */
+        public long[] latencyHistogram() {
+            long[] histogram = new long[LATENCY_BUCKETS];
+            System.arraycopy(counts, LATENCY, histogram, 0, LATENCY_BUCKETS);
+            return histogram;
+        }
+
+        public long latencySamples() {
+            return counts[LATENCY_SAMPLES];
+        }
+
+        public double meanLatencyNanos() {
+            return latencySamples() == 0 ? 0 : (double) counts[LATENCY_NANOS] / latencySamples();
+        }
+
+        /**
+         * @param quantile 分位数，0 到 1 之间
+         * @return 该分位数所在分桶的上界（纳秒），没有抽样时为 0
+         */
+        public long latencyPercentileNanos(double quantile) {
+            if (quantile < 0 || quantile > 1) {
+                throw new IllegalArgumentException("quantile must be between 0 and 1");
+            }
+            long samples = latencySamples();
+            if (samples == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * samples);
+            long seen = 0;
+            for (int i = 0; i < LATENCY_BUCKETS; i++) {
+                seen += counts[LATENCY + i];
+                if (seen >= rank && seen > 0) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (LATENCY_BUCKETS - 1);
+        }
+
+        public String report() {
+            StringBuilder report = new StringBuilder();
+            report.append(
+                    String.format(
+                            "查询: %d，未命中: %d (%.2f%%)%n",
+                            lookups(), misses(), missRate() * 100));
+            report.append("访问节点数:");
+            for (int depth = 1; depth < DEPTH_BUCKETS; depth++) {
+                long count = counts[DEPTH + depth];
+                if (count > 0) {
+                    report.append(String.format(" %d=%.2f%%", depth, 100.0 * count / lookups()));
+                }
+            }
+            report.append(System.lineSeparator());
+            report.append(
+                    String.format(
+                            "chunk 访问: Dense %d，Sparse %d，Range %d，Skip %d%n",
+                            denseVisits(), sparseVisits(), rangeVisits(), skipVisits()));
+            report.append(
+                    String.format(
+                            "耗时抽样: %d 次，平均 %.1f ns，p50 < %d ns，p99 < %d ns，p99.9 < %d ns%n",
+                            latencySamples(),
+                            meanLatencyNanos(),
+                            latencyPercentileNanos(0.5),
+                            latencyPercentileNanos(0.99),
+                            latencyPercentileNanos(0.999)));
+            return report.toString();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.github.abjfh.fpa.impl;
+
+import java.util.Arrays;
+
+/**
+ * 直接从文本解析 IP 地址并查询，不产生中间字符串、数组或 IPAddress 对象
+ *
+ * <p>支持点分十进制 IPv4 地址，以及 RFC 4291 的各种 IPv6 文本形式（含 RFC 5952 的规范形式）：
+ * 十六进制大小写均可，每组至多 4 位，{@code ::} 至多出现一次，最后 32 位可写作点分十进制。
+ * 不接受首尾空白、区域标识（{@code %eth0}）与前缀长度（{@code /64}）。
+ *
+ * <p>文本可以是 CharSequence，也可以是 UTF-8 字节数组中的一段；地址只含 ASCII 字符，两者按字符逐一读取。
+ * 解析得到的地址直接交给 {@link IndexLookup} 查询，格式错误时返回 {@link #MALFORMED}，不抛出异常。
+ * 指定了地址族时，另一地址族的文本在解析之前即返回 MALFORMED，不会被当作该地址族的位查询。
+ */
+final class IpAddressText {
+    /** 文本不是合法的 IP 地址，或与要求的地址族不符 */
+    static final int MALFORMED = -1;
+
+    /** 按地址族查询值索引，FPATree 的同名方法即满足该接口 */
+    interface IndexLookup {
+        int lookupIndex(int ipv4);
+
+        int lookupIndex(long hi, long lo);
+    }
+
+    // ASCII 字符的十六进制值，非十六进制字符为 -1；查表代替分支，随机的数字与字母交替时不会预测失败
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private IpAddressText() {}
+
+    /**
+     * @param lookup 查询目标
+     * @param ipType 要求的地址族，为 null 时两种地址族均可
+     * @param text 地址文本
+     * @return lookup 返回的值索引，格式错误或地址族不符时为 {@link #MALFORMED}
+     */
+    static int lookupIndex(
+            IndexLookup lookup, TrieToFPAConverter.IP_TYPE ipType, CharSequence text) {
+        return lookupIndex(lookup, ipType, text, null, 0, text.length());
+    }
+
+    /**
+     * @param lookup 查询目标
+     * @param ipType 要求的地址族，为 null 时两种地址族均可
+     * @param utf8 包含地址文本的 UTF-8 字节
+     * @param offset 地址文本的起始位置
+     * @param length 地址文本的字节数
+     * @return lookup 返回的值索引，格式错误或地址族不符时为 {@link #MALFORMED}
+     */
+    static int lookupIndex(
+            IndexLookup lookup,
+            TrieToFPAConverter.IP_TYPE ipType,
+            byte[] utf8,
+            int offset,
+            int length) {
+        if (offset < 0 || length < 0 || offset > utf8.length - length) {
+            throw new IllegalArgumentException(
+                    "range [" + offset + ", " + offset + " + " + length + ") out of bounds");
+        }
+        return lookupIndex(lookup, ipType, null, utf8, offset, offset + length);
+    }
+
+    /** text 与 utf8 恰有一个不为 null */
+    private static int lookupIndex(
+            IndexLookup lookup,
+            TrieToFPAConverter.IP_TYPE ipType,
+            CharSequence text,
+            byte[] utf8,
+            int start,
+            int end) {
+        // 第一个非十进制数字的字符是 '.' 时为 IPv4，否则按 IPv6 解析
+        for (int i = start; i < end && i < start + 4; i++) {
+            char c = charAt(text, utf8, i);
+            if (c == '.') {
+                if (ipType == TrieToFPAConverter.IP_TYPE.IPV6) {
+                    return MALFORMED;
+                }
+                long ipv4 = parseIpv4(text, utf8, start, end);
+                return ipv4 < 0 ? MALFORMED : lookup.lookupIndex((int) ipv4);
+            }
+            if (c < '0' || c > '9') {
+                break;
+            }
+        }
+        if (ipType == TrieToFPAConverter.IP_TYPE.IPV4) {
+            return MALFORMED;
+        }
+        return lookupIpv6(lookup, text, utf8, start, end);
+    }
+
+    private static char charAt(CharSequence text, byte[] utf8, int index) {
+        return text != null ? text.charAt(index) : (char) (utf8[index] & 0xFF);
+    }
+
+    /**
+     * @return 无符号的 IPv4 地址，格式错误时为 -1
+     */
+    private static long parseIpv4(CharSequence text, byte[] utf8, int start, int end) {
+        int address = 0;
+        int parts = 0;
+        int i = start;
+        while (true) {
+            int value = 0;
+            int digits = 0;
+            char c;
+            while (i < end && (c = charAt(text, utf8, i)) >= '0' && c <= '9') {
+                if (++digits > 3) {
+                    return -1;
+                }
+                value = value * 10 + (c - '0');
+                i++;
+            }
+            if (digits == 0 || value > 255) {
+                return -1;
+            }
+            address = address << 8 | value;
+            parts++;
+            if (i == end) {
+                return parts == 4 ? address & 0xFFFFFFFFL : -1;
+            }
+            if (parts == 4 || charAt(text, utf8, i) != '.') {
+                return -1;
+            }
+            i++;
+        }
+    }
+
+    private static int hexValue(char c) {
+        return c < 128 ? HEX_VALUES[c] : -1;
+    }
+
+    /**
+     * {@code ::} 之前与之后的组分别移入两个 128 位累加器，结束时将前半部分左移到位后与后半部分合并
+     */
+    private static int lookupIpv6(
+            IndexLookup lookup, CharSequence text, byte[] utf8, int start, int end) {
+        long headHi = 0;
+        long headLo = 0;
+        long tailHi = 0;
+        long tailLo = 0;
+        int headGroups = 0;
+        int tailGroups = 0;
+        boolean compressed = false;
+
+        int i = start;
+        if (end - i >= 2 && charAt(text, utf8, i) == ':') {
+            if (charAt(text, utf8, i + 1) != ':') {
+                return MALFORMED;
+            }
+            compressed = true;
+            i += 2;
+        }
+        while (i < end) {
+            int groupStart = i;
+            int group = 0;
+            int digits = 0;
+            int d;
+            while (i < end && digits <= 4 && (d = hexValue(charAt(text, utf8, i))) >= 0) {
+                group = group << 4 | d;
+                digits++;
+                i++;
+            }
+
+            // 最后 32 位写作点分十进制，占两组
+            if (i < end && charAt(text, utf8, i) == '.') {
+                long ipv4 = parseIpv4(text, utf8, groupStart, end);
+                if (ipv4 < 0 || headGroups + tailGroups > 6) {
+                    return MALFORMED;
+                }
+                if (compressed) {
+                    tailHi = tailHi << 32 | tailLo >>> 32;
+                    tailLo = tailLo << 32 | ipv4;
+                    tailGroups += 2;
+                } else {
+                    headHi = headHi << 32 | headLo >>> 32;
+                    headLo = headLo << 32 | ipv4;
+                    headGroups += 2;
+                }
+                i = end;
+                break;
+            }
+
+            if (digits == 0 || digits > 4 || headGroups + tailGroups == 8) {
+                return MALFORMED;
+            }
+            if (compressed) {
+                tailHi = tailHi << 16 | tailLo >>> 48;
+                tailLo = tailLo << 16 | group;
+                tailGroups++;
+            } else {
+                headHi = headHi << 16 | headLo >>> 48;
+                headLo = headLo << 16 | group;
+                headGroups++;
+            }
+            if (i == end) {
+                break;
+            }
+            if (charAt(text, utf8, i) != ':' || ++i == end) {
+                return MALFORMED;
+            }
+            if (charAt(text, utf8, i) == ':') {
+                if (compressed) {
+                    return MALFORMED;
+                }
+                compressed = true;
+                i++;
+            }
+        }
+
+        if (!compressed) {
+            return headGroups == 8 ? lookup.lookupIndex(headHi, headLo) : MALFORMED;
+        }
+        // :: 至少代表一组 0
+        if (headGroups + tailGroups > 7) {
+            return MALFORMED;
+        }
+        int shift = (8 - headGroups) << 4;
+        if (shift >= 64) {
+            headHi = shift == 128 ? 0 : headLo << (shift - 64);
+            headLo = 0;
+        } else {
+            headHi = headHi << shift | headLo >>> (64 - shift);
+            headLo <<= shift;
+        }
+        return lookup.lookupIndex(headHi | tailHi, headLo | tailLo);
+    }
+}
@@ -0,0 +1,572 @@
+package com.github.abjfh.fpa.impl;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 以内存映射方式读取 CSV 前缀文件，直接流式构建 FPATree
+ *
+ * <p>每行格式为 {@code 前缀<分隔符>值}，前缀为 IPv4 或 IPv6 地址，可带 {@code /前缀长度}，值为分隔符之后的整行剩余部分。
+ * 解析直接在映射的字节上进行：地址与前缀长度写入基本类型数组，值按字节去重，每个不同的值只创建一个 String，
+ * 不产生逐行的 String、String[] 和 IPAddress 对象。全部读入后按地址、前缀长度做稳定排序（已有序时跳过），
+ * 再交给 {@link StreamingFPATreeBuilder}，同一前缀出现多次时以文件中靠后的为准。
+ *
+ * <p>开启 {@link #ranges(boolean)} 后每行格式为 {@code 起始地址<分隔符>结束地址<分隔符>值}，区间在解析时按算术方式
+ * 拆分为对齐的前缀块直接写入上述数组，不经过 IPAddressSeqRange 与逐块的 IpSegment。
+ *
+ * <p>空行被忽略，地址类型与 ipType 不一致的行被跳过并计入 {@link #skippedLines()}。每个实例只能加载一次。
+ */
+public class MappedCsvLoader {
+    // ========== 常量定义 ==========
+
+    // 每次映射的最大字节数，窗口总是从行首开始
+    private static final int WINDOW_BYTES = 1 << 30;
+    // 按文件大小预估初始行数，每行按 24 字节估计
+    private static final int INITIAL_ROWS = 1 << 12;
+    private static final int MAX_INITIAL_ROWS = 1 << 24;
+
+    private final TrieToFPAConverter.IP_TYPE ipType;
+    private final boolean ipv6;
+    private FPATree.Builder<String> builder = FPATree.Builder();
+    private byte separator = ',';
+    private boolean ranges;
+    private boolean loaded;
+
+    // ========== 已解析的行 ==========
+    // 网络地址：IPv4 存放在 his 的低 32 位，IPv6 的高、低 64 位分别存放在 his、los
+    private long[] his;
+    private long[] los;
+    private byte[] lengths;
+    private int[] valueIds;
+    private int rows;
+    private long lineNumber;
+    private long skippedLines;
+    // 区间拆分出的前缀块以 rangeValueId 逐行加入
+    private int rangeValueId;
+    private final StreamingFPATreeBuilder.BlockSink rangeSink =
+            (hi, lo, length) -> addRow(hi, lo, length, rangeValueId);
+
+    // ========== 值字典 ==========
+    // 不同值的 UTF-8 字节连续存放在 valuePool 中，散列表存放值编号 + 1，0 表示空位
+    private byte[] valuePool = new byte[1 << 12];
+    private int[] valueOffsets = new int[1 << 8];
+    private String[] values = new String[1 << 8];
+    private int valueCount;
+    private int[] valueTable = new int[1 << 9];
+
+    // ========== 地址解析结果 ==========
+    private long parsedHi;
+    private long parsedLo;
+    private int parsedLength;
+    private final ByteText addressText = new ByteText();
+    // 接收 IpAddressText 解析出的地址，地址族已按 ipType 检查
+    private final IpAddressText.IndexLookup addressSink =
+            new IpAddressText.IndexLookup() {
+                @Override
+                public int lookupIndex(int ipv4) {
+                    parsedHi = 0;
+                    parsedLo = ipv4 & 0xFFFFFFFFL;
+                    return 0;
+                }
+
+                @Override
+                public int lookupIndex(long hi, long lo) {
+                    parsedHi = hi;
+                    parsedLo = lo;
+                    return 0;
+                }
+            };
+
+    /**
+     * @param ipType 地址类型
+     */
+    public MappedCsvLoader(TrieToFPAConverter.IP_TYPE ipType) {
+        this.ipType = ipType;
+        this.ipv6 = ipType == TrieToFPAConverter.IP_TYPE.IPV6;
+    }
+
+    /**
+     * @param separator 前缀与值之间的分隔符，须为 ASCII 字符，默认为 ','
+     * @return this
+     */
+    public MappedCsvLoader separator(char separator) {
+        if (separator <= ' ' || separator > 0x7E || separator == ':' || separator == '/') {
+            throw new IllegalArgumentException(
+                    "separator must be a printable ASCII character other than ':' and '/'");
+        }
+        this.separator = (byte) separator;
+        return this;
+    }
+
+    /**
+     * @param ranges 为 true 时每行为 起始地址、结束地址、值 三部分，默认为 false
+     * @return this
+     */
+    public MappedCsvLoader ranges(boolean ranges) {
+        this.ranges = ranges;
+        return this;
+    }
+
+    /**
+     * @param builder 提供构建参数的 Builder，不需要设置 fpa
+     * @return this
+     */
+    public MappedCsvLoader builder(FPATree.Builder<String> builder) {
+        this.builder = builder;
+        return this;
+    }
+
+    /**
+     * 读取文件并构建 FPATree
+     *
+     * @param file CSV 文件
+     * @return 构建好的树
+     * @throws IllegalArgumentException 某行的地址或前缀长度无法解析
+     */
+    public FPATree<String> load(Path file) throws IOException {
+        if (loaded) {
+            throw new IllegalStateException("loader can only be used once");
+        }
+        loaded = true;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            allocateRows((int) Math.max(Math.min(size / 24, MAX_INITIAL_ROWS), INITIAL_ROWS));
+            long position = 0;
+            while (position < size) {
+                int windowBytes = (int) Math.min(WINDOW_BYTES, size - position);
+                boolean last = position + windowBytes == size;
+                MappedByteBuffer window =
+                        channel.map(FileChannel.MapMode.READ_ONLY, position, windowBytes);
+                int consumed = parseWindow(window, windowBytes, last);
+                if (consumed == 0) {
+                    throw new IllegalArgumentException(
+                            "line "
+                                    + (lineNumber + 1)
+                                    + ": longer than "
+                                    + WINDOW_BYTES
+                                    + " bytes");
+                }
+                position += consumed;
+            }
+        }
+        return build();
+    }
+
+    /**
+     * @return 地址类型与 ipType 不一致而被跳过的行数
+     */
+    public long skippedLines() {
+        return skippedLines;
+    }
+
+    // ========== 解析 ==========
+
+    /**
+     * 解析窗口中的完整行
+     *
+     * @param last 是否为文件的最后一个窗口，是则末尾没有换行符的部分也作为一行
+     * @return 已解析的字节数
+     */
+    private int parseWindow(MappedByteBuffer window, int limit, boolean last) {
+        int start = 0;
+        while (start < limit) {
+            int end = start;
+            while (end < limit && window.get(end) != '\n') {
+                end++;
+            }
+            if (end == limit && !last) {
+                break;
+            }
+            lineNumber++;
+            parseLine(window, start, end);
+            start = end + 1;
+        }
+        return Math.min(start, limit);
+    }
+
+    private void parseLine(MappedByteBuffer buf, int start, int end) {
+        while (end > start && blank(buf.get(end - 1))) {
+            end--;
+        }
+        while (start < end && blank(buf.get(start))) {
+            start++;
+        }
+        if (start == end) {
+            return;
+        }
+        int sep = separator(buf, start, end);
+        boolean colon = hasColon(buf, start, sep);
+        if (!ranges) {
+            if (colon != ipv6) {
+                skippedLines++;
+                return;
+            }
+            parsePrefix(buf, start, trimEnd(buf, start, sep));
+            addRow(parsedHi, parsedLo, parsedLength, valueId(buf, sep + 1, end));
+            return;
+        }
+
+        int endStart = sep + 1;
+        while (endStart < end && blank(buf.get(endStart))) {
+            endStart++;
+        }
+        int valueSep = separator(buf, endStart, end);
+        if (colon != ipv6 || hasColon(buf, endStart, valueSep) != ipv6) {
+            skippedLines++;
+            return;
+        }
+        parseAddress(buf, start, trimEnd(buf, start, sep));
+        long startHi = parsedHi;
+        long startLo = parsedLo;
+        parseAddress(buf, endStart, trimEnd(buf, endStart, valueSep));
+        long endHi = parsedHi;
+        long endLo = parsedLo;
+        if (Long.compareUnsigned(startHi, endHi) > 0
+                || startHi == endHi && Long.compareUnsigned(startLo, endLo) > 0) {
+            throw error("start address is greater than end address");
+        }
+        addRange(startHi, startLo, endHi, endLo, valueId(buf, valueSep + 1, end));
+    }
+
+    /** 把区间拆分为对齐的前缀块逐行加入，IPv4 地址存放在低 64 位中 */
+    private void addRange(long hi, long lo, long endHi, long endLo, int valueId) {
+        rangeValueId = valueId;
+        StreamingFPATreeBuilder.splitRange(hi, lo, endHi, endLo, ipv6 ? 128 : 32, rangeSink);
+    }
+
+    /** 加入一行，IPv4 地址取 lo 的低 32 位 */
+    private void addRow(long hi, long lo, int length, int valueId) {
+        if (rows == lengths.length) {
+            allocateRows(rows << 1);
+        }
+        if (ipv6) {
+            his[rows] = hi;
+            los[rows] = lo;
+        } else {
+            his[rows] = lo;
+        }
+        lengths[rows] = (byte) length;
+        valueIds[rows] = valueId;
+        rows++;
+    }
+
+    /** [from, to) 中第一个分隔符的位置 */
+    private int separator(MappedByteBuffer buf, int from, int to) {
+        int sep = from;
+        while (sep < to && buf.get(sep) != separator) {
+            sep++;
+        }
+        if (sep == to) {
+            throw error("missing separator");
+        }
+        return sep;
+    }
+
+    private static boolean hasColon(MappedByteBuffer buf, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf.get(i) == ':') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int trimEnd(MappedByteBuffer buf, int from, int to) {
+        while (to > from && blank(buf.get(to - 1))) {
+            to--;
+        }
+        return to;
+    }
+
+    /** 解析 [from, to) 中的前缀，结果为去掉前缀长度之后各位的网络地址 */
+    private void parsePrefix(MappedByteBuffer buf, int from, int to) {
+        int slash = from;
+        while (slash < to && buf.get(slash) != '/') {
+            slash++;
+        }
+        int maxLength = ipv6 ? 128 : 32;
+        if (slash < to) {
+            parsedLength = parsePrefixLength(buf, slash + 1, to, maxLength);
+        } else {
+            parsedLength = maxLength;
+        }
+        parseAddress(buf, from, slash);
+        if (ipv6) {
+            if (parsedLength == 0) {
+                parsedHi = 0;
+                parsedLo = 0;
+            } else if (parsedLength <= 64) {
+                parsedHi &= -1L << (64 - parsedLength);
+                parsedLo = 0;
+            } else {
+                parsedLo &= -1L << (128 - parsedLength);
+            }
+        } else {
+            int mask = parsedLength == 0 ? 0 : -1 << (32 - parsedLength);
+            parsedLo &= mask & 0xFFFFFFFFL;
+        }
+    }
+
+    /** 解析 [from, to) 中的地址，IPv4 地址写入 parsedLo 的低 32 位 */
+    private void parseAddress(MappedByteBuffer buf, int from, int to) {
+        addressText.reset(buf, from, to);
+        int parsed = IpAddressText.lookupIndex(addressSink, ipType, addressText);
+        if (parsed == IpAddressText.MALFORMED) {
+            throw error(ipv6 ? "invalid IPv6 address" : "invalid IPv4 address");
+        }
+    }
+
+    /** 地址之后 {@code /} 后的前缀长度，地址本身由 IpAddressText 解析 */
+    private int parsePrefixLength(MappedByteBuffer buf, int from, int to, int max) {
+        if (from == to || to - from > 3) {
+            throw error("invalid number");
+        }
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = buf.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw error("invalid number");
+            }
+            value = value * 10 + digit;
+        }
+        if (value > max) {
+            throw error("number out of range");
+        }
+        return value;
+    }
+
+    /** 空格、制表符、回车等控制字符；UTF-8 的多字节序列不小于 0x80，不会被误判 */
+    private static boolean blank(byte b) {
+        return b >= 0 && b <= ' ';
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("line " + lineNumber + ": " + message);
+    }
+
+    private void allocateRows(int capacity) {
+        if (his == null) {
+            his = new long[capacity];
+            los = ipv6 ? new long[capacity] : null;
+            lengths = new byte[capacity];
+            valueIds = new int[capacity];
+            return;
+        }
+        his = Arrays.copyOf(his, capacity);
+        if (ipv6) {
+            los = Arrays.copyOf(los, capacity);
+        }
+        lengths = Arrays.copyOf(lengths, capacity);
+        valueIds = Arrays.copyOf(valueIds, capacity);
+    }
+
+    // ========== 值字典 ==========
+
+    /** 返回 [from, to) 中值的编号，首次出现时才复制字节并创建 String */
+    private int valueId(MappedByteBuffer buf, int from, int to) {
+        int length = to - from;
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = hash * 31 + buf.get(i);
+        }
+        int mask = valueTable.length - 1;
+        for (int slot = slot(hash, mask); ; slot = (slot + 1) & mask) {
+            int id = valueTable[slot] - 1;
+            if (id < 0) {
+                break;
+            }
+            int offset = valueOffsets[id];
+            if (valueOffsets[id + 1] - offset == length && sameBytes(buf, from, offset, length)) {
+                return id;
+            }
+        }
+        return addValue(buf, from, length);
+    }
+
+    private boolean sameBytes(MappedByteBuffer buf, int from, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (buf.get(from + i) != valuePool[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int addValue(MappedByteBuffer buf, int from, int length) {
+        int id = valueCount++;
+        if (valueCount + 1 > valueOffsets.length) {
+            valueOffsets = Arrays.copyOf(valueOffsets, valueOffsets.length << 1);
+            values = Arrays.copyOf(values, values.length << 1);
+        }
+        int offset = valueOffsets[id];
+        if (offset + length > valuePool.length) {
+            valuePool = Arrays.copyOf(valuePool, Math.max(offset + length, valuePool.length << 1));
+        }
+        for (int i = 0; i < length; i++) {
+            valuePool[offset + i] = buf.get(from + i);
+        }
+        valueOffsets[id + 1] = offset + length;
+        values[id] = new String(valuePool, offset, length, StandardCharsets.UTF_8);
+        if (valueCount << 1 > valueTable.length) {
+            rehash(valueTable.length << 1);
+        } else {
+            insert(valueTable, id);
+        }
+        return id;
+    }
+
+    private void rehash(int capacity) {
+        int[] table = new int[capacity];
+        for (int id = 0; id < valueCount; id++) {
+            insert(table, id);
+        }
+        valueTable = table;
+    }
+
+    private void insert(int[] table, int id) {
+        int hash = 0;
+        for (int i = valueOffsets[id]; i < valueOffsets[id + 1]; i++) {
+            hash = hash * 31 + valuePool[i];
+        }
+        int mask = table.length - 1;
+        int slot = slot(hash, mask);
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id + 1;
+    }
+
+    private static int slot(int hash, int mask) {
+        int h = hash * 0x9E3779B9;
+        return (h ^ h >>> 16) & mask;
+    }
+
+    // ========== 构建 ==========
+
+    private FPATree<String> build() {
+        int[] order = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            order[i] = i;
+        }
+        if (!sorted()) {
+            order = mergeSort(order);
+        }
+
+        StreamingFPATreeBuilder<String> streaming = new StreamingFPATreeBuilder<>(ipType, builder);
+        int[] valueIndexes = new int[valueCount];
+        for (int id = 0; id < valueCount; id++) {
+            valueIndexes[id] = builder.getValueIndex(values[id]);
+        }
+        byte[] key = new byte[ipv6 ? 16 : 4];
+        for (int row : order) {
+            if (ipv6) {
+                writeLong(key, 0, his[row]);
+                writeLong(key, 8, los[row]);
+            } else {
+                int address = (int) his[row];
+                key[0] = (byte) (address >>> 24);
+                key[1] = (byte) (address >>> 16);
+                key[2] = (byte) (address >>> 8);
+                key[3] = (byte) address;
+            }
+            streaming.addValueIndex(key, lengths[row] & 0xFF, valueIndexes[valueIds[row]]);
+        }
+        his = null;
+        los = null;
+        lengths = null;
+        valueIds = null;
+        return streaming.build();
+    }
+
+    private static void writeLong(byte[] key, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            key[offset + i] = (byte) (value >>> (56 - i * 8));
+        }
+    }
+
+    private int compareRows(int a, int b) {
+        int cmp = Long.compareUnsigned(his[a], his[b]);
+        if (cmp == 0 && ipv6) {
+            cmp = Long.compareUnsigned(los[a], los[b]);
+        }
+        return cmp != 0 ? cmp : Integer.compare(lengths[a] & 0xFF, lengths[b] & 0xFF);
+    }
+
+    private boolean sorted() {
+        for (int i = 1; i < rows; i++) {
+            if (compareRows(i - 1, i) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** 自底向上的稳定归并排序，避免装箱 */
+    private int[] mergeSort(int[] order) {
+        int[] buffer = new int[order.length];
+        for (int width = 1; width < order.length; width <<= 1) {
+            for (int lo = 0; lo < order.length; lo += width << 1) {
+                int mid = Math.min(lo + width, order.length);
+                int hi = Math.min(lo + (width << 1), order.length);
+                int i = lo;
+                int j = mid;
+                int k = lo;
+                while (i < mid && j < hi) {
+                    buffer[k++] = compareRows(order[j], order[i]) < 0 ? order[j++] : order[i++];
+                }
+                while (i < mid) {
+                    buffer[k++] = order[i++];
+                }
+                while (j < hi) {
+                    buffer[k++] = order[j++];
+                }
+            }
+            int[] swap = order;
+            order = buffer;
+            buffer = swap;
+        }
+        return order;
+    }
+
+    /** 以 CharSequence 的形式读取映射缓冲区中的一段字节，供 IpAddressText 解析；地址只含 ASCII 字符 */
+    private static final class ByteText implements CharSequence {
+        private MappedByteBuffer buf;
+        private int from;
+        private int length;
+
+        void reset(MappedByteBuffer buf, int from, int to) {
+            this.buf = buf;
+            this.from = from;
+            this.length = to - from;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (buf.get(from + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buf.get(from + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package com.github.abjfh.fpa.impl;
+
+import static com.github.abjfh.fpa.impl.FPATree.*;
+
+import com.github.abjfh.fpa.IpSearcher;
+import com.github.abjfh.fpa.ValueCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 基于内存映射文件的只读 FPATree
+ *
+ * <p>文件保存打包布局的 root chunk、chunk 数组和值表，查询直接在映射内存上进行，不反序列化到堆中； 同一主机上的多个 JVM
+ * 映射同一文件时共享一份页缓存。单个文件不超过 2GB。
+ *
+ * <p>文件格式（小端序）：
+ *
+ * <pre>
+ * 0   int   魔数 "FPAT"
+ * 4   int   版本号
+ * 8   int   root chunk 长度（int 个数）
+ * 12  int   chunk 数组长度（int 个数）
+ * 16  int   值数量（含索引 0 的 null）
+ * 20  int   值数据字节数
+ * 24  long  CRC32 校验和，覆盖头部之后的全部内容
+ * 32  int[] root chunk
+ *     int[] chunk 数组
+ *     int[] 值偏移，共 值数量 + 1 个，相对于值数据起点
+ *     byte[] 值数据
+ * </pre>
+ *
+ * @param <V> 值类型
+ */
+public class MappedFPATree<V> implements IpSearcher<V> {
+    // ========== 常量定义 ==========
+
+    static final int MAGIC = 0x54415046; // "FPAT"
+    // 版本 2 起 chunk 数组中可能含有跳跃节点，版本 1 的文件仍可读取
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 32;
+
+    private final ByteBuffer buffer;
+    private final IntBuffer ints;
+    private final ValueCodec<V> codec;
+
+    // 以下均为 ints 中的下标
+    private final int rootBase;
+    private final int chunkBase;
+    private final int valueOffsetBase;
+    // 值数据在 buffer 中的字节位置
+    private final int valueDataBase;
+    private final int valueCount;
+
+    private MappedFPATree(
+            ByteBuffer buffer,
+            ValueCodec<V> codec,
+            int rootLength,
+            int chunkDataLength,
+            int valueCount) {
+        this.buffer = buffer;
+        this.ints = buffer.asIntBuffer();
+        this.codec = codec;
+        this.rootBase = HEADER_SIZE >>> 2;
+        this.chunkBase = rootBase + rootLength;
+        this.valueOffsetBase = chunkBase + chunkDataLength;
+        this.valueDataBase = (valueOffsetBase + valueCount + 1) << 2;
+        this.valueCount = valueCount;
+    }
+
+    /**
+     * 将 FPATree 写入文件；先写临时文件再原子替换，已映射旧文件的进程不受影响
+     *
+     * @param tree 要写入的树，未打包的树会先生成打包副本
+     * @param path 目标文件
+     * @param codec 值编码器
+     */
+    public static <V> void write(FPATree<V> tree, Path path, ValueCodec<V> codec)
+            throws IOException {
+        int[][] packed = tree.packedArrays();
+        int[] rootChunk = packed[0];
+        int[] chunkData = packed[1];
+        List<V> values = tree.resultList();
+
+        byte[][] encodedValues = new byte[values.size()][];
+        long valueDataLength = 0;
+        for (int i = 1; i < values.size(); i++) {
+            encodedValues[i] = codec.encode(values.get(i));
+            valueDataLength += encodedValues[i].length;
+        }
+        long fileSize =
+                HEADER_SIZE
+                        + 4L * rootChunk.length
+                        + 4L * chunkData.length
+                        + 4L * (values.size() + 1)
+                        + valueDataLength;
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IOException("FPATree too large for a mapped file: " + fileSize + " bytes");
+        }
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel =
+                FileChannel.open(
+                        tmp,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            out.order(ByteOrder.LITTLE_ENDIAN);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(rootChunk.length);
+            out.putInt(chunkData.length);
+            out.putInt(values.size());
+            out.putInt((int) valueDataLength);
+            out.putLong(0);
+
+            out.asIntBuffer().put(rootChunk);
+            out.position(out.position() + 4 * rootChunk.length);
+            out.asIntBuffer().put(chunkData);
+            out.position(out.position() + 4 * chunkData.length);
+            int valueOffset = 0;
+            out.putInt(0);
+            for (int i = 0; i < values.size(); i++) {
+                if (encodedValues[i] != null) {
+                    valueOffset += encodedValues[i].length;
+                }
+                out.putInt(valueOffset);
+            }
+            for (byte[] encodedValue : encodedValues) {
+                if (encodedValue != null) {
+                    out.put(encodedValue);
+                }
+            }
+
+            out.putLong(24, checksum(out));
+            out.force();
+        }
+        Files.move(
+                tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 映射文件并校验校验和
+     *
+     * @see #open(Path, ValueCodec, boolean)
+     */
+    public static <V> MappedFPATree<V> open(Path path, ValueCodec<V> codec) throws IOException {
+        return open(path, codec, true);
+    }
+
+    /**
+     * 映射 {@link #write(FPATree, Path, ValueCodec)} 写出的文件
+     *
+     * @param path 文件路径
+     * @param codec 值解码器
+     * @param verifyChecksum 是否校验 CRC32，校验需要完整读取一遍文件
+     * @return 映射后的只读树
+     * @throws IOException 文件无法读取，或格式、版本、校验和不匹配
+     */
+    public static <V> MappedFPATree<V> open(
+            Path path, ValueCodec<V> codec, boolean verifyChecksum) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("invalid FPATree file size: " + size);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("not an FPATree file: " + path);
+            }
+            int version = buffer.getInt(4);
+            if (version < 1 || version > VERSION) {
+                throw new IOException("unsupported FPATree file version: " + version);
+            }
+            int rootLength = buffer.getInt(8);
+            int chunkDataLength = buffer.getInt(12);
+            int valueCount = buffer.getInt(16);
+            int valueDataLength = buffer.getInt(20);
+            long expectedSize =
+                    HEADER_SIZE
+                            + 4L * rootLength
+                            + 4L * chunkDataLength
+                            + 4L * (valueCount + 1)
+                            + valueDataLength;
+            if (rootLength != 65536
+                    || chunkDataLength < 0
+                    || valueCount < 1
+                    || valueDataLength < 0
+                    || expectedSize != size) {
+                throw new IOException("corrupted FPATree file header: " + path);
+            }
+            if (verifyChecksum && checksum(buffer) != buffer.getLong(24)) {
+                throw new IOException("FPATree file checksum mismatch: " + path);
+            }
+            return new MappedFPATree<>(buffer, codec, rootLength, chunkDataLength, valueCount);
+        }
+    }
+
+    private static long checksum(ByteBuffer buffer) {
+        ByteBuffer content = buffer.duplicate();
+        content.position(HEADER_SIZE);
+        content.limit(buffer.capacity());
+        CRC32 crc32 = new CRC32();
+        crc32.update(content);
+        return crc32.getValue();
+    }
+
+    @Override
+    public V search(byte[] ipBytes) {
+        int lookupEntry = ints.get(rootBase + ((ipBytes[0] & 0xFF) << 8 | ipBytes[1] & 0xFF));
+        int byteIdx = 2;
+        while (lookupEntry >>> 30 != TYPE_LEAF) {
+            if (lookupEntry >>> 29 == SKIP_TAG) {
+                int length = ints.get(chunkBase + (lookupEntry & EXT_INDEX_MASK));
+                lookupEntry = skip(lookupEntry, window(ipBytes, byteIdx));
+                byteIdx += length;
+            } else {
+                lookupEntry = nextLookupEntry(lookupEntry, ipBytes[byteIdx++]);
+            }
+        }
+        return getValue(lookupEntry);
+    }
+
+    /**
+     * @see FPATree#search(int)
+     */
+    public V search(int ipv4) {
+        return getValue(lookupIndex(ipv4));
+    }
+
+    /**
+     * @see FPATree#lookupIndex(int)
+     */
+    public int lookupIndex(int ipv4) {
+        int lookupEntry = ints.get(rootBase + (ipv4 >>> 16));
+        int byteIdx = 2;
+        while (lookupEntry >>> 30 != TYPE_LEAF) {
+            if (lookupEntry >>> 29 == SKIP_TAG) {
+                int length = ints.get(chunkBase + (lookupEntry & EXT_INDEX_MASK));
+                lookupEntry = skip(lookupEntry, ipv4 << (byteIdx << 3));
+                byteIdx += length;
+            } else {
+                lookupEntry = nextLookupEntry(lookupEntry, (byte) (ipv4 >>> (24 - (byteIdx << 3))));
+                byteIdx++;
+            }
+        }
+        return lookupEntry;
+    }
+
+    /**
+     * @see FPATree#search(long, long)
+     */
+    public V search(long hi, long lo) {
+        return getValue(lookupIndex(hi, lo));
+    }
+
+    /**
+     * @see FPATree#lookupIndex(long, long)
+     */
+    public int lookupIndex(long hi, long lo) {
+        int lookupEntry = ints.get(rootBase + (int) (hi >>> 48));
+        int byteIdx = 2;
+        while (lookupEntry >>> 30 != TYPE_LEAF) {
+            if (lookupEntry >>> 29 == SKIP_TAG) {
+                int length = ints.get(chunkBase + (lookupEntry & EXT_INDEX_MASK));
+                lookupEntry = skip(lookupEntry, window(hi, lo, byteIdx));
+                byteIdx += length;
+            } else {
+                long bits = byteIdx < 8 ? hi : lo;
+                int shift = 56 - ((byteIdx & 0b111) << 3);
+                lookupEntry = nextLookupEntry(lookupEntry, (byte) (bits >>> shift));
+                byteIdx++;
+            }
+        }
+        return lookupEntry;
+    }
+
+    /**
+     * 根据值索引解码对应的值，每次调用都会重新解码
+     *
+     * @param valueIndex 值索引
+     * @return 对应的值，索引 0 对应 null
+     */
+    public V getValue(int valueIndex) {
+        if (valueIndex == 0) {
+            return null;
+        }
+        int start = ints.get(valueOffsetBase + valueIndex);
+        int end = ints.get(valueOffsetBase + valueIndex + 1);
+        return codec.decode(buffer, valueDataBase + start, end - start);
+    }
+
+    /**
+     * @return 值数量，含索引 0 的 null
+     */
+    public int valueCount() {
+        return valueCount;
+    }
+
+    private int nextLookupEntry(int lookupEntry, byte index8) {
+        int index = lookupEntry & 0x3FFFFFFF;
+        switch (lookupEntry >>> 30) {
+            case TYPE_DENSE:
+                return searchDense(index8, chunkBase + index);
+            case TYPE_SPARSE:
+                return searchSparse(index8, chunkBase + index);
+            case TYPE_EXT:
+                if (index >>> 29 == EXT_RANGE) {
+                    return searchRange(index8, chunkBase + (index & EXT_INDEX_MASK));
+                }
+                return 0;
+            default:
+                return 0;
+        }
+    }
+
+    private int skip(int lookupEntry, int window) {
+        int base = chunkBase + (lookupEntry & EXT_INDEX_MASK);
+        int length = ints.get(base);
+        int diff = (window ^ ints.get(base + 1)) & -1 << ((MAX_SKIP_LENGTH - length) << 3);
+        int layer = Math.min(Integer.numberOfLeadingZeros(diff) >>> 3, length);
+        return ints.get(base + 2 + layer);
+    }
+
+    private int searchDense(byte index8, int base) {
+        int idx = (index8 & 0xFF) >>> 3;
+        short codeWord = (short) (ints.get(base + (idx >>> 1)) >>> ((idx & 1) << 4));
+        int before = codeWord & 0xFF;
+        int onesInCluster = INDEX_TABLE[((codeWord >>> 8) & 0xFF) >>> (7 - index8 & 0b111)];
+        int lookupIdx = before + onesInCluster - 1;
+        return ints.get(base + PACKED_DENSE_HEADER + lookupIdx);
+    }
+
+    private int searchSparse(byte index8, int base) {
+        int end = base + 1 + (ints.get(base) << 1);
+        for (int i = base + 1; i < end; i += 2) {
+            int prefixAndMask = ints.get(i);
+            if ((index8 & (prefixAndMask >>> 8)) == (prefixAndMask & 0xFF)) {
+                return ints.get(i + 1);
+            }
+        }
+        return 0;
+    }
+
+    private int searchRange(byte index8, int base) {
+        int header = ints.get(base);
+        int runs = header & 0xFFFF;
+        int boundsLength = header >>> 16;
+        int boundsBase = base + 1;
+        int key = index8 & 0xFF;
+        int k = 0;
+        for (int half = boundsLength >>> 1; half > 0; half >>>= 1) {
+            int i = k + half;
+            int bound = ints.get(boundsBase + (i >>> 2)) >>> ((i & 0b11) << 3) & 0xFF;
+            k = bound <= key ? i : k;
+        }
+        return ints.get(boundsBase + (boundsLength >>> 2) + Math.min(k, runs - 1));
+    }
+}
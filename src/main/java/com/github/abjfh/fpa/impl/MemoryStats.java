@@ -0,0 +1,262 @@
+package com.github.abjfh.fpa.impl;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+
+/**
+ * 数据结构的分层内存统计
+ *
+ * <p>字节数按当前 JVM 的对象布局计算，包含对象头、数组头与对齐填充：启动时读取 UseCompressedOops、
+ * UseCompressedClassPointers 与 ObjectAlignmentInBytes，读取失败时按 64 位 JVM 开启压缩指针计算。
+ * 字段按类型大小累加后整体对齐，与 HotSpot 的实际字段排布最多相差一个对齐单位。
+ *
+ * <p>值对象本身默认不计入，只统计引用它们的容器；需要计入时向 memoryStats 传入值大小的估算函数，
+ * 同一个值对象只计算一次。
+ */
+public final class MemoryStats {
+
+    // ========== 对象布局 ==========
+
+    private static final int REFERENCE_SIZE;
+    private static final int OBJECT_HEADER;
+    private static final int ARRAY_HEADER;
+    private static final int ALIGNMENT;
+    private static final boolean COMPACT_STRINGS;
+
+    static {
+        boolean is64Bit = !"32".equals(System.getProperty("sun.arch.data.model"));
+        boolean compressedOops = is64Bit;
+        boolean compressedClassPointers = is64Bit;
+        int alignment = 8;
+        try {
+            HotSpotDiagnosticMXBean hotSpot =
+                    ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            compressedOops =
+                    Boolean.parseBoolean(hotSpot.getVMOption("UseCompressedOops").getValue());
+            compressedClassPointers =
+                    Boolean.parseBoolean(
+                            hotSpot.getVMOption("UseCompressedClassPointers").getValue());
+            alignment =
+                    Integer.parseInt(hotSpot.getVMOption("ObjectAlignmentInBytes").getValue());
+        } catch (RuntimeException | LinkageError e) {
+            // 非 HotSpot JVM，使用默认布局
+        }
+        if (is64Bit) {
+            REFERENCE_SIZE = compressedOops ? 4 : 8;
+            OBJECT_HEADER = compressedClassPointers ? 12 : 16;
+            // 数组长度紧跟在对象头后，元素起始位置按 8 字节对齐
+            ARRAY_HEADER = compressedClassPointers ? 16 : 24;
+        } else {
+            REFERENCE_SIZE = 4;
+            OBJECT_HEADER = 8;
+            ARRAY_HEADER = 12;
+        }
+        ALIGNMENT = alignment;
+        COMPACT_STRINGS = !System.getProperty("java.specification.version").startsWith("1.");
+    }
+
+    /**
+     * @return 对象引用占用的字节数
+     */
+    public static int referenceSize() {
+        return REFERENCE_SIZE;
+    }
+
+    /**
+     * @param fieldBytes 所有实例字段（含父类）大小之和
+     * @return 对象占用的字节数
+     */
+    public static long objectBytes(int fieldBytes) {
+        return align(OBJECT_HEADER + fieldBytes);
+    }
+
+    /**
+     * @param length 数组长度
+     * @param elementSize 元素大小，引用数组使用 {@link #referenceSize()}
+     * @return 数组占用的字节数
+     */
+    public static long arrayBytes(long length, int elementSize) {
+        return align(ARRAY_HEADER + length * elementSize);
+    }
+
+    /**
+     * 按容量等于 size 估算 ArrayList，不含扩容余量
+     *
+     * @param size 元素个数
+     * @return ArrayList 对象及其数组占用的字节数，不含元素
+     */
+    static long arrayListBytes(int size) {
+        // modCount、size、elementData
+        return objectBytes(4 + 4 + REFERENCE_SIZE) + arrayBytes(size, REFERENCE_SIZE);
+    }
+
+    /**
+     * 字符串对象及其字符数组的大小；JDK 9 以上按紧凑字符串计算
+     *
+     * @param value 字符串
+     * @return 占用的字节数
+     */
+    public static long stringBytes(String value) {
+        if (!COMPACT_STRINGS) {
+            // value、hash
+            return objectBytes(REFERENCE_SIZE + 4) + arrayBytes(value.length(), 2);
+        }
+        int charSize = 1;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 0xFF) {
+                charSize = 2;
+                break;
+            }
+        }
+        // value、hash、coder、hashIsZero
+        return objectBytes(REFERENCE_SIZE + 4 + 1 + 1) + arrayBytes(value.length(), charSize);
+    }
+
+    private static long align(long bytes) {
+        return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    // ========== 统计结果 ==========
+
+    /** 一层的统计：对象或 chunk 的个数、其中的条目数与字节数 */
+    public static final class Layer {
+        private final String name;
+        private final long count;
+        private final long elements;
+        private final long bytes;
+
+        Layer(String name, long count, long elements, long bytes) {
+            this.name = name;
+            this.count = count;
+            this.elements = elements;
+            this.bytes = bytes;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        /**
+         * @return 对象、chunk 或节点的个数
+         */
+        public long count() {
+            return count;
+        }
+
+        /**
+         * @return 其中的条目数，如 lookupEntry、sparse entry、区间段数
+         */
+        public long elements() {
+            return elements;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+    }
+
+    private final String structure;
+    private final List<Layer> layers = new ArrayList<>();
+
+    MemoryStats(String structure) {
+        this.structure = structure;
+    }
+
+    MemoryStats add(String name, long count, long elements, long bytes) {
+        layers.add(new Layer(name, count, elements, bytes));
+        return this;
+    }
+
+    /**
+     * 统计各值对象，同一对象只计一次
+     *
+     * @param values 值，可能重复或为 null
+     * @param valueBytes 值大小的估算函数，为 null 时只统计个数
+     */
+    <V> MemoryStats addValues(
+            String name, Iterable<? extends V> values, ToLongFunction<? super V> valueBytes) {
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        long bytes = 0;
+        for (V value : values) {
+            if (value != null && seen.add(value) && valueBytes != null) {
+                bytes += valueBytes.applyAsLong(value);
+            }
+        }
+        return add(name, seen.size(), seen.size(), bytes);
+    }
+
+    /**
+     * @return 被统计的数据结构名称
+     */
+    public String structure() {
+        return structure;
+    }
+
+    public List<Layer> layers() {
+        return Collections.unmodifiableList(layers);
+    }
+
+    /**
+     * @param name 层名称
+     * @return 对应的层，不存在时为 null
+     */
+    public Layer layer(String name) {
+        for (Layer layer : layers) {
+            if (layer.name.equals(name)) {
+                return layer;
+            }
+        }
+        return null;
+    }
+
+    public long totalBytes() {
+        long total = 0;
+        for (Layer layer : layers) {
+            total += layer.bytes;
+        }
+        return total;
+    }
+
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append("========== ").append(structure).append(" 内存统计 ==========");
+        report.append(System.lineSeparator());
+        report.append(String.format("%-20s %12s %14s %12s%n", "层", "个数", "条目", "内存"));
+        for (Layer layer : layers) {
+            report.append(
+                    String.format(
+                            "%-20s %12d %14d %12s%n",
+                            layer.name, layer.count, layer.elements, formatBytes(layer.bytes)));
+        }
+        report.append(String.format("总内存: %s%n", formatBytes(totalBytes())));
+        report.append(
+                String.format(
+                        "对象布局: 引用 %d B，对象头 %d B，数组头 %d B，%d 字节对齐%n",
+                        REFERENCE_SIZE, OBJECT_HEADER, ARRAY_HEADER, ALIGNMENT));
+        return report.toString();
+    }
+
+    @Override
+    public String toString() {
+        return report();
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        } else if (bytes < 1024 * 1024) {
+            return String.format("%.2f KB", bytes / 1024.0);
+        } else if (bytes < 1024 * 1024 * 1024) {
+            return String.format("%.2f MB", bytes / (1024.0 * 1024));
+        } else {
+            return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package com.github.abjfh.fpa.impl;
+
+import com.github.abjfh.fpa.IpSearcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 多个前缀集合合并而成的 FPATree，一次遍历得到每个数据集各自的最长前缀匹配结果
+ *
+ * <p>合并时同时遍历各数据集的 BitTrie，在任一数据集有前缀的位置写入一个元组，元组的第 i 项是数据集 i
+ * 在该位置及其祖先中最深的前缀的值索引。地址在合并后的树中匹配到的最长前缀覆盖了各数据集中与它匹配的最长前缀，
+ * 因此该前缀上的元组即为各数据集单独查询的结果。
+ *
+ * <p>查询先通过 {@link #lookupRow(int)} 等方法取得行号，行号即树的值索引，行 0 表示所有数据集均未命中；
+ * 再通过 {@link #valueIndex(int, int)} 或 {@link #value(int, int)} 读取某个数据集的结果。
+ * 各行的元组平铺在一个 int 数组中，读取单个数据集的结果不产生对象。
+ */
+public class MergedFPATree implements IpSearcher<Object[]> {
+    private final FPATree<Void> tree;
+    private final int datasetCount;
+    // 第 row 行第 i 个数据集的值索引位于 row * datasetCount + i
+    private final int[] rows;
+    // 各数据集的值列表，索引 0 为 null
+    private final List<?>[] values;
+
+    private MergedFPATree(FPATree<Void> tree, int datasetCount, int[] rows, List<?>[] values) {
+        this.tree = tree;
+        this.datasetCount = datasetCount;
+        this.rows = rows;
+        this.values = values;
+    }
+
+    // ========== 查询 ==========
+
+    /**
+     * @param ipBytes IP 地址的字节数组
+     * @return 行号，0 表示所有数据集均未命中
+     */
+    public int lookupRow(byte[] ipBytes) {
+        return tree.lookupIndex(ipBytes);
+    }
+
+    /**
+     * @param ipv4 大端序 IPv4 地址
+     * @return 行号，0 表示所有数据集均未命中
+     */
+    public int lookupRow(int ipv4) {
+        return tree.lookupIndex(ipv4);
+    }
+
+    /**
+     * @param hi IPv6 地址高 64 位（大端序）
+     * @param lo IPv6 地址低 64 位（大端序）
+     * @return 行号，0 表示所有数据集均未命中
+     */
+    public int lookupRow(long hi, long lo) {
+        return tree.lookupIndex(hi, lo);
+    }
+
+    /**
+     * @param row {@link #lookupRow(int)} 等方法返回的行号
+     * @param dataset 数据集序号，即加入 {@link Builder} 的顺序
+     * @return 该数据集的值索引，0 表示该数据集未命中
+     */
+    public int valueIndex(int row, int dataset) {
+        return rows[row * datasetCount + dataset];
+    }
+
+    /**
+     * @param row {@link #lookupRow(int)} 等方法返回的行号
+     * @param dataset 数据集序号，即加入 {@link Builder} 的顺序
+     * @return 该数据集的值，未命中返回 null
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V value(int row, int dataset) {
+        return (V) values[dataset].get(rows[row * datasetCount + dataset]);
+    }
+
+    /**
+     * @return 按数据集顺序排列的各数据集的值，未命中的数据集为 null
+     */
+    @Override
+    public Object[] search(byte[] ipBytes) {
+        Object[] out = new Object[datasetCount];
+        fill(tree.lookupIndex(ipBytes), out);
+        return out;
+    }
+
+    /**
+     * 查询 IPv4 地址，各数据集的值按顺序写入 out
+     *
+     * @param ipv4 大端序 IPv4 地址
+     * @param out 长度不小于数据集个数的数组，未命中的数据集写入 null
+     */
+    public void search(int ipv4, Object[] out) {
+        fill(tree.lookupIndex(ipv4), out);
+    }
+
+    /**
+     * 查询 IPv6 地址，各数据集的值按顺序写入 out
+     *
+     * @param hi IPv6 地址高 64 位（大端序）
+     * @param lo IPv6 地址低 64 位（大端序）
+     * @param out 长度不小于数据集个数的数组，未命中的数据集写入 null
+     */
+    public void search(long hi, long lo, Object[] out) {
+        fill(tree.lookupIndex(hi, lo), out);
+    }
+
+    private void fill(int row, Object[] out) {
+        int base = row * datasetCount;
+        for (int i = 0; i < datasetCount; i++) {
+            out[i] = values[i].get(rows[base + i]);
+        }
+    }
+
+    /**
+     * @return 数据集个数
+     */
+    public int datasetCount() {
+        return datasetCount;
+    }
+
+    /**
+     * @return 行数，含行 0
+     */
+    public int rowCount() {
+        return rows.length / datasetCount;
+    }
+
+    /**
+     * @return 合并后的树，值索引即行号
+     */
+    public FPATree<Void> tree() {
+        return tree;
+    }
+
+    /**
+     * 树的各层与元组表的内存统计，值对象本身不计入
+     *
+     * @return 内存统计
+     */
+    public MemoryStats memoryStats() {
+        MemoryStats stats = new MemoryStats("MergedFPATree");
+        for (MemoryStats.Layer layer : tree.memoryStats().layers()) {
+            if (!layer.name().startsWith("value")) {
+                stats.add(layer.name(), layer.count(), layer.elements(), layer.bytes());
+            }
+        }
+        stats.add("rows", rowCount(), rows.length, MemoryStats.arrayBytes(rows.length, 4));
+        for (int i = 0; i < datasetCount; i++) {
+            stats.add(
+                    "dataset " + i + " values",
+                    values[i].size() - 1,
+                    values[i].size(),
+                    MemoryStats.arrayListBytes(values[i].size()));
+        }
+        return stats;
+    }
+
+    // ========== 构建 ==========
+
+    /**
+     * 合并多个数据集的构建器
+     *
+     * <p>各数据集以 BitTrie 给出，地址类型须相同；加入的顺序即数据集序号
+     */
+    public static class Builder {
+        private final TrieToFPAConverter.IP_TYPE ipType;
+        private final FPATree.Builder<Integer> options;
+        private final List<BitTrie<?>> datasets = new ArrayList<>();
+
+        /**
+         * @param ipType 地址类型
+         */
+        public Builder(TrieToFPAConverter.IP_TYPE ipType) {
+            this(ipType, FPATree.Builder());
+        }
+
+        /**
+         * @param ipType 地址类型
+         * @param options 提供 K、区间 chunk、打包布局等构建参数的 Builder
+         */
+        public Builder(TrieToFPAConverter.IP_TYPE ipType, FPATree.Builder<Integer> options) {
+            if (ipType == null) {
+                throw new IllegalArgumentException("ipType cannot be null");
+            }
+            if (options == null) {
+                throw new IllegalArgumentException("options cannot be null");
+            }
+            this.ipType = ipType;
+            this.options = options;
+        }
+
+        /**
+         * 加入一个数据集，之后修改该 BitTrie 不影响已构建的结果
+         *
+         * @param trie 数据集的前缀
+         * @return this
+         */
+        public Builder add(BitTrie<?> trie) {
+            if (trie == null) {
+                throw new IllegalArgumentException("trie cannot be null");
+            }
+            datasets.add(trie);
+            return this;
+        }
+
+        public MergedFPATree build() {
+            if (datasets.isEmpty()) {
+                throw new IllegalArgumentException("at least one dataset is required");
+            }
+            Merger merger = new Merger(datasets.size());
+            BitTrie<Integer> merged = new BitTrie<>();
+            BitTrie.TrieNode<?>[] roots = new BitTrie.TrieNode<?>[datasets.size()];
+            for (int i = 0; i < roots.length; i++) {
+                roots[i] = datasets.get(i).root;
+            }
+            merger.merge(roots, new int[roots.length], merged.root);
+            // 不调用 compress：它合并值相同的左右叶子时不检查叶子下是否还有子节点，会丢失更深的元组
+
+            TrieToFPAConverter converter =
+                    ipType == TrieToFPAConverter.IP_TYPE.IPV4
+                            ? TrieToFPAConverter.IPV4_CONVERTER
+                            : TrieToFPAConverter.IPV6_CONVERTER;
+            FPATree<Integer> tree = options.fpa(converter.convert(merged)).build();
+
+            // 树的值是元组编号，按树的值索引重排为行
+            int datasetCount = roots.length;
+            List<Integer> tupleIds = tree.resultList();
+            int[] rows = new int[tupleIds.size() * datasetCount];
+            for (int row = 1; row < tupleIds.size(); row++) {
+                int[] tuple = merger.tuples.get(tupleIds.get(row));
+                System.arraycopy(tuple, 0, rows, row * datasetCount, datasetCount);
+            }
+            List<?>[] values = new List<?>[datasetCount];
+            for (int i = 0; i < datasetCount; i++) {
+                values[i] = merger.values.get(i);
+            }
+            return new MergedFPATree(tree.withoutValues(), datasetCount, rows, values);
+        }
+    }
+
+    /** 同时遍历各数据集的 BitTrie，为值与元组编号 */
+    private static final class Merger {
+        final List<List<Object>> values = new ArrayList<>();
+        final List<Map<Object, Integer>> valueIndexes = new ArrayList<>();
+        final List<int[]> tuples = new ArrayList<>();
+        final Map<TupleKey, Integer> tupleIds = new HashMap<>();
+
+        Merger(int datasetCount) {
+            for (int i = 0; i < datasetCount; i++) {
+                List<Object> list = new ArrayList<>();
+                list.add(null);
+                values.add(list);
+                valueIndexes.add(new HashMap<>());
+            }
+        }
+
+        /**
+         * @param nodes 各数据集在当前位置的节点，不存在时为 null
+         * @param inherited 当前位置之上各数据集最深前缀的值索引
+         * @param out 合并后的树在当前位置的节点
+         */
+        void merge(BitTrie.TrieNode<?>[] nodes, int[] inherited, BitTrie.TrieNode<Integer> out) {
+            int[] tuple = inherited;
+            for (int i = 0; i < nodes.length; i++) {
+                if (nodes[i] != null && nodes[i].isLeaf) {
+                    int valueIndex = valueIndex(i, nodes[i].value);
+                    if (valueIndex != tuple[i]) {
+                        if (tuple == inherited) {
+                            tuple = inherited.clone();
+                        }
+                        tuple[i] = valueIndex;
+                    }
+                }
+            }
+            if (tuple != inherited) {
+                out.value = tupleId(tuple);
+                out.isLeaf = true;
+            }
+
+            BitTrie.TrieNode<?>[] left = null;
+            BitTrie.TrieNode<?>[] right = null;
+            for (int i = 0; i < nodes.length; i++) {
+                if (nodes[i] == null) {
+                    continue;
+                }
+                if (nodes[i].leftChild != null) {
+                    if (left == null) {
+                        left = new BitTrie.TrieNode<?>[nodes.length];
+                    }
+                    left[i] = nodes[i].leftChild;
+                }
+                if (nodes[i].rightChild != null) {
+                    if (right == null) {
+                        right = new BitTrie.TrieNode<?>[nodes.length];
+                    }
+                    right[i] = nodes[i].rightChild;
+                }
+            }
+            if (left != null) {
+                out.leftChild = new BitTrie.TrieNode<>();
+                merge(left, tuple, out.leftChild);
+            }
+            if (right != null) {
+                out.rightChild = new BitTrie.TrieNode<>();
+                merge(right, tuple, out.rightChild);
+            }
+        }
+
+        int valueIndex(int dataset, Object value) {
+            Integer index = valueIndexes.get(dataset).get(value);
+            if (index == null) {
+                List<Object> list = values.get(dataset);
+                index = list.size();
+                list.add(value);
+                valueIndexes.get(dataset).put(value, index);
+            }
+            return index;
+        }
+
+        int tupleId(int[] tuple) {
+            TupleKey key = new TupleKey(tuple);
+            Integer id = tupleIds.get(key);
+            if (id == null) {
+                id = tuples.size();
+                tuples.add(tuple);
+                tupleIds.put(key, id);
+            }
+            return id;
+        }
+    }
+
+    private static final class TupleKey {
+        final int[] tuple;
+        final int hash;
+
+        TupleKey(int[] tuple) {
+            this.tuple = tuple;
+            this.hash = Arrays.hashCode(tuple);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TupleKey && Arrays.equals(tuple, ((TupleKey) o).tuple);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package com.github.abjfh.fpa.impl;
+
+import com.github.abjfh.fpa.IpSearcher;
+
+import java.util.*;
+
+/**
+ * 支持增量更新的 FPATree
+ *
+ * <p>以未压缩的精确前缀树为准，每次 put / remove 只重新编码前缀路径上的 chunk 与被前缀覆盖的子树， 其余子树原样复用（写时复制）。新
+ * chunk 以打包布局追加到共享 chunk 区的末尾，再复制一份根数组发布为新版本。 读者通过一次 volatile 读取拿到当前版本后全程无锁，旧版本引用的
+ * chunk 不会被改写。 被替换的 chunk 累积到超过存活数据量时整体重建一次，回收空间。写操作之间互斥。
+ *
+ * @param <V> 值类型
+ */
+public class MutableFPATree<V> implements IpSearcher<V> {
+    // ========== 常量定义 ==========
+
+    private static final int ROOT_SIZE = 65536;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final TrieToFPAConverter.IP_TYPE ipType;
+    private final TrieToFPAConverter converter;
+    private final int addressBytes;
+    private final BitTrie<V> prefixes;
+
+    // ========== 写者私有状态 ==========
+    private Hashtable<V, Integer> idxTable;
+    private List<V> resultList;
+    private int[] rootChunk;
+    // 只追加的 chunk 区与值区，[0, chunkSize) / [0, valueSize) 之外的位置对已发布版本不可见
+    private int[] chunkArena;
+    private int chunkSize;
+    private Object[] valueArena;
+    private int valueSize;
+    // chunk 区中已不被当前根数组引用的 int 数
+    private long garbage;
+
+    // ========== 已发布版本 ==========
+    private volatile FPATree<V> current;
+    private volatile long version;
+
+    /**
+     * @param ipType 地址类型
+     * @param prefixes 未压缩的前缀树，须通过 {@link BitTrie#putExact(byte[], int, Object)} 写入；构造后归本对象所有
+     */
+    public MutableFPATree(TrieToFPAConverter.IP_TYPE ipType, BitTrie<V> prefixes) {
+        this.ipType = ipType;
+        this.converter =
+                ipType == TrieToFPAConverter.IP_TYPE.IPV4
+                        ? TrieToFPAConverter.IPV4_CONVERTER
+                        : TrieToFPAConverter.IPV6_CONVERTER;
+        this.addressBytes = ipType == TrieToFPAConverter.IP_TYPE.IPV4 ? 4 : 16;
+        this.prefixes = prefixes;
+        rebuild();
+    }
+
+    @Override
+    public V search(byte[] ipBytes) {
+        return current.search(ipBytes);
+    }
+
+    /**
+     * 取得当前版本，返回的树不会再被修改
+     *
+     * @return 当前版本的 FPATree
+     */
+    public FPATree<V> snapshot() {
+        return current;
+    }
+
+    /**
+     * @return 已发布的版本号，每次更新加 1
+     */
+    public long version() {
+        return version;
+    }
+
+    /**
+     * 插入或替换前缀，并发布新版本；重新编码失败时前缀树与当前版本均保持不变
+     *
+     * @param prefixKey 前缀地址，长度须与地址类型一致
+     * @param prefixLength 前缀长度（位数）
+     * @param value 要存储的值
+     */
+    public synchronized void put(byte[] prefixKey, int prefixLength, V value) {
+        checkAddressLength(prefixKey);
+        if (value == null) {
+            throw new IllegalArgumentException("value cannot be null");
+        }
+        V previous = prefixes.remove(prefixKey, prefixLength);
+        prefixes.putExact(prefixKey, prefixLength, value);
+        try {
+            update(prefixKey, prefixLength);
+        } catch (RuntimeException | Error e) {
+            prefixes.remove(prefixKey, prefixLength);
+            if (previous != null) {
+                prefixes.putExact(prefixKey, prefixLength, previous);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 删除前缀，并发布新版本；重新编码失败时前缀树与当前版本均保持不变
+     *
+     * @param prefixKey 前缀地址，长度须与地址类型一致
+     * @param prefixLength 前缀长度（位数）
+     * @return 被删除的值，前缀不存在时返回 null 且不发布新版本
+     */
+    public synchronized V remove(byte[] prefixKey, int prefixLength) {
+        checkAddressLength(prefixKey);
+        V removed = prefixes.remove(prefixKey, prefixLength);
+        if (removed != null) {
+            try {
+                update(prefixKey, prefixLength);
+            } catch (RuntimeException | Error e) {
+                prefixes.putExact(prefixKey, prefixLength, removed);
+                throw e;
+            }
+        }
+        return removed;
+    }
+
+    private void checkAddressLength(byte[] prefixKey) {
+        if (prefixKey == null || prefixKey.length != addressBytes) {
+            throw new IllegalArgumentException("prefixKey must be " + addressBytes + " bytes");
+        }
+    }
+
+    /**
+     * 重新编码前缀路径上的 chunk 以及前缀覆盖的子树并发布新版本
+     *
+     * <p>编码失败时（例如偏移超出 lookupEntry 的表示范围）写者状态恢复到调用前，下一次更新不会沿用编码到一半的根数组
+     */
+    private void update(byte[] prefixKey, int prefixLength) {
+        // chunk 区与值区只追加，恢复长度即可丢弃失败时写入的部分；rebuild 会换成新数组，因此同时保留引用
+        int[] savedRootChunk = rootChunk;
+        int[] savedChunkArena = chunkArena;
+        int savedChunkSize = chunkSize;
+        Object[] savedValueArena = valueArena;
+        int savedValueSize = valueSize;
+        long savedGarbage = garbage;
+        Hashtable<V, Integer> savedIdxTable = idxTable;
+        List<V> savedResultList = resultList;
+        int savedResultCount = resultList.size();
+        try {
+            reencode(prefixKey, prefixLength);
+        } catch (RuntimeException | Error e) {
+            rootChunk = savedRootChunk;
+            chunkArena = savedChunkArena;
+            chunkSize = savedChunkSize;
+            valueArena = savedValueArena;
+            valueSize = savedValueSize;
+            garbage = savedGarbage;
+            idxTable = savedIdxTable;
+            resultList = savedResultList;
+            for (int i = resultList.size() - 1; i >= savedResultCount; i--) {
+                idxTable.remove(resultList.remove(i));
+            }
+            throw e;
+        }
+    }
+
+    private void reencode(byte[] prefixKey, int prefixLength) {
+        rootChunk = rootChunk.clone();
+        if (prefixLength <= 16) {
+            int slotCount = 1 << (16 - prefixLength);
+            int firstSlot = ((prefixKey[0] & 0xFF) << 8 | prefixKey[1] & 0xFF) & -slotCount;
+            int[] slots = new int[slotCount];
+            for (int i = 0; i < slotCount; i++) {
+                slots[i] = firstSlot + i;
+                garbage += subtreeLength(rootChunk[slots[i]]);
+            }
+            encodeRootSlots(slots);
+        } else {
+            int slot = (prefixKey[0] & 0xFF) << 8 | prefixKey[1] & 0xFF;
+            BitTrie.TrieNode<V> node = prefixes.root;
+            V value = node.isLeaf ? node.value : null;
+            for (int i = 0; i < 16 && node != null; i++) {
+                node = bit(prefixKey, i) ? node.rightChild : node.leftChild;
+                if (node != null && node.isLeaf) {
+                    value = node.value;
+                }
+            }
+            rootChunk[slot] = rewrite(rootChunk[slot], node, value, 16, 1, prefixKey, prefixLength);
+        }
+        if (garbage > chunkSize - garbage) {
+            rebuild();
+        } else {
+            publish();
+        }
+    }
+
+    /**
+     * 以写时复制方式重写 depth 处的一个 chunk：前缀结束于本层时重新编码被覆盖的槽位， 否则沿前缀继续向下重写；其余槽位沿用旧 lookupEntry
+     *
+     * @param oldEntry 旧 lookupEntry
+     * @param node depth 处的 Trie 节点，不存在时为 null
+     * @param value 覆盖 depth 处的最长前缀的值
+     * @param depth chunk 之前已消耗的位数
+     * @param depthIndex chunk 所在层在 depths 数组中的索引
+     * @return 新 lookupEntry
+     */
+    private int rewrite(
+            int oldEntry,
+            BitTrie.TrieNode<V> node,
+            V value,
+            int depth,
+            int depthIndex,
+            byte[] prefixKey,
+            int prefixLength) {
+        int[] slotEntries = decodeChunk(oldEntry);
+        if (oldEntry >>> 30 != FPATree.TYPE_LEAF) {
+            garbage += current.packedChunkLength(oldEntry);
+        }
+
+        int slot = prefixKey[depth >>> 3] & 0xFF;
+        if (prefixLength <= depth + 8) {
+            int slotCount = 1 << (depth + 8 - prefixLength);
+            int[] slots = new int[slotCount];
+            for (int i = 0; i < slotCount; i++) {
+                slots[i] = (slot & -slotCount) + i;
+                garbage += subtreeLength(slotEntries[slots[i]]);
+            }
+            int[] entries = encodeSubtrees(slots, node, value, 8, depthIndex + 1);
+            for (int i = 0; i < slotCount; i++) {
+                slotEntries[slots[i]] = entries[i];
+            }
+        } else {
+            BitTrie.TrieNode<V> child = node;
+            V childValue = value;
+            for (int i = 0; i < 8 && child != null; i++) {
+                child = ((slot >>> (7 - i)) & 1) == 1 ? child.rightChild : child.leftChild;
+                if (child != null && child.isLeaf) {
+                    childValue = child.value;
+                }
+            }
+            slotEntries[slot] =
+                    rewrite(
+                            slotEntries[slot],
+                            child,
+                            childValue,
+                            depth + 8,
+                            depthIndex + 1,
+                            prefixKey,
+                            prefixLength);
+        }
+
+        // 所有槽位指向同一个值时无需 chunk
+        boolean uniform = slotEntries[0] >>> 30 == FPATree.TYPE_LEAF;
+        for (int i = 1; i < slotEntries.length && uniform; i++) {
+            uniform = slotEntries[i] == slotEntries[0];
+        }
+        if (uniform) {
+            return slotEntries[0];
+        }
+        FPATree.Builder<V> builder = newBuilder();
+        int[] lookupEntry = {builder.encodeChunk(slotEntries)};
+        append(builder, lookupEntry, false);
+        return lookupEntry[0];
+    }
+
+    /** 丢弃所有 chunk 与值，按前缀树整体重建 */
+    private void rebuild() {
+        idxTable = new Hashtable<>();
+        resultList = new ArrayList<>();
+        resultList.add(null);
+        rootChunk = new int[ROOT_SIZE];
+        chunkArena = new int[INITIAL_CAPACITY];
+        chunkSize = 0;
+        valueArena = new Object[INITIAL_CAPACITY];
+        valueSize = 1;
+        garbage = 0;
+        int[] slots = new int[ROOT_SIZE];
+        for (int slot = 0; slot < ROOT_SIZE; slot++) {
+            slots[slot] = slot;
+        }
+        encodeRootSlots(slots);
+        publish();
+    }
+
+    /** 重新编码根层的若干槽位，结果写入根数组 */
+    private void encodeRootSlots(int[] slots) {
+        BitTrie.TrieNode<V> root = prefixes.root;
+        int[] entries = encodeSubtrees(slots, root, root.isLeaf ? root.value : null, 16, 1);
+        for (int i = 0; i < slots.length; i++) {
+            rootChunk[slots[i]] = entries[i];
+        }
+    }
+
+    /**
+     * 将同一个 chunk 中的若干槽位按 Trie 重新编码为完整子树，新 chunk 追加到 chunk 区
+     *
+     * @param slots 槽位，每个槽位占 stride 位
+     * @param node chunk 所在深度的 Trie 节点，不存在时为 null
+     * @param value 覆盖 chunk 所在深度的最长前缀的值
+     * @param stride 槽位位数
+     * @param nextDepthIndex 槽位下一层在 depths 数组中的索引
+     * @return 各槽位的 lookupEntry
+     */
+    private int[] encodeSubtrees(
+            int[] slots, BitTrie.TrieNode<V> node, V value, int stride, int nextDepthIndex) {
+        FPATree.Builder<V> builder = newBuilder();
+        int[] entries = new int[slots.length];
+        for (int s = 0; s < slots.length; s++) {
+            // 沿槽位的各位找到对应节点，同时记录覆盖该槽位的最长前缀的值
+            BitTrie.TrieNode<V> slotNode = node;
+            V slotValue = value;
+            for (int i = stride - 1; i >= 0 && slotNode != null; i--) {
+                slotNode =
+                        ((slots[s] >>> i) & 1) == 1 ? slotNode.rightChild : slotNode.leftChild;
+                if (slotNode != null && slotNode.isLeaf) {
+                    slotValue = slotNode.value;
+                }
+            }
+            entries[s] =
+                    builder.processLookupEntry(
+                            converter.convertSlot(slotNode, slotValue, nextDepthIndex));
+        }
+        append(builder, entries, true);
+        return entries;
+    }
+
+    private FPATree.Builder<V> newBuilder() {
+        // 跳跃节点会把下层并入上层，而这里的 chunk 须逐层解码、按层复用，因此不使用
+        FPATree.Builder<V> builder = FPATree.<V>Builder().skipNodes(false);
+        builder.idxTable = idxTable;
+        builder.resultList = resultList;
+        return builder;
+    }
+
+    /**
+     * 将 builder 中的 chunk 打包并追加到 chunk 区，entries 中的 lookupEntry 被原地改写为最终偏移
+     *
+     * @param relocateChildren chunk 内的 lookupEntry 是否为 builder 内的局部索引
+     */
+    private void append(FPATree.Builder<V> builder, int[] entries, boolean relocateChildren) {
+        builder.transformDenseChunk();
+        int[] chunks =
+                FPATree.packChunks(
+                        entries,
+                        builder.denseChunkCodes,
+                        builder.denseChunkLookupEntries,
+                        builder.sparseChunkList,
+                        builder.rangeChunkList,
+                        builder.skipChunkList,
+                        chunkSize,
+                        relocateChildren);
+        if (chunkSize + chunks.length > chunkArena.length) {
+            int capacity = Math.max(chunkSize + chunks.length, chunkArena.length << 1);
+            chunkArena = Arrays.copyOf(chunkArena, capacity);
+        }
+        System.arraycopy(chunks, 0, chunkArena, chunkSize, chunks.length);
+        chunkSize += chunks.length;
+    }
+
+    /** 展开 lookupEntry 指向的 chunk 的 256 个槽位；叶子视为所有槽位相同 */
+    private int[] decodeChunk(int lookupEntry) {
+        int[] slotEntries = new int[256];
+        if (lookupEntry >>> 30 == FPATree.TYPE_LEAF) {
+            Arrays.fill(slotEntries, lookupEntry);
+        } else {
+            for (int i = 0; i < 256; i++) {
+                slotEntries[i] = current.nextLookupEntry(lookupEntry, (byte) i);
+            }
+        }
+        return slotEntries;
+    }
+
+    /** lookupEntry 指向的 chunk 及其下所有 chunk 占用的 int 数 */
+    private long subtreeLength(int lookupEntry) {
+        if (lookupEntry >>> 30 == FPATree.TYPE_LEAF) {
+            return 0;
+        }
+        long length = current.packedChunkLength(lookupEntry);
+        int previous = 0;
+        for (int i = 0; i < 256; i++) {
+            int child = current.nextLookupEntry(lookupEntry, (byte) i);
+            if (child != previous) {
+                length += subtreeLength(child);
+                previous = child;
+            }
+        }
+        return length;
+    }
+
+    private static boolean bit(byte[] bytes, int i) {
+        return ((bytes[i >>> 3] >> (7 - (i & 0b111))) & 1) == 1;
+    }
+
+    /** 将新增的值追加到值区，并以当前根数组发布新版本 */
+    @SuppressWarnings("unchecked")
+    private void publish() {
+        if (resultList.size() > valueArena.length) {
+            valueArena =
+                    Arrays.copyOf(valueArena, Math.max(resultList.size(), valueArena.length << 1));
+        }
+        for (; valueSize < resultList.size(); valueSize++) {
+            valueArena[valueSize] = resultList.get(valueSize);
+        }
+        current =
+                new FPATree<>(
+                        ipType, rootChunk, chunkArena, (List<V>) Arrays.asList(valueArena));
+        version++;
+    }
+}
@@ -0,0 +1,266 @@
+package com.github.abjfh.fpa.impl;
+
+import com.github.abjfh.fpa.IpSearcher;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 可在后台重建并原子替换的查询器
+ *
+ * <p>新版本在后台线程中构建，完成后通过一次 volatile 写发布，读者只做一次 volatile 读，不会阻塞，也不会看到构建到一半的结构。
+ * 同时进行的构建数量有上限，避免重叠的重载使堆峰值翻倍；超出上限的 reload 在本对象内排队，不占用线程池线程。
+ * 排队中的多个 reload 只构建最晚发起的一个，较早的请求跟随它的结果完成；已有更晚的版本发布时，较早的构建被跳过或其结果被丢弃。
+ * 本对象不持有被替换的版本，读者用完后即可被回收。
+ *
+ * <p>使用单参数构造器时，本对象持有一个内部线程，用完后应调用 {@link #close()} 关闭
+ *
+ * @param <V> 值类型
+ */
+public class ReloadableSearcher<V> implements IpSearcher<V>, AutoCloseable {
+
+    private static final class Snapshot<V> {
+        final IpSearcher<V> searcher;
+        final long version;
+        final long publishedNanos;
+        final long buildNanos;
+
+        Snapshot(IpSearcher<V> searcher, long version, long publishedNanos, long buildNanos) {
+            this.searcher = searcher;
+            this.version = version;
+            this.publishedNanos = publishedNanos;
+            this.buildNanos = buildNanos;
+        }
+    }
+
+    private static final class Request<V> {
+        final long version;
+        final Callable<? extends IpSearcher<V>> builder;
+        final CompletableFuture<Boolean> future;
+
+        Request(long version, Callable<? extends IpSearcher<V>> builder, CompletableFuture<Boolean> future) {
+            this.version = version;
+            this.builder = builder;
+            this.future = future;
+        }
+    }
+
+    private final AtomicReference<Snapshot<V>> current;
+    private final AtomicLong requestSequence = new AtomicLong();
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final int maxConcurrentBuilds;
+
+    // 以下字段由 this 保护
+    private final ArrayDeque<Request<V>> pending = new ArrayDeque<>();
+    private int runningBuilds;
+    private boolean closed;
+
+    /**
+     * 使用内部的单线程守护线程执行构建，同一时间最多一个构建，用完后应调用 {@link #close()}
+     *
+     * @param initial 初始版本
+     */
+    public ReloadableSearcher(IpSearcher<V> initial) {
+        this(
+                initial,
+                Executors.newSingleThreadExecutor(
+                        r -> {
+                            Thread thread = new Thread(r, "ip-searcher-reload");
+                            thread.setDaemon(true);
+                            return thread;
+                        }),
+                1,
+                true);
+    }
+
+    /**
+     * 线程池由调用方持有，{@link #close()} 不会关闭它
+     *
+     * @param initial 初始版本
+     * @param executor 执行构建的线程池
+     * @param maxConcurrentBuilds 同时进行的最大构建数
+     */
+    public ReloadableSearcher(IpSearcher<V> initial, Executor executor, int maxConcurrentBuilds) {
+        this(initial, executor, maxConcurrentBuilds, false);
+    }
+
+    private ReloadableSearcher(
+            IpSearcher<V> initial, Executor executor, int maxConcurrentBuilds, boolean ownsExecutor) {
+        if (initial == null) {
+            throw new IllegalArgumentException("initial searcher cannot be null");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("executor cannot be null");
+        }
+        if (maxConcurrentBuilds < 1) {
+            throw new IllegalArgumentException("maxConcurrentBuilds must be positive");
+        }
+        this.current = new AtomicReference<>(new Snapshot<>(initial, 0, System.nanoTime(), 0));
+        this.executor = executor;
+        this.ownedExecutor = ownsExecutor ? (ExecutorService) executor : null;
+        this.maxConcurrentBuilds = maxConcurrentBuilds;
+    }
+
+    @Override
+    public V search(byte[] ipBytes) throws Exception {
+        return current.get().searcher.search(ipBytes);
+    }
+
+    /**
+     * 取得当前版本，可用于调用具体实现上的原始类型查询方法
+     *
+     * @return 当前版本的查询器
+     */
+    public IpSearcher<V> current() {
+        return current.get().searcher;
+    }
+
+    /**
+     * 在后台构建新版本，构建完成后原子替换当前版本
+     *
+     * <p>构建数量已达上限时请求在本对象内排队，直到其他构建结束。开始构建时排队中的多个请求只构建最晚发起的一个，
+     * 较早的请求跟随它的结果：它发布或被更晚的版本取代时完成为 false，构建失败时以同一异常完成
+     *
+     * @param builder 构建新版本的任务
+     * @return 构建结果：true 表示已发布，false 表示已有更晚的版本发布，本次未构建或结果被丢弃
+     * @throws IllegalStateException 已调用 {@link #close()}
+     */
+    public CompletableFuture<Boolean> reload(Callable<? extends IpSearcher<V>> builder) {
+        if (builder == null) {
+            throw new IllegalArgumentException("builder cannot be null");
+        }
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("searcher is closed");
+            }
+            pending.addLast(new Request<>(requestSequence.incrementAndGet(), builder, future));
+        }
+        dispatch();
+        return future;
+    }
+
+    /** 在构建数量未达上限时取出排队中最晚的请求交给线程池，较早的请求跟随它的结果 */
+    private void dispatch() {
+        while (true) {
+            Request<V> request;
+            List<Request<V>> coalesced;
+            synchronized (this) {
+                if (pending.isEmpty() || runningBuilds >= maxConcurrentBuilds) {
+                    return;
+                }
+                request = pending.pollLast();
+                coalesced = new ArrayList<>(pending);
+                pending.clear();
+                runningBuilds++;
+            }
+            for (Request<V> older : coalesced) {
+                request.future.whenComplete(
+                        (published, error) -> {
+                            if (error != null) {
+                                older.future.completeExceptionally(error);
+                            } else {
+                                older.future.complete(false);
+                            }
+                        });
+            }
+            try {
+                executor.execute(() -> build(request));
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    runningBuilds--;
+                }
+                request.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void build(Request<V> request) {
+        try {
+            if (current.get().version > request.version) {
+                request.future.complete(false);
+                return;
+            }
+            long start = System.nanoTime();
+            IpSearcher<V> searcher = request.builder.call();
+            long end = System.nanoTime();
+            request.future.complete(publish(searcher, request.version, end, end - start));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            request.future.completeExceptionally(e);
+        } catch (Throwable e) {
+            request.future.completeExceptionally(e);
+        } finally {
+            synchronized (this) {
+                runningBuilds--;
+            }
+            dispatch();
+        }
+    }
+
+    private boolean publish(
+            IpSearcher<V> searcher, long version, long publishedNanos, long buildNanos) {
+        if (searcher == null) {
+            throw new IllegalStateException("builder returned null");
+        }
+        Snapshot<V> next = new Snapshot<>(searcher, version, publishedNanos, buildNanos);
+        while (true) {
+            Snapshot<V> previous = current.get();
+            if (previous.version > version) {
+                return false;
+            }
+            if (current.compareAndSet(previous, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return 当前版本号，初始版本为 0，之后为发布该版本的 reload 调用序号
+     */
+    public long version() {
+        return current.get().version;
+    }
+
+    /**
+     * @return 当前版本发布至今的时长（毫秒）
+     */
+    public long ageMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - current.get().publishedNanos);
+    }
+
+    /**
+     * @return 构建当前版本所用的时长（毫秒），初始版本为 0
+     */
+    public long buildDurationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(current.get().buildNanos);
+    }
+
+    /**
+     * 停止接受新的 reload，排队中尚未开始的请求以 {@link CancellationException} 完成，已开始的构建照常完成并发布。
+     * 使用单参数构造器时同时关闭内部线程；调用方传入的线程池不受影响。查询不受影响，可继续使用当前版本
+     */
+    @Override
+    public void close() {
+        List<Request<V>> cancelled;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            cancelled = new ArrayList<>(pending);
+            pending.clear();
+        }
+        for (Request<V> request : cancelled) {
+            request.future.completeExceptionally(new CancellationException("searcher is closed"));
+        }
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package com.github.abjfh.fpa.impl;
+
+import java.util.Arrays;
+
+/**
+ * 直接由有序前缀流构建 FPATree，不经过 BitTrie 和 ForwardingPortArray
+ *
+ * <p>前缀须按地址升序、地址相同时按前缀长度升序依次加入，因此包含关系中外层前缀总是先于内层前缀到达。 构建过程只保留当前路径上每层一个正在填充的
+ * chunk：前缀到达时把它覆盖的槽位涂成它的值，更长的前缀随后覆盖其中的一部分；地址离开某个 chunk 的范围后该 chunk 即可编码输出。
+ * 工作内存只有根数组与每层 256 个槽位，与前缀数量无关。
+ *
+ * @param <V> 值类型
+ */
+public class StreamingFPATreeBuilder<V> {
+    // ========== 常量定义 ==========
+
+    private static final int ROOT_BITS = 16;
+    private static final int CHUNK_BITS = 8;
+
+    private final FPATree.Builder<V> builder;
+    private final TrieToFPAConverter.IP_TYPE ipType;
+    private final int addressBytes;
+    // 根层之下的层数
+    private final int chunkLayers;
+
+    private final int[] rootChunk = new int[1 << ROOT_BITS];
+    // chunks[k] 为第 k + 1 层正在填充的 chunk，其在上一层中的槽位为 pathSlots[k]
+    private final int[][] chunks;
+    private final int[] pathSlots;
+    private int openLayers;
+
+    // 当前前缀去掉前缀长度之后的位，逐次复用
+    private final byte[] address;
+    private final byte[] lastAddress;
+    // 区间拆分出的前缀块，逐次复用
+    private final byte[] rangeKey;
+    private int rangeValueIndex;
+    private final BlockSink rangeSink = this::addRangeBlock;
+    private int lastPrefixLength = -1;
+
+    /** 接收区间拆分出的前缀块，IPv4 地址存放在 lo 的低 32 位 */
+    interface BlockSink {
+        void accept(long hi, long lo, int prefixLength);
+    }
+
+    /**
+     * 使用默认构建参数
+     *
+     * @param ipType 地址类型
+     */
+    public StreamingFPATreeBuilder(TrieToFPAConverter.IP_TYPE ipType) {
+        this(ipType, FPATree.Builder());
+    }
+
+    /**
+     * @param ipType 地址类型
+     * @param builder 提供 K、区间 chunk、打包布局等构建参数的 Builder，不需要设置 fpa
+     */
+    public StreamingFPATreeBuilder(TrieToFPAConverter.IP_TYPE ipType, FPATree.Builder<V> builder) {
+        this.builder = builder;
+        this.ipType = ipType;
+        this.addressBytes = ipType == TrieToFPAConverter.IP_TYPE.IPV4 ? 4 : 16;
+        this.chunkLayers = ipType.getIpDepths().length - 1;
+        this.chunks = new int[chunkLayers][1 << CHUNK_BITS];
+        this.pathSlots = new int[chunkLayers];
+        this.address = new byte[addressBytes];
+        this.lastAddress = new byte[addressBytes];
+        this.rangeKey = new byte[addressBytes];
+    }
+
+    /**
+     * 加入一个前缀
+     *
+     * @param prefixKey 前缀地址，前缀长度之后的位被忽略
+     * @param prefixLength 前缀长度（位数）
+     * @param value 前缀的值
+     * @return this
+     * @throws IllegalArgumentException 参数非法，或前缀未按地址、长度升序加入
+     */
+    public StreamingFPATreeBuilder<V> add(byte[] prefixKey, int prefixLength, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("value cannot be null");
+        }
+        return addValueIndex(prefixKey, prefixLength, builder.getValueIndex(value));
+    }
+
+    /**
+     * 以已分配的值索引加入一个前缀，供值不存放在 Builder 中的变体使用
+     *
+     * @param valueIndex 值索引，须大于 0
+     */
+    StreamingFPATreeBuilder<V> addValueIndex(byte[] prefixKey, int prefixLength, int valueIndex) {
+        if (prefixKey == null || prefixKey.length != addressBytes) {
+            throw new IllegalArgumentException("prefixKey must be " + addressBytes + " bytes");
+        }
+        if (prefixLength < 0 || prefixLength > addressBytes * 8) {
+            throw new IllegalArgumentException(
+                    "prefixLength must be between 0 and " + (addressBytes * 8));
+        }
+        mask(prefixKey, prefixLength);
+        checkOrder(address, prefixLength);
+
+        // 关闭不再包含该地址的 chunk
+        int matched = 0;
+        while (matched < openLayers && pathSlots[matched] == slotAt(address, matched)) {
+            matched++;
+        }
+        closeTo(matched);
+
+        // 前缀结束于第 layer 层：0 为根层，其余为 8 位的 chunk 层
+        int layer =
+                prefixLength <= ROOT_BITS
+                        ? 0
+                        : (prefixLength - ROOT_BITS + CHUNK_BITS - 1) / CHUNK_BITS;
+        while (openLayers < layer) {
+            open(slotAt(address, openLayers));
+        }
+
+        int layerEnd = ROOT_BITS + layer * CHUNK_BITS;
+        int slotCount = 1 << (layerEnd - prefixLength);
+        int firstSlot = slotAt(address, layer);
+        int[] slots = layer == 0 ? rootChunk : chunks[layer - 1];
+        Arrays.fill(
+                slots,
+                firstSlot,
+                firstSlot + slotCount,
+                FPATree.Builder.encodeLookupEntry(FPATree.TYPE_LEAF, valueIndex));
+
+        System.arraycopy(address, 0, lastAddress, 0, addressBytes);
+        lastPrefixLength = prefixLength;
+        return this;
+    }
+
+    /**
+     * 加入一个地址区间，按算术方式拆分为若干对齐的前缀块依次加入，不创建中间对象
+     *
+     * @param start 起始地址（含）
+     * @param end 结束地址（含），不小于 start
+     * @param value 区间的值
+     * @return this
+     * @throws IllegalArgumentException 参数非法，或区间未按地址升序加入
+     */
+    public StreamingFPATreeBuilder<V> addRange(byte[] start, byte[] end, V value) {
+        if (start == null
+                || start.length != addressBytes
+                || end == null
+                || end.length != addressBytes) {
+            throw new IllegalArgumentException("start and end must be " + addressBytes + " bytes");
+        }
+        if (addressBytes == 4) {
+            return addRange(toLong(start, 0, 4), toLong(end, 0, 4), value);
+        }
+        return addRange(
+                toLong(start, 0, 8),
+                toLong(start, 8, 8),
+                toLong(end, 0, 8),
+                toLong(end, 8, 8),
+                value);
+    }
+
+    /**
+     * 加入一个 IPv4 地址区间
+     *
+     * @param start 起始地址（含）
+     * @param end 结束地址（含），按无符号数不小于 start
+     * @param value 区间的值
+     * @return this
+     */
+    public StreamingFPATreeBuilder<V> addRange(int start, int end, V value) {
+        if (addressBytes != 4) {
+            throw new IllegalArgumentException("int ranges are only supported for IPv4");
+        }
+        return addRange(start & 0xFFFFFFFFL, end & 0xFFFFFFFFL, value);
+    }
+
+    /**
+     * 加入一个 IPv6 地址区间，地址以高、低 64 位表示
+     *
+     * @param value 区间的值
+     * @return this
+     */
+    public StreamingFPATreeBuilder<V> addRange(
+            long startHi, long startLo, long endHi, long endLo, V value) {
+        if (addressBytes != 16) {
+            throw new IllegalArgumentException("long ranges are only supported for IPv6");
+        }
+        checkRange(startHi, startLo, endHi, endLo, value);
+        return addRangeValueIndex(startHi, startLo, endHi, endLo, builder.getValueIndex(value));
+    }
+
+    private StreamingFPATreeBuilder<V> addRange(long start, long end, V value) {
+        checkRange(0, start, 0, end, value);
+        return addRangeValueIndex(0, start, 0, end, builder.getValueIndex(value));
+    }
+
+    private void checkRange(long startHi, long startLo, long endHi, long endLo, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("value cannot be null");
+        }
+        if (compare(startHi, startLo, endHi, endLo) > 0) {
+            throw new IllegalArgumentException("start must not be greater than end");
+        }
+    }
+
+    /**
+     * 以已分配的值索引加入一个区间，IPv4 地址存放在低 64 位中
+     *
+     * @param valueIndex 值索引，须大于 0
+     */
+    StreamingFPATreeBuilder<V> addRangeValueIndex(
+            long startHi, long startLo, long endHi, long endLo, int valueIndex) {
+        rangeValueIndex = valueIndex;
+        splitRange(startHi, startLo, endHi, endLo, addressBytes * 8, rangeSink);
+        return this;
+    }
+
+    private void addRangeBlock(long hi, long lo, int prefixLength) {
+        if (addressBytes == 4) {
+            writeLong(rangeKey, 0, lo, 4);
+        } else {
+            writeLong(rangeKey, 0, hi, 8);
+            writeLong(rangeKey, 8, lo, 8);
+        }
+        addValueIndex(rangeKey, prefixLength, rangeValueIndex);
+    }
+
+    /**
+     * 把区间按地址升序拆分为最少的对齐前缀块，依次交给 sink
+     *
+     * @param addressBits 地址位数，32 或 128；IPv4 地址存放在低 64 位中，高 64 位为 0
+     * @param sink 接收各前缀块
+     */
+    static void splitRange(
+            long startHi, long startLo, long endHi, long endLo, int addressBits, BlockSink sink) {
+        long hi = startHi;
+        long lo = startLo;
+        while (true) {
+            int blockBits = blockBits(hi, lo, endHi, endLo);
+            sink.accept(hi, lo, addressBits - blockBits);
+            // 前进到下一个块，越过地址空间末尾或 end 时结束
+            if (blockBits >= 64) {
+                if (blockBits == 128) {
+                    return;
+                }
+                hi += 1L << (blockBits - 64);
+                if (hi == 0) {
+                    return;
+                }
+            } else {
+                long next = lo + (1L << blockBits);
+                if (Long.compareUnsigned(next, lo) < 0 && ++hi == 0) {
+                    return;
+                }
+                lo = next;
+            }
+            if (compare(hi, lo, endHi, endLo) > 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 以 (hi, lo) 为起点、不超过 (endHi, endLo) 的最大对齐块的位数
+     *
+     * <p>块大小受起点末尾 0 的个数和剩余地址数两者限制，二者取小
+     */
+    static int blockBits(long hi, long lo, long endHi, long endLo) {
+        int alignBits =
+                lo != 0 ? Long.numberOfTrailingZeros(lo) : 64 + Long.numberOfTrailingZeros(hi);
+        // 剩余地址数减一即 end - start，其最高位决定不超过剩余数量的最大块
+        long diffLo = endLo - lo;
+        long diffHi = endHi - hi - (Long.compareUnsigned(endLo, lo) < 0 ? 1 : 0);
+        int remainingBits;
+        if (diffHi == -1 && diffLo == -1) {
+            remainingBits = 128;
+        } else {
+            // diff + 1 的 floor(log2)
+            long plusLo = diffLo + 1;
+            long plusHi = diffHi + (plusLo == 0 ? 1 : 0);
+            remainingBits =
+                    plusHi != 0
+                            ? 127 - Long.numberOfLeadingZeros(plusHi)
+                            : 63 - Long.numberOfLeadingZeros(plusLo);
+        }
+        return Math.min(alignBits, remainingBits);
+    }
+
+    private static int compare(long hi, long lo, long otherHi, long otherLo) {
+        int cmp = Long.compareUnsigned(hi, otherHi);
+        return cmp != 0 ? cmp : Long.compareUnsigned(lo, otherLo);
+    }
+
+    private static long toLong(byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            value = value << 8 | bytes[i] & 0xFF;
+        }
+        return value;
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value, int length) {
+        for (int i = 0; i < length; i++) {
+            bytes[offset + i] = (byte) (value >>> ((length - 1 - i) * 8));
+        }
+    }
+
+    /**
+     * 编码剩余的 chunk 并完成构建
+     *
+     * @return 构建好的树
+     */
+    public FPATree<V> build() {
+        closeTo(0);
+        return builder.build(ipType, rootChunk);
+    }
+
+    /** 地址在第 layer 层中的槽位 */
+    private int slotAt(byte[] address, int layer) {
+        if (layer == 0) {
+            return (address[0] & 0xFF) << 8 | address[1] & 0xFF;
+        }
+        return address[layer + 1] & 0xFF;
+    }
+
+    /** 在当前路径最深处的 slot 下打开一层 chunk，初始值继承自该槽位 */
+    private void open(int slot) {
+        int[] parent = openLayers == 0 ? rootChunk : chunks[openLayers - 1];
+        pathSlots[openLayers] = slot;
+        Arrays.fill(chunks[openLayers], parent[slot]);
+        openLayers++;
+    }
+
+    /** 自底向上编码并关闭第 layers 层以下的所有 chunk */
+    private void closeTo(int layers) {
+        while (openLayers > layers) {
+            openLayers--;
+            int[] slots = chunks[openLayers];
+            int[] parent = openLayers == 0 ? rootChunk : chunks[openLayers - 1];
+            parent[pathSlots[openLayers]] = encode(slots);
+        }
+    }
+
+    private int encode(int[] slots) {
+        // 所有槽位指向同一个值时无需 chunk
+        boolean uniform = slots[0] >>> 30 == FPATree.TYPE_LEAF;
+        for (int i = 1; i < slots.length && uniform; i++) {
+            uniform = slots[i] == slots[0];
+        }
+        return uniform ? slots[0] : builder.encodeChunk(slots);
+    }
+
+    private void mask(byte[] prefixKey, int prefixLength) {
+        for (int i = 0; i < addressBytes; i++) {
+            int bits = prefixLength - i * 8;
+            if (bits >= 8) {
+                address[i] = prefixKey[i];
+            } else if (bits > 0) {
+                address[i] = (byte) (prefixKey[i] & (0xFF00 >>> bits));
+            } else {
+                address[i] = 0;
+            }
+        }
+    }
+
+    private void checkOrder(byte[] address, int prefixLength) {
+        if (lastPrefixLength < 0) {
+            return;
+        }
+        int cmp = 0;
+        for (int i = 0; i < addressBytes && cmp == 0; i++) {
+            cmp = Integer.compare(address[i] & 0xFF, lastAddress[i] & 0xFF);
+        }
+        if (cmp < 0 || (cmp == 0 && prefixLength < lastPrefixLength)) {
+            throw new IllegalArgumentException(
+                    "prefixes must be added in ascending order of address and length");
+        }
+    }
+}
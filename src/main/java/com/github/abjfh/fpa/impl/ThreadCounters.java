@@ -0,0 +1,116 @@
+package com.github.abjfh.fpa.impl;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 按线程分开累加的一组 long 计数
+ *
+ * <p>每个线程首次调用 {@link #local()} 时分配自己的计数数组，之后只以普通写入累加，线程间不共享缓存行，
+ * 也不使用原子操作。登记表只以弱引用指向各数组所属的线程：线程结束后，其计数在下一次汇总、清零或新线程登记时
+ * 并入共享的总数，数组随即从登记表中移除，因此登记表的大小只与活跃线程数有关，汇总也只遍历活跃线程。
+ *
+ * <p>计数位于数组下标 [{@link #BASE}, BASE + size)，两端各留一个缓存行的空位。汇总结果是弱一致的：
+ * 已结束线程的计数是准确的，活跃线程的计数可能遗漏最近的少量写入。
+ */
+final class ThreadCounters {
+    /** 第一个计数在数组中的下标，之前与之后各留一个缓存行，避免与相邻对象共享缓存行 */
+    static final int BASE = 8;
+
+    // 登记的线程数达到该值时先清理已结束的线程
+    private static final int MIN_PRUNE_THRESHOLD = 16;
+
+    /** 单个线程的计数 */
+    private static final class Cell {
+        final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+        final long[] counts;
+
+        Cell(int length) {
+            this.counts = new long[length];
+        }
+
+        /** 线程已结束时其写入对当前线程可见，计数不会再变化 */
+        boolean retired() {
+            Thread thread = owner.get();
+            return thread == null || !thread.isAlive();
+        }
+    }
+
+    private final int length;
+    // 以下字段由 this 保护
+    private final List<Cell> cells = new ArrayList<>();
+    private final long[] retired;
+    private int pruneThreshold = MIN_PRUNE_THRESHOLD;
+
+    private final ThreadLocal<long[]> local = ThreadLocal.withInitial(this::register);
+
+    /**
+     * @param size 计数个数
+     */
+    ThreadCounters(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+        this.length = BASE + size + BASE;
+        this.retired = new long[length];
+    }
+
+    /**
+     * @return 当前线程的计数数组，只能由当前线程写入
+     */
+    long[] local() {
+        return local.get();
+    }
+
+    private synchronized long[] register() {
+        if (cells.size() >= pruneThreshold) {
+            prune();
+            pruneThreshold = Math.max(MIN_PRUNE_THRESHOLD, cells.size() * 2);
+        }
+        Cell cell = new Cell(length);
+        cells.add(cell);
+        return cell.counts;
+    }
+
+    /** 将已结束线程的计数并入总数并移除 */
+    private void prune() {
+        for (Iterator<Cell> iterator = cells.iterator(); iterator.hasNext(); ) {
+            Cell cell = iterator.next();
+            if (cell.retired()) {
+                for (int i = BASE; i < length - BASE; i++) {
+                    retired[i] += cell.counts[i];
+                }
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return 所有线程的计数之和，下标与 {@link #local()} 的数组相同
+     */
+    synchronized long[] sum() {
+        prune();
+        long[] sum = retired.clone();
+        for (Cell cell : cells) {
+            for (int i = BASE; i < length - BASE; i++) {
+                sum[i] += cell.counts[i];
+            }
+        }
+        return sum;
+    }
+
+    /** 清零所有计数，与正在进行的写入并发时可能遗漏少量计数 */
+    synchronized void reset() {
+        prune();
+        for (int i = BASE; i < length - BASE; i++) {
+            retired[i] = 0;
+        }
+        for (Cell cell : cells) {
+            for (int i = BASE; i < length - BASE; i++) {
+                cell.counts[i] = 0;
+            }
+        }
+    }
+}
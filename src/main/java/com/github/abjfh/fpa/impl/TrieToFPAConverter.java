@@ -1,7 +1,11 @@
 package com.github.abjfh.fpa.impl;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /** 将 BitTrie 转换为分层 ForwardingPortArray 的转换器 */
 public class TrieToFPAConverter {
@@ -48,11 +52,71 @@ public class TrieToFPAConverter {
 
         ForwardingPortArray.FPANode<V> root = new ForwardingPortArray.FPANode<>();
         ForwardingPortArray<V> fpa = new ForwardingPortArray<>(root, firstDepth);
+        fpa.ipType = ipType;
 
-        fillLevel(fpa, bitTrie.root, firstDepth, 1);
+        fillLevel(fpa, bitTrie.root, firstDepth, 1, null);
         return fpa;
     }
 
+    /**
+     * 并行地将 BitTrie 转换为 ForwardingPortArray，结果与 {@link #convert(BitTrie)} 相同
+     *
+     * <p>根层由当前线程填充，根层各槽位下的子树相互独立，交给 fork-join 线程池并行填充
+     *
+     * @param bitTrie 要转换的 BitTrie
+     * @param parallelism 并行线程数
+     * @return 转换后的 ForwardingPortArray
+     */
+    public <V> ForwardingPortArray<V> convert(BitTrie<V> bitTrie, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        if (parallelism == 1) {
+            return convert(bitTrie);
+        }
+        int firstDepth = ipType.getIpDepths()[0];
+
+        ForwardingPortArray.FPANode<V> root = new ForwardingPortArray.FPANode<>();
+        ForwardingPortArray<V> fpa = new ForwardingPortArray<>(root, firstDepth);
+        fpa.ipType = ipType;
+
+        List<ForkJoinTask<?>> subtrees = new ArrayList<>();
+        fillLevel(fpa, bitTrie.root, firstDepth, 1, subtrees);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (ForkJoinTask<?> subtree : subtrees) {
+                pool.execute(subtree);
+            }
+            for (ForkJoinTask<?> subtree : subtrees) {
+                subtree.join();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return fpa;
+    }
+
+    /**
+     * 单独转换某一层中的一个槽位，结果与 {@link #convert(BitTrie)} 中该槽位的节点一致
+     *
+     * @param slotNode 槽位对应的 Trie 节点，不存在时为 null
+     * @param value 槽位的值，即覆盖该槽位的最长前缀的值
+     * @param nextDepthIndex 槽位下一层在 depths 数组中的索引，根层槽位为 1
+     * @return 槽位的 FPA 节点
+     */
+    <V> ForwardingPortArray.FPANode<V> convertSlot(
+            BitTrie.TrieNode<V> slotNode, V value, int nextDepthIndex) {
+        int[] depths = ipType.getIpDepths();
+        if (slotNode == null || !slotNode.hasChild() || nextDepthIndex >= depths.length) {
+            return new ForwardingPortArray.FPANode<>(value);
+        }
+        int nextDepth = depths[nextDepthIndex];
+        ForwardingPortArray<V> nextFPA =
+                new ForwardingPortArray<>(new ForwardingPortArray.FPANode<>(value), nextDepth);
+        fillLevel(nextFPA, slotNode, nextDepth, nextDepthIndex + 1, null);
+        return new ForwardingPortArray.FPANode<>(value, nextFPA);
+    }
+
     /**
      * 填充指定层级的 ForwardingPortArray
      *
@@ -60,12 +124,14 @@ public class TrieToFPAConverter {
      * @param trieNode 对应的 Trie 节点
      * @param depth 当前层的深度
      * @param nextDepthIndex 下一层在 depths 数组中的索引
+     * @param subtrees 不为 null 时下一层不在当前线程填充，而是作为任务加入该列表
      */
     private <V> void fillLevel(
             ForwardingPortArray<V> fpa,
             BitTrie.TrieNode<V> trieNode,
             int depth,
-            int nextDepthIndex) {
+            int nextDepthIndex,
+            List<ForkJoinTask<?>> subtrees) {
         Queue<BitTrie.TrieNodeWrapper<V>> queue = new LinkedList<>();
         int maxIndex = (1 << depth) - 1;
         queue.offer(new BitTrie.TrieNodeWrapper<>(trieNode, 0, maxIndex));
@@ -122,7 +188,20 @@ public class TrieToFPAConverter {
                             new ForwardingPortArray.FPANode<>(node.value, nextFPA));
 
                     // 递归填充下一层
-                    fillLevel(nextFPA, currentNode.node, nextDepth, nextDepthIndex + 1);
+                    BitTrie.TrieNode<V> nextNode = currentNode.node;
+                    if (subtrees != null) {
+                        subtrees.add(
+                                ForkJoinTask.adapt(
+                                        () ->
+                                                fillLevel(
+                                                        nextFPA,
+                                                        nextNode,
+                                                        nextDepth,
+                                                        nextDepthIndex + 1,
+                                                        null)));
+                    } else {
+                        fillLevel(nextFPA, nextNode, nextDepth, nextDepthIndex + 1, null);
+                    }
                 }
             }
             currentDepth++;
@@ -0,0 +1,293 @@
+package com.github.abjfh.jmh;
+
+import com.github.abjfh.domain.IpSegment;
+import com.github.abjfh.fpa.impl.BitTrie;
+import com.github.abjfh.fpa.impl.FPATree;
+import com.github.abjfh.fpa.impl.ForwardingPortArray;
+import com.github.abjfh.fpa.impl.TrieToFPAConverter;
+import com.github.abjfh.util.ConverterUtil;
+import com.github.abjfh.util.FileUtil;
+
+import inet.ipaddr.AddressStringException;
+import inet.ipaddr.IPAddress;
+import inet.ipaddr.IPAddressSeqRange;
+import inet.ipaddr.IPAddressString;
+import inet.ipaddr.ipv4.IPv4AddressSeqRange;
+import inet.ipaddr.ipv6.IPv6AddressSeqRange;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/** 基准测试共用的数据加载与查询序列生成 */
+public final class BenchmarkData {
+    static final String IPV4_FILE = "data/aspat.csv";
+    static final String IPV6_FILE = "data/ipv6_source.txt";
+
+    // Zipf 分布的指数，越大越集中于少数热门前缀
+    private static final double ZIPF_EXPONENT = 1.1;
+
+    /** 查询序列的类型，作为 JMH 参数须为 public */
+    public enum Workload {
+        /** 整个地址空间上的均匀随机地址，IPv6 下绝大多数在根层未命中 */
+        UNIFORM,
+        /** 按 Zipf 分布选取前缀，再在前缀内随机取地址，模拟热点集中的线上流量 */
+        ZIPF,
+        /** 落在前缀内的随机地址按升序排列，模拟按地址排序的日志回放 */
+        SEQUENTIAL,
+        /** 均匀选取前缀，再在前缀内随机取地址，每次查询都会命中 */
+        MATCHING
+    }
+
+    /** 同一份数据构建的三种结构，以及数据中的所有前缀 */
+    static final class Dataset {
+        final TrieToFPAConverter.IP_TYPE ipType;
+        final BitTrie<String> trie;
+        final ForwardingPortArray<String> fpa;
+        final FPATree<String> tree;
+        final byte[][] prefixKeys;
+        final int[] prefixLengths;
+
+        private Dataset(
+                TrieToFPAConverter.IP_TYPE ipType,
+                BitTrie<String> trie,
+                ForwardingPortArray<String> fpa,
+                FPATree<String> tree,
+                byte[][] prefixKeys,
+                int[] prefixLengths) {
+            this.ipType = ipType;
+            this.trie = trie;
+            this.fpa = fpa;
+            this.tree = tree;
+            this.prefixKeys = prefixKeys;
+            this.prefixLengths = prefixLengths;
+        }
+    }
+
+    private BenchmarkData() {}
+
+    static String sourceFile(TrieToFPAConverter.IP_TYPE ipType) {
+        return ipType == TrieToFPAConverter.IP_TYPE.IPV4 ? IPV4_FILE : IPV6_FILE;
+    }
+
+    static List<IpSegment<String>> segments(TrieToFPAConverter.IP_TYPE ipType) throws IOException {
+        return segments(ipType, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxRows 最多读取数据文件的前几行，IPv6 的每行区间可能拆分为多个前缀
+     */
+    static List<IpSegment<String>> segments(TrieToFPAConverter.IP_TYPE ipType, int maxRows)
+            throws IOException {
+        return ipType == TrieToFPAConverter.IP_TYPE.IPV4
+                ? ipv4Segments(maxRows)
+                : ipv6Segments(maxRows);
+    }
+
+    static List<IpSegment<String>> ipv4Segments() throws IOException {
+        return ipv4Segments(Integer.MAX_VALUE);
+    }
+
+    static List<IpSegment<String>> ipv6Segments() throws IOException {
+        return ipv6Segments(Integer.MAX_VALUE);
+    }
+
+    private static List<String[]> rows(String fileName, String separator, int maxRows)
+            throws IOException {
+        List<String[]> rows = FileUtil.loadCsvFile(fileName, separator);
+        return rows.size() > maxRows ? rows.subList(0, maxRows) : rows;
+    }
+
+    private static List<IpSegment<String>> ipv4Segments(int maxRows) throws IOException {
+        return rows(IPV4_FILE, FileUtil.DEFAULT_SEPARATOR, maxRows).parallelStream()
+                .map(
+                        row -> {
+                            IpSegment<String> segment = new IpSegment<>();
+                            segment.setPrefixIp(row[0]);
+                            segment.setValue(row[1]);
+                            return segment;
+                        })
+                .collect(Collectors.toList());
+    }
+
+    private static List<IpSegment<String>> ipv6Segments(int maxRows) throws IOException {
+        return rows(IPV6_FILE, "\\|", maxRows).parallelStream()
+                .flatMap(
+                        row -> {
+                            try {
+                                IPAddress startIp = new IPAddressString(row[0]).toAddress();
+                                IPAddress endIp = new IPAddressString(row[1]).toAddress();
+                                IPAddressSeqRange range;
+                                if (startIp.isIPv4() && endIp.isIPv4()) {
+                                    range =
+                                            new IPv4AddressSeqRange(
+                                                    startIp.toIPv4(), endIp.toIPv4());
+                                } else if (startIp.isIPv6() && endIp.isIPv6()) {
+                                    range =
+                                            new IPv6AddressSeqRange(
+                                                    startIp.toIPv6(), endIp.toIPv6());
+                                } else {
+                                    return Stream.empty();
+                                }
+                                String result =
+                                        String.join(",", Arrays.copyOfRange(row, 2, row.length));
+                                Stream.Builder<IpSegment<String>> builder = Stream.builder();
+                                for (IPAddress ipAddress : range.spanWithPrefixBlocks()) {
+                                    builder.add(new IpSegment<>(ipAddress.toString(), result));
+                                }
+                                return builder.build();
+
+                            } catch (AddressStringException e) {
+                                throw new RuntimeException(e);
+                            }
+                        })
+                .collect(Collectors.toList());
+    }
+
+    /** 与 {@link ConverterUtil#convertToBitTrie(List)} 相同，但不调用 compress */
+    static BitTrie<String> uncompressedTrie(List<IpSegment<String>> segments)
+            throws AddressStringException {
+        BitTrie<String> bitTrie = new BitTrie<>();
+        for (IpSegment<String> segment : segments) {
+            IPAddress ipAddress = new IPAddressString(segment.getPrefixIp()).toAddress();
+            if (ipAddress != null) {
+                bitTrie.put(ipAddress.getBytes(), ipAddress.getPrefixLength(), segment.getValue());
+            }
+        }
+        return bitTrie;
+    }
+
+    /** 加载数据并构建 BitTrie、ForwardingPortArray 与 FPATree */
+    static Dataset dataset(TrieToFPAConverter.IP_TYPE ipType) throws Exception {
+        List<IpSegment<String>> segments = segments(ipType);
+        BitTrie<String> trie = ConverterUtil.convertToBitTrie(segments);
+        ForwardingPortArray<String> fpa = ConverterUtil.convertToForwardingPortArray(ipType, trie);
+        FPATree<String> tree = ConverterUtil.convertToFPATree(fpa);
+
+        int addressBytes = addressBytes(ipType);
+        List<byte[]> keys = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        for (IpSegment<String> segment : segments) {
+            IPAddress address = new IPAddressString(segment.getPrefixIp()).toAddress();
+            if (address == null || address.getBytes().length != addressBytes) {
+                continue;
+            }
+            Integer prefixLength = address.getPrefixLength();
+            keys.add(address.getBytes());
+            lengths.add(prefixLength == null ? addressBytes * 8 : prefixLength);
+        }
+        int[] prefixLengths = new int[lengths.size()];
+        for (int i = 0; i < prefixLengths.length; i++) {
+            prefixLengths[i] = lengths.get(i);
+        }
+        return new Dataset(ipType, trie, fpa, tree, keys.toArray(new byte[0][]), prefixLengths);
+    }
+
+    static int addressBytes(TrieToFPAConverter.IP_TYPE ipType) {
+        return ipType == TrieToFPAConverter.IP_TYPE.IPV4 ? 4 : 16;
+    }
+
+    /**
+     * 生成查询序列
+     *
+     * @param workload 查询序列类型
+     * @param dataset 数据集
+     * @param count 查询数量
+     * @param seed 随机种子，相同参数生成相同的序列
+     * @return 查询地址
+     */
+    static byte[][] queries(Workload workload, Dataset dataset, int count, long seed) {
+        Random random = new Random(seed);
+        int addressBytes = addressBytes(dataset.ipType);
+        int prefixCount = dataset.prefixKeys.length;
+        byte[][] queries = new byte[count][];
+        switch (workload) {
+            case UNIFORM:
+                for (int i = 0; i < count; i++) {
+                    queries[i] = new byte[addressBytes];
+                    random.nextBytes(queries[i]);
+                }
+                break;
+            case ZIPF:
+                {
+                    // 热门程度与前缀在文件中的位置无关
+                    int[] ranks = new int[prefixCount];
+                    for (int i = 0; i < prefixCount; i++) {
+                        ranks[i] = i;
+                    }
+                    for (int i = prefixCount - 1; i > 0; i--) {
+                        int j = random.nextInt(i + 1);
+                        int swap = ranks[i];
+                        ranks[i] = ranks[j];
+                        ranks[j] = swap;
+                    }
+                    double[] cdf = new double[prefixCount];
+                    double sum = 0;
+                    for (int i = 0; i < prefixCount; i++) {
+                        sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+                        cdf[i] = sum;
+                    }
+                    for (int i = 0; i < count; i++) {
+                        int rank = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+                        rank = Math.min(rank < 0 ? -rank - 1 : rank, prefixCount - 1);
+                        queries[i] = addressIn(dataset, ranks[rank], random);
+                    }
+                }
+                break;
+            case SEQUENTIAL:
+            case MATCHING:
+                for (int i = 0; i < count; i++) {
+                    queries[i] = addressIn(dataset, random.nextInt(prefixCount), random);
+                }
+                if (workload == Workload.SEQUENTIAL) {
+                    Arrays.sort(queries, BenchmarkData::compareUnsigned);
+                }
+                break;
+        }
+        return queries;
+    }
+
+    /** 第 prefix 个前缀内的随机地址 */
+    private static byte[] addressIn(Dataset dataset, int prefix, Random random) {
+        byte[] key = dataset.prefixKeys[prefix];
+        int prefixLength = dataset.prefixLengths[prefix];
+        byte[] address = new byte[key.length];
+        random.nextBytes(address);
+        for (int i = 0; i < key.length; i++) {
+            int bits = prefixLength - i * 8;
+            if (bits >= 8) {
+                address[i] = key[i];
+            } else if (bits > 0) {
+                int mask = 0xFF00 >>> bits;
+                address[i] = (byte) (key[i] & mask | address[i] & ~mask);
+            }
+        }
+        return address;
+    }
+
+    private static int compareUnsigned(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int cmp = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    static int toInt(byte[] address) {
+        return (address[0] & 0xFF) << 24
+                | (address[1] & 0xFF) << 16
+                | (address[2] & 0xFF) << 8
+                | address[3] & 0xFF;
+    }
+
+    static long toLong(byte[] address, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = value << 8 | address[i] & 0xFF;
+        }
+        return value;
+    }
+}
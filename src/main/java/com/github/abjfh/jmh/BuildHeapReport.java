@@ -0,0 +1,158 @@
+package com.github.abjfh.jmh;
+
+import com.github.abjfh.domain.IpSegment;
+import com.github.abjfh.fpa.impl.BitTrie;
+import com.github.abjfh.fpa.impl.ForwardingPortArray;
+import com.github.abjfh.fpa.impl.MappedCsvLoader;
+import com.github.abjfh.fpa.impl.TrieToFPAConverter;
+import com.github.abjfh.util.ConverterUtil;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 逐阶段报告构建流水线的耗时、堆峰值与常驻内存
+ *
+ * <p>用法：{@code BuildHeapReport [IPV4|IPV6] [最多读取的行数]}。每个阶段开始前执行 GC 并以此时的堆占用为基线：
+ * 峰值为阶段执行期间各堆内存池峰值之和减去基线，是实际峰值的上界；常驻为阶段结束、GC 后仍被引用的增量，
+ * 即阶段结果本身的大小。建议以 {@code -XX:+UseSerialGC} 运行，使各内存池的峰值更接近同一时刻。
+ */
+public class BuildHeapReport {
+
+    private static final double MB = 1024 * 1024;
+
+    private final List<String> lines = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        TrieToFPAConverter.IP_TYPE ipType =
+                args.length > 0
+                        ? TrieToFPAConverter.IP_TYPE.valueOf(args[0])
+                        : TrieToFPAConverter.IP_TYPE.IPV4;
+        int maxRows = args.length > 1 ? Integer.parseInt(args[1]) : Integer.MAX_VALUE;
+
+        BuildHeapReport report = new BuildHeapReport();
+        report.runStages(ipType, maxRows);
+        report.runEndToEnd(ipType, maxRows);
+        report.print(ipType, maxRows);
+    }
+
+    /** 依次执行各阶段，前一阶段的结果作为下一阶段的输入 */
+    private void runStages(TrieToFPAConverter.IP_TYPE ipType, int maxRows) throws Exception {
+        List<IpSegment<String>> segments =
+                stage("load csv", () -> BenchmarkData.segments(ipType, maxRows));
+        BitTrie<String> trie = stage("put", () -> BenchmarkData.uncompressedTrie(segments));
+        stage(
+                "compress",
+                () -> {
+                    trie.compress();
+                    return trie;
+                });
+        ForwardingPortArray<String> fpa =
+                stage("convert", () -> ConverterUtil.convertToForwardingPortArray(ipType, trie));
+        stage("build", () -> ConverterUtil.convertToFPATree(fpa));
+    }
+
+    /** 各端到端路径分别从头执行，只保留最终的 FPATree，峰值即重新加载时的堆尖峰 */
+    private void runEndToEnd(TrieToFPAConverter.IP_TYPE ipType, int maxRows) throws Exception {
+        stage(
+                "end-to-end",
+                () -> {
+                    List<IpSegment<String>> segments = BenchmarkData.segments(ipType, maxRows);
+                    BitTrie<String> trie = ConverterUtil.convertToBitTrie(segments);
+                    return ConverterUtil.convertToFPATree(
+                            ConverterUtil.convertToForwardingPortArray(ipType, trie));
+                });
+        stage(
+                "end-to-end streaming",
+                () ->
+                        ConverterUtil.convertToFPATreeStreaming(
+                                ipType, BenchmarkData.segments(ipType, maxRows)));
+
+        Path source = Paths.get(BenchmarkData.sourceFile(ipType));
+        Path file = maxRows == Integer.MAX_VALUE ? source : head(source, maxRows);
+        try {
+            stage(
+                    "end-to-end mapped csv",
+                    () -> {
+                        MappedCsvLoader loader = new MappedCsvLoader(ipType);
+                        if (ipType == TrieToFPAConverter.IP_TYPE.IPV6) {
+                            loader.separator('|').ranges(true);
+                        }
+                        return loader.load(file);
+                    });
+        } finally {
+            if (file != source) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private <T> T stage(String name, Callable<T> stage) throws Exception {
+        long baseline = usedAfterGc();
+        for (MemoryPoolMXBean pool : heapPools()) {
+            pool.resetPeakUsage();
+        }
+        long start = System.nanoTime();
+        T result = stage.call();
+        long elapsed = System.nanoTime() - start;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : heapPools()) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        long retained = usedAfterGc();
+        String line =
+                String.format(
+                        "%-24s %10.1f %12.1f %12.1f",
+                        name,
+                        elapsed / 1e6,
+                        (peak - baseline) / MB,
+                        (retained - baseline) / MB);
+        lines.add(line);
+        return result;
+    }
+
+    private void print(TrieToFPAConverter.IP_TYPE ipType, int maxRows) {
+        System.out.println(
+                "数据: "
+                        + BenchmarkData.sourceFile(ipType)
+                        + (maxRows == Integer.MAX_VALUE ? "" : "，前 " + maxRows + " 行"));
+        System.out.println(
+                String.format(
+                        "%-24s %10s %12s %12s", "阶段", "耗时(ms)", "堆峰值(MB)", "常驻(MB)"));
+        for (String line : lines) {
+            System.out.println(line);
+        }
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        return ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP)
+                .collect(Collectors.toList());
+    }
+
+    private static long usedAfterGc() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /** 把数据文件的前 maxRows 行复制到临时文件 */
+    private static Path head(Path source, int maxRows) throws IOException {
+        Path file = Files.createTempFile("build-heap-report", ".csv");
+        try (Stream<String> lines = Files.lines(source)) {
+            Files.write(file, (Iterable<String>) lines.limit(maxRows)::iterator);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,118 @@
+package com.github.abjfh.jmh;
+
+import com.github.abjfh.domain.IpSegment;
+import com.github.abjfh.fpa.impl.BitTrie;
+import com.github.abjfh.fpa.impl.FPATree;
+import com.github.abjfh.fpa.impl.ForwardingPortArray;
+import com.github.abjfh.fpa.impl.MappedCsvLoader;
+import com.github.abjfh.fpa.impl.TrieToFPAConverter;
+import com.github.abjfh.util.ConverterUtil;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 构建流水线各阶段及端到端的耗时
+ *
+ * <p>每次调用完整执行一次构建，以 SingleShotTime 模式计时；{@link #main(String[])} 同时启用 GC profiler，
+ * 其中 gc.alloc.rate.norm 即每次构建分配的字节数。各阶段的输入在 Trial 开始前准备好，不计入测量。
+ * 堆峰值见 {@link BuildHeapReport}。
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BuildPipelineBenchmark {
+    public static void main(String[] args) throws RunnerException {
+        Options opt =
+                new OptionsBuilder()
+                        .include(BuildPipelineBenchmark.class.getSimpleName())
+                        .addProfiler(GCProfiler.class)
+                        .resultFormat(ResultFormatType.JSON)
+                        .build();
+
+        new Runner(opt).run();
+    }
+
+    @Param({"IPV4", "IPV6"})
+    TrieToFPAConverter.IP_TYPE ipType;
+
+    List<IpSegment<String>> segments;
+    BitTrie<String> trie;
+    ForwardingPortArray<String> fpa;
+
+    @Setup
+    public void setup() throws Exception {
+        segments = BenchmarkData.segments(ipType);
+        trie = ConverterUtil.convertToBitTrie(segments);
+        fpa = ConverterUtil.convertToForwardingPortArray(ipType, trie);
+    }
+
+    /** compress 会修改 BitTrie，每次迭代前重新插入所有前缀 */
+    @State(Scope.Thread)
+    public static class UncompressedTrie {
+        BitTrie<String> trie;
+
+        @Setup(Level.Iteration)
+        public void setup(BuildPipelineBenchmark pipeline) throws Exception {
+            trie = BenchmarkData.uncompressedTrie(pipeline.segments);
+        }
+    }
+
+    /** 解析前缀并插入 BitTrie，含 compress */
+    @Benchmark
+    public BitTrie<String> convertToBitTrie() throws Exception {
+        return ConverterUtil.convertToBitTrie(segments);
+    }
+
+    @Benchmark
+    public BitTrie<String> compress(UncompressedTrie uncompressed) {
+        uncompressed.trie.compress();
+        return uncompressed.trie;
+    }
+
+    @Benchmark
+    public ForwardingPortArray<String> convertToForwardingPortArray() {
+        return ConverterUtil.convertToForwardingPortArray(ipType, trie);
+    }
+
+    @Benchmark
+    public FPATree<String> buildFPATree() {
+        return ConverterUtil.convertToFPATree(fpa);
+    }
+
+    /** 从 IpSegment 列表经 BitTrie、ForwardingPortArray 构建 FPATree */
+    @Benchmark
+    public FPATree<String> endToEnd() throws Exception {
+        BitTrie<String> bitTrie = ConverterUtil.convertToBitTrie(segments);
+        return ConverterUtil.convertToFPATree(
+                ConverterUtil.convertToForwardingPortArray(ipType, bitTrie));
+    }
+
+    /** 从 IpSegment 列表排序后流式构建 FPATree */
+    @Benchmark
+    public FPATree<String> endToEndStreaming() throws Exception {
+        return ConverterUtil.convertToFPATreeStreaming(ipType, segments);
+    }
+
+    /** 从数据文件直接构建 FPATree，含文件读取与解析 */
+    @Benchmark
+    public FPATree<String> endToEndMappedCsv() throws Exception {
+        MappedCsvLoader loader = new MappedCsvLoader(ipType);
+        if (ipType == TrieToFPAConverter.IP_TYPE.IPV6) {
+            loader.separator('|').ranges(true);
+        }
+        return loader.load(Paths.get(BenchmarkData.sourceFile(ipType)));
+    }
+}
@@ -1,19 +1,11 @@
 package com.github.abjfh.jmh;
 
-import com.github.abjfh.domain.IpSegment;
-import com.github.abjfh.fpa.impl.BitTrie;
+import com.github.abjfh.fpa.impl.DualStackSearcher;
 import com.github.abjfh.fpa.impl.FPATree;
-import com.github.abjfh.fpa.impl.ForwardingPortArray;
 import com.github.abjfh.fpa.impl.TrieToFPAConverter;
 import com.github.abjfh.util.ConverterUtil;
-import com.github.abjfh.util.FileUtil;
 
-import inet.ipaddr.AddressStringException;
-import inet.ipaddr.IPAddress;
-import inet.ipaddr.IPAddressSeqRange;
 import inet.ipaddr.IPAddressString;
-import inet.ipaddr.ipv4.IPv4AddressSeqRange;
-import inet.ipaddr.ipv6.IPv6AddressSeqRange;
 
 import org.openjdk.jmh.annotations.*;
 import org.openjdk.jmh.infra.Blackhole;
@@ -23,12 +15,9 @@ import org.openjdk.jmh.runner.RunnerException;
 import org.openjdk.jmh.runner.options.Options;
 import org.openjdk.jmh.runner.options.OptionsBuilder;
 
-import java.util.Arrays;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 @BenchmarkMode(Mode.Throughput)
 @OutputTimeUnit(TimeUnit.SECONDS)
@@ -48,88 +37,185 @@ public class FPATreeBenchmark {
         new Runner(opt).run();
     }
 
+    static final int BATCH_SIZE = 4096;
+
     FPATree<String> ipv4Tree;
     FPATree<String> ipv6Tree;
+    DualStackSearcher<String> dualStack;
 
     Random random = new Random(2);
-    byte[] ipv4 = new byte[4];
-    byte[] ipv6 = new byte[16];
+    byte[][] ipv4Queries = new byte[BATCH_SIZE][4];
+    byte[][] ipv6Queries = new byte[BATCH_SIZE][16];
+    // 规范文本形式，及其 UTF-8 字节
+    String[] ipv4Texts = new String[BATCH_SIZE];
+    String[] ipv6Texts = new String[BATCH_SIZE];
+    byte[][] ipv6Utf8 = new byte[BATCH_SIZE][];
+    // IPv4、IPv6、IPv4 映射、6to4 地址各占四分之一
+    byte[][] dualStackQueries = new byte[BATCH_SIZE][];
+
+    int[] ipv4Batch = new int[BATCH_SIZE];
+    long[] ipv6HiBatch = new long[BATCH_SIZE];
+    long[] ipv6LoBatch = new long[BATCH_SIZE];
 
     @Setup
     public void setup() throws Exception {
-        List<IpSegment<String>> ipv6_list =
-                FileUtil.loadCsvFile("data/ipv6_source.txt", "\\|").parallelStream()
-                        .flatMap(
-                                row -> {
-                                    try {
-                                        IPAddress startIp = new IPAddressString(row[0]).toAddress();
-                                        IPAddress endIp = new IPAddressString(row[1]).toAddress();
-                                        IPAddressSeqRange range;
-                                        if (startIp.isIPv4() && endIp.isIPv4()) {
-                                            range =
-                                                    new IPv4AddressSeqRange(
-                                                            startIp.toIPv4(), endIp.toIPv4());
-                                        } else if (startIp.isIPv6() && endIp.isIPv6()) {
-                                            range =
-                                                    new IPv6AddressSeqRange(
-                                                            startIp.toIPv6(), endIp.toIPv6());
-                                        } else {
-                                            return Stream.empty();
-                                        }
-                                        String result =
-                                                String.join(
-                                                        ",",
-                                                        Arrays.copyOfRange(row, 2, row.length));
-                                        Stream.Builder<IpSegment<String>> builder =
-                                                Stream.builder();
-                                        for (IPAddress ipAddress : range.spanWithPrefixBlocks()) {
-                                            builder.add(
-                                                    new IpSegment<>(ipAddress.toString(), result));
-                                        }
-                                        return builder.build();
-
-                                    } catch (AddressStringException e) {
-                                        throw new RuntimeException(e);
-                                    }
-                                })
-                        .collect(Collectors.toList());
-        BitTrie<String> ipv6_trie = ConverterUtil.convertToBitTrie(ipv6_list);
-        ForwardingPortArray<String> ipv6_fpa =
-                ConverterUtil.convertToForwardingPortArray(
-                        TrieToFPAConverter.IP_TYPE.IPV6, ipv6_trie);
-        ipv6Tree = ConverterUtil.convertToFPATree(ipv6_fpa);
-
-        List<IpSegment<String>> ipv4_list =
-                FileUtil.loadCsvFile("data/aspat.csv").parallelStream()
-                        .map(
-                                row -> {
-                                    IpSegment<String> segment = new IpSegment<>();
-                                    segment.setPrefixIp(row[0]);
-                                    segment.setValue(row[1]);
-                                    return segment;
-                                })
-                        .collect(Collectors.toList());
-
-        BitTrie<String> ipv4_trie = ConverterUtil.convertToBitTrie(ipv4_list);
-        ForwardingPortArray<String> ipv4_fpa =
-                ConverterUtil.convertToForwardingPortArray(
-                        TrieToFPAConverter.IP_TYPE.IPV4, ipv4_trie);
-        ipv4Tree = ConverterUtil.convertToFPATree(ipv4_fpa);
-    }
-
-    @Setup(Level.Invocation)
-    public void getIp() {
-        random.nextBytes(ipv4);
-        random.nextBytes(ipv6);
+        ipv6Tree =
+                ConverterUtil.convertToFPATree(
+                        ConverterUtil.convertToForwardingPortArray(
+                                TrieToFPAConverter.IP_TYPE.IPV6,
+                                ConverterUtil.convertToBitTrie(BenchmarkData.ipv6Segments())));
+        ipv4Tree =
+                ConverterUtil.convertToFPATree(
+                        ConverterUtil.convertToForwardingPortArray(
+                                TrieToFPAConverter.IP_TYPE.IPV4,
+                                ConverterUtil.convertToBitTrie(BenchmarkData.ipv4Segments())));
+
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            ipv4Batch[i] = random.nextInt();
+            ipv6HiBatch[i] = random.nextLong();
+            ipv6LoBatch[i] = random.nextLong();
+            random.nextBytes(ipv4Queries[i]);
+            random.nextBytes(ipv6Queries[i]);
+        }
+
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            ipv4Texts[i] = toText(ipv4Queries[i]);
+            // 压缩为 RFC 5952 规范形式
+            ipv6Texts[i] =
+                    new IPAddressString(toText(ipv6Queries[i])).getAddress().toCanonicalString();
+            ipv6Utf8[i] = ipv6Texts[i].getBytes(StandardCharsets.UTF_8);
+        }
+
+        dualStack = new DualStackSearcher<>(ipv4Tree, ipv6Tree);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            byte[] ipv4 = ipv4Queries[i];
+            switch (i & 3) {
+                case 0:
+                    dualStackQueries[i] = ipv4;
+                    break;
+                case 1:
+                    dualStackQueries[i] = ipv6Queries[i];
+                    break;
+                case 2:
+                    byte[] mapped = new byte[16];
+                    mapped[10] = (byte) 0xFF;
+                    mapped[11] = (byte) 0xFF;
+                    System.arraycopy(ipv4, 0, mapped, 12, 4);
+                    dualStackQueries[i] = mapped;
+                    break;
+                default:
+                    byte[] sixToFour = ipv6Queries[i].clone();
+                    sixToFour[0] = 0x20;
+                    sixToFour[1] = 0x02;
+                    System.arraycopy(ipv4, 0, sixToFour, 2, 4);
+                    dualStackQueries[i] = sixToFour;
+            }
+        }
+    }
+
+    private static String toText(byte[] ipBytes) {
+        if (ipBytes.length == 4) {
+            return (ipBytes[0] & 0xFF)
+                    + "."
+                    + (ipBytes[1] & 0xFF)
+                    + "."
+                    + (ipBytes[2] & 0xFF)
+                    + "."
+                    + (ipBytes[3] & 0xFF);
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 16; i += 2) {
+            if (i > 0) {
+                text.append(':');
+            }
+            text.append(Integer.toHexString((ipBytes[i] & 0xFF) << 8 | ipBytes[i + 1] & 0xFF));
+        }
+        return text.toString();
+    }
+
+    /** 每个线程循环取用预先生成的查询，避免在测量路径上生成随机数 */
+    @State(Scope.Thread)
+    public static class QueryIndex {
+        int index;
+
+        int next() {
+            int i = index;
+            index = (i + 1) & (BATCH_SIZE - 1);
+            return i;
+        }
+    }
+
+    @Benchmark
+    public void benchmarkIpv4Search(QueryIndex query, Blackhole bh) {
+        bh.consume(ipv4Tree.search(ipv4Queries[query.next()]));
+    }
+
+    @Benchmark
+    public void benchmarkIpv6Search(QueryIndex query, Blackhole bh) {
+        bh.consume(ipv6Tree.search(ipv6Queries[query.next()]));
+    }
+
+    @Benchmark
+    public void benchmarkIpv6LongSearch(QueryIndex query, Blackhole bh) {
+        int i = query.next();
+        bh.consume(ipv6Tree.search(ipv6HiBatch[i], ipv6LoBatch[i]));
+    }
+
+    @Benchmark
+    public void benchmarkIpv4TextSearch(QueryIndex query, Blackhole bh) {
+        bh.consume(ipv4Tree.search(ipv4Texts[query.next()]));
+    }
+
+    @Benchmark
+    public void benchmarkIpv6TextSearch(QueryIndex query, Blackhole bh) {
+        bh.consume(ipv6Tree.search(ipv6Texts[query.next()]));
+    }
+
+    @Benchmark
+    public void benchmarkIpv6Utf8Search(QueryIndex query, Blackhole bh) {
+        byte[] utf8 = ipv6Utf8[query.next()];
+        bh.consume(ipv6Tree.search(utf8, 0, utf8.length));
+    }
+
+    /** 对照：先经 IPAddressString 解析为字节数组再查询 */
+    @Benchmark
+    public void benchmarkIpv4IPAddressStringSearch(QueryIndex query, Blackhole bh)
+            throws Exception {
+        bh.consume(
+                ipv4Tree.search(
+                        new IPAddressString(ipv4Texts[query.next()]).toAddress().getBytes()));
+    }
+
+    @Benchmark
+    public void benchmarkIpv6IPAddressStringSearch(QueryIndex query, Blackhole bh)
+            throws Exception {
+        bh.consume(
+                ipv6Tree.search(
+                        new IPAddressString(ipv6Texts[query.next()]).toAddress().getBytes()));
+    }
+
+    @Benchmark
+    public void benchmarkDualStackSearch(QueryIndex query, Blackhole bh) {
+        bh.consume(dualStack.search(dualStackQueries[query.next()]));
+    }
+
+    /** 批量查询的输出数组，查询过程中也存放各地址当前的 lookupEntry，因此每个线程各用一份 */
+    @State(Scope.Thread)
+    public static class BatchOutput {
+        int[] valueIndexes = new int[BATCH_SIZE];
     }
 
     @Benchmark
-    public void benchmarkIpv4Search(Blackhole bh) {
-        bh.consume(ipv4Tree.search(ipv4));
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void benchmarkIpv4BatchSearch(BatchOutput out, Blackhole bh) {
+        ipv4Tree.lookupIndexBatch(ipv4Batch, BATCH_SIZE, out.valueIndexes);
+        bh.consume(out.valueIndexes);
     }
 
     @Benchmark
-    public void benchmarkIpv6Search(Blackhole bh) {
-        bh.consume(ipv6Tree.search(ipv6));
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void benchmarkIpv6BatchSearch(BatchOutput out, Blackhole bh) {
+        ipv6Tree.lookupIndexBatch(ipv6HiBatch, ipv6LoBatch, BATCH_SIZE, out.valueIndexes);
+        bh.consume(out.valueIndexes);
     }
 }
@@ -0,0 +1,201 @@
+package com.github.abjfh.jmh;
+
+import com.github.abjfh.fpa.impl.BitTrie;
+import com.github.abjfh.fpa.impl.CachingSearcher;
+import com.github.abjfh.fpa.impl.FPATree;
+import com.github.abjfh.fpa.impl.ForwardingPortArray;
+import com.github.abjfh.fpa.impl.TrieToFPAConverter;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在多种查询序列下并排比较 BitTrie、ForwardingPortArray 与 FPATree 的查询性能
+ *
+ * <p>查询序列在 Trial 开始前一次性生成，测量期间每个线程从各自的起点循环读取，不在测量路径上生成随机数。
+ * 每次调用连续查询 {@link #BATCH_SIZE} 个地址，SampleTime 模式下的延迟分布按批次采样后折算为单次查询，
+ * 以免单次查询的耗时被计时本身的开销淹没。
+ *
+ * <p>{@link #main(String[])} 依次以 1、半数、全部 CPU 个线程运行吞吐量与延迟两种模式，线程数也可通过系统属性
+ * {@code threads}（逗号分隔）指定。
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class LookupWorkloadBenchmark {
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : threadCounts()) {
+            for (Mode mode : new Mode[] {Mode.Throughput, Mode.SampleTime}) {
+                Options opt =
+                        new OptionsBuilder()
+                                .include(LookupWorkloadBenchmark.class.getSimpleName())
+                                .mode(mode)
+                                .timeUnit(
+                                        mode == Mode.Throughput
+                                                ? TimeUnit.SECONDS
+                                                : TimeUnit.NANOSECONDS)
+                                .threads(threads)
+                                .resultFormat(ResultFormatType.JSON)
+                                .result("lookup-" + mode.shortLabel() + "-t" + threads + ".json")
+                                .build();
+                new Runner(opt).run();
+            }
+        }
+    }
+
+    private static Set<Integer> threadCounts() {
+        Set<Integer> threadCounts = new LinkedHashSet<>();
+        String property = System.getProperty("threads");
+        if (property != null) {
+            for (String threads : property.split(",")) {
+                threadCounts.add(Integer.parseInt(threads.trim()));
+            }
+            return threadCounts;
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        threadCounts.add(1);
+        threadCounts.add(Math.max(1, cores / 2));
+        threadCounts.add(cores);
+        return threadCounts;
+    }
+
+    static final int QUERY_COUNT = 1 << 20;
+    static final int BATCH_SIZE = 64;
+
+    @Param({"IPV4", "IPV6"})
+    TrieToFPAConverter.IP_TYPE ipType;
+
+    @Param({"UNIFORM", "ZIPF", "SEQUENTIAL", "MATCHING"})
+    BenchmarkData.Workload workload;
+
+    BitTrie<String> trie;
+    ForwardingPortArray<String> fpa;
+    FPATree<String> tree;
+    CachingSearcher<String> cachingTree;
+
+    byte[][] queries;
+    // 与 queries 相同的地址，供 FPATree 的基本类型查询使用
+    int[] ipv4Queries;
+    long[] ipv6HiQueries;
+    long[] ipv6LoQueries;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkData.Dataset dataset = BenchmarkData.dataset(ipType);
+        trie = dataset.trie;
+        fpa = dataset.fpa;
+        tree = dataset.tree;
+        cachingTree = new CachingSearcher<>(tree);
+
+        queries = BenchmarkData.queries(workload, dataset, QUERY_COUNT, 2);
+        if (ipType == TrieToFPAConverter.IP_TYPE.IPV4) {
+            ipv4Queries = new int[QUERY_COUNT];
+            for (int i = 0; i < QUERY_COUNT; i++) {
+                ipv4Queries[i] = BenchmarkData.toInt(queries[i]);
+            }
+        } else {
+            ipv6HiQueries = new long[QUERY_COUNT];
+            ipv6LoQueries = new long[QUERY_COUNT];
+            for (int i = 0; i < QUERY_COUNT; i++) {
+                ipv6HiQueries[i] = BenchmarkData.toLong(queries[i], 0);
+                ipv6LoQueries[i] = BenchmarkData.toLong(queries[i], 8);
+            }
+        }
+    }
+
+    /** 每个线程在查询序列中的读取位置，各线程起点均匀错开 */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int position;
+
+        @Setup
+        public void setup(ThreadParams threadParams) {
+            // 起点对齐到批次边界：QUERY_COUNT 是 BATCH_SIZE 的整数倍，一个批次不会越过序列末尾
+            position =
+                    (int)
+                                    ((long) QUERY_COUNT
+                                            * threadParams.getThreadIndex()
+                                            / threadParams.getThreadCount())
+                            & -BATCH_SIZE;
+        }
+
+        /** 取得下一批查询的起点 */
+        int next() {
+            int start = position;
+            position = (position + BATCH_SIZE) & (QUERY_COUNT - 1);
+            return start;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void bitTrie(Cursor cursor, Blackhole bh) {
+        int start = cursor.next();
+        for (int i = start; i < start + BATCH_SIZE; i++) {
+            bh.consume(trie.search(queries[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void forwardingPortArray(Cursor cursor, Blackhole bh) {
+        int start = cursor.next();
+        for (int i = start; i < start + BATCH_SIZE; i++) {
+            bh.consume(fpa.search(queries[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void fpaTree(Cursor cursor, Blackhole bh) {
+        int start = cursor.next();
+        for (int i = start; i < start + BATCH_SIZE; i++) {
+            bh.consume(tree.search(queries[i]));
+        }
+    }
+
+    /** FPATree 以 int（IPv4）或两个 long（IPv6）表示地址的查询 */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void fpaTreePrimitive(Cursor cursor, Blackhole bh) {
+        int start = cursor.next();
+        if (ipv4Queries != null) {
+            for (int i = start; i < start + BATCH_SIZE; i++) {
+                bh.consume(tree.search(ipv4Queries[i]));
+            }
+        } else {
+            for (int i = start; i < start + BATCH_SIZE; i++) {
+                bh.consume(tree.search(ipv6HiQueries[i], ipv6LoQueries[i]));
+            }
+        }
+    }
+
+    /** 经每线程前缀块缓存的 FPATree 基本类型查询 */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void fpaTreeCached(Cursor cursor, Blackhole bh) throws Exception {
+        int start = cursor.next();
+        if (ipv4Queries != null) {
+            for (int i = start; i < start + BATCH_SIZE; i++) {
+                bh.consume(cachingTree.search(ipv4Queries[i]));
+            }
+        } else {
+            for (int i = start; i < start + BATCH_SIZE; i++) {
+                bh.consume(cachingTree.search(ipv6HiQueries[i], ipv6LoQueries[i]));
+            }
+        }
+    }
+}
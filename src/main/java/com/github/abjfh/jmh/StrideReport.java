@@ -0,0 +1,164 @@
+package com.github.abjfh.jmh;
+
+import com.github.abjfh.fpa.impl.BitTrie;
+import com.github.abjfh.fpa.impl.FPATreeTuner;
+import com.github.abjfh.fpa.impl.ForwardingPortArray;
+import com.github.abjfh.fpa.impl.TrieToFPAConverter;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * 在集中于 /32 与 /48 的 IPv6 前缀上比较跳跃节点与其他步长方案
+ *
+ * <p>用法：{@code StrideReport [/32 分配数] [随机种子]}。前缀为若干个 /32，每个 /32 下有若干个 /48，
+ * 少量 /56 与 /64；查询大部分落在 /48 内。先输出 FPATreeTuner 的调优报告（含跳跃节点开、关两种构建），
+ * 再按各步长方案模拟不压缩的多级数组：每层一次探测，每个节点占 2^步长 个 int。
+ * 固定 16/8 步长的模拟结果是两者共同的基线：调优报告中的树在此基础上压缩 chunk 并合并单子节点链，
+ * 模拟结果则只改变步长，可据此比较两种做法减少的探测次数与内存。
+ */
+public class StrideReport {
+
+    private static final int QUERY_COUNT = 100_000;
+
+    // 各方案中各层结束处的位数，根节点固定为 16 位
+    private static final int[][] SCHEDULES = {
+        {16, 24, 32, 40, 48, 56, 64, 72, 80, 88, 96, 104, 112, 120, 128},
+        {16, 32, 48, 56, 64, 72, 80, 88, 96, 104, 112, 120, 128},
+        {16, 32, 48, 64, 80, 96, 112, 128},
+    };
+    private static final String[] SCHEDULE_NAMES = {"16/8x14", "16/16/16/8x10", "16/16x7"};
+
+    private final List<byte[]> keys = new ArrayList<>();
+    private final List<Integer> lengths = new ArrayList<>();
+    private final List<byte[]> blocks48 = new ArrayList<>();
+    private final List<byte[]> blocks32 = new ArrayList<>();
+
+    public static void main(String[] args) {
+        int allocations = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        Random random = new Random(seed);
+
+        StrideReport report = new StrideReport();
+        report.generate(allocations, random);
+        List<byte[]> queries = report.queries(random);
+
+        BitTrie<String> trie = new BitTrie<>();
+        for (int i = 0; i < report.keys.size(); i++) {
+            trie.putExact(report.keys.get(i), report.lengths.get(i), "v" + (i & 63));
+        }
+        ForwardingPortArray<String> fpa = TrieToFPAConverter.IPV6_CONVERTER.convert(trie);
+        FPATreeTuner.Result<String> result =
+                new FPATreeTuner<>(TrieToFPAConverter.IP_TYPE.IPV6, fpa).sample(queries).tune();
+
+        System.out.println(
+                "前缀: " + report.keys.size() + "（" + allocations + " 个 /32），查询: " + queries.size());
+        System.out.println("FPATreeTuner:");
+        System.out.print(result.report());
+        System.out.println("不压缩的多级数组:");
+        System.out.println(String.format("  %-16s %12s %10s", "步长", "字节数", "平均探测"));
+        for (int i = 0; i < SCHEDULES.length; i++) {
+            report.simulate(SCHEDULE_NAMES[i], SCHEDULES[i], queries);
+        }
+    }
+
+    /** 每个 /32 下 0 到 16 个 /48，约十分之一的 /48 下再有一个 /56 或 /64 */
+    private void generate(int allocations, Random random) {
+        for (int i = 0; i < allocations; i++) {
+            byte[] block32 = new byte[16];
+            random.nextBytes(block32);
+            // 2000::/3
+            block32[0] = (byte) (0x20 | block32[0] & 0x1F);
+            mask(block32, 32);
+            add(block32, 32);
+            blocks32.add(block32);
+            int count48 = random.nextInt(17);
+            for (int j = 0; j < count48; j++) {
+                byte[] block48 = block32.clone();
+                block48[4] = (byte) random.nextInt(256);
+                block48[5] = (byte) random.nextInt(256);
+                add(block48, 48);
+                blocks48.add(block48);
+                if (random.nextInt(10) == 0) {
+                    byte[] longer = block48.clone();
+                    longer[6] = (byte) random.nextInt(256);
+                    int length = random.nextBoolean() ? 56 : 64;
+                    if (length == 64) {
+                        longer[7] = (byte) random.nextInt(256);
+                    }
+                    add(longer, length);
+                }
+            }
+        }
+    }
+
+    private void add(byte[] key, int length) {
+        keys.add(key);
+        lengths.add(length);
+    }
+
+    /** 80% 落在某个 /48 内，15% 落在某个 /32 内，其余完全随机 */
+    private List<byte[]> queries(Random random) {
+        List<byte[]> queries = new ArrayList<>(QUERY_COUNT);
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            byte[] query = new byte[16];
+            random.nextBytes(query);
+            int kind = random.nextInt(20);
+            if (kind < 16 && !blocks48.isEmpty()) {
+                System.arraycopy(blocks48.get(random.nextInt(blocks48.size())), 0, query, 0, 6);
+            } else if (kind < 19) {
+                System.arraycopy(blocks32.get(random.nextInt(blocks32.size())), 0, query, 0, 4);
+            }
+            queries.add(query);
+        }
+        return queries;
+    }
+
+    /**
+     * 按步长方案统计节点数与探测次数：第 i 层的节点对应比第 i-1 层边界更长的前缀在该边界处的各个不同高位
+     *
+     * @param bounds 各层结束处的位数
+     */
+    private void simulate(String name, int[] bounds, List<byte[]> queries) {
+        List<Set<BigInteger>> levels = new ArrayList<>();
+        long slots = 1L << bounds[0];
+        for (int i = 1; i < bounds.length; i++) {
+            Set<BigInteger> nodes = new HashSet<>();
+            for (int p = 0; p < keys.size(); p++) {
+                if (lengths.get(p) > bounds[i - 1]) {
+                    nodes.add(top(keys.get(p), bounds[i - 1]));
+                }
+            }
+            levels.add(nodes);
+            slots += (long) nodes.size() << (bounds[i] - bounds[i - 1]);
+        }
+        long probes = 0;
+        for (byte[] query : queries) {
+            probes++;
+            for (int i = 1; i < bounds.length; i++) {
+                if (!levels.get(i - 1).contains(top(query, bounds[i - 1]))) {
+                    break;
+                }
+                probes++;
+            }
+        }
+        System.out.println(
+                String.format(
+                        "  %-16s %12d %10.2f",
+                        name, slots * 4, (double) probes / queries.size()));
+    }
+
+    private static BigInteger top(byte[] address, int bits) {
+        return new BigInteger(1, address).shiftRight(128 - bits);
+    }
+
+    private static void mask(byte[] key, int length) {
+        for (int i = length; i < 128; i++) {
+            key[i >>> 3] &= (byte) ~(0x80 >>> (i & 7));
+        }
+    }
+}
@@ -4,12 +4,17 @@ import com.github.abjfh.domain.IpSegment;
 import com.github.abjfh.fpa.impl.BitTrie;
 import com.github.abjfh.fpa.impl.FPATree;
 import com.github.abjfh.fpa.impl.ForwardingPortArray;
+import com.github.abjfh.fpa.impl.MutableFPATree;
+import com.github.abjfh.fpa.impl.StreamingFPATreeBuilder;
 import com.github.abjfh.fpa.impl.TrieToFPAConverter;
 
 import inet.ipaddr.AddressStringException;
 import inet.ipaddr.IPAddress;
 import inet.ipaddr.IPAddressString;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
 public class ConverterUtil {
@@ -41,4 +46,55 @@ public class ConverterUtil {
     public static <V> FPATree<V> convertToFPATree(ForwardingPortArray<V> fpa) {
         return FPATree.<V>Builder().fpa(fpa).build();
     }
+
+    public static <V> MutableFPATree<V> convertToMutableFPATree(
+            TrieToFPAConverter.IP_TYPE ipType, List<IpSegment<V>> list)
+            throws AddressStringException {
+        BitTrie<V> bitTrie = new BitTrie<>();
+        for (IpSegment<V> ipSegment : list) {
+            IPAddress ipAddress = new IPAddressString(ipSegment.getPrefixIp()).toAddress();
+            if (ipAddress != null) {
+                bitTrie.putExact(
+                        ipAddress.getBytes(), ipAddress.getPrefixLength(), ipSegment.getValue());
+            }
+        }
+        return new MutableFPATree<>(ipType, bitTrie);
+    }
+
+    /**
+     * 将前缀排序后直接流式构建 FPATree，不生成 BitTrie 和 ForwardingPortArray
+     *
+     * <p>同一前缀出现多次时以列表中靠后的为准
+     */
+    public static <V> FPATree<V> convertToFPATreeStreaming(
+            TrieToFPAConverter.IP_TYPE ipType, List<IpSegment<V>> list)
+            throws AddressStringException {
+        List<IPAddress> addresses = new ArrayList<>(list.size());
+        List<IPAddress> networks = new ArrayList<>(list.size());
+        List<V> values = new ArrayList<>(list.size());
+        for (IpSegment<V> ipSegment : list) {
+            IPAddress ipAddress = new IPAddressString(ipSegment.getPrefixIp()).toAddress();
+            if (ipAddress != null) {
+                addresses.add(ipAddress);
+                networks.add(ipAddress.toPrefixBlock().getLower().withoutPrefixLength());
+                values.add(ipSegment.getValue());
+            }
+        }
+        // 稳定排序：按地址、前缀长度升序，重复前缀保持原有先后
+        Integer[] order = new Integer[addresses.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(
+                order,
+                Comparator.<Integer, IPAddress>comparing(networks::get)
+                        .thenComparingInt(i -> addresses.get(i).getPrefixLength()));
+
+        StreamingFPATreeBuilder<V> builder = new StreamingFPATreeBuilder<>(ipType);
+        for (int i : order) {
+            IPAddress ipAddress = addresses.get(i);
+            builder.add(ipAddress.getBytes(), ipAddress.getPrefixLength(), values.get(i));
+        }
+        return builder.build();
+    }
 }
@@ -0,0 +1,232 @@
+package com.github.abjfh.fpa.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.github.abjfh.fpa.IpSearcher;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 缓存后的查询结果与被包装的查询器一致
+ *
+ * <p>按前缀块缓存时，每个地址之后紧接着查询同一块中的另一个随机地址：只有查询在块长度之内到达叶子时结果才可被缓存，
+ * 否则第二个地址会得到第一个地址的结果
+ */
+public class CachingSearcherTest {
+
+    @Test
+    public void ipv4TreeMatchesBitTrie() throws Exception {
+        Random random = new Random(1);
+        RandomPrefixes prefixes = RandomPrefixes.ipv4(random, 3000, 16);
+        BitTrie<String> trie = prefixes.trie();
+        List<byte[]> probes = prefixes.probes(random, 3000);
+        for (FPATree<String> tree : trees(prefixes)) {
+            for (int blockBits : new int[] {8, 16, 20, 24, 32}) {
+                for (int capacity : new int[] {16, 1 << 14}) {
+                    CachingSearcher<String> cache =
+                            new CachingSearcher<>(tree, capacity, blockBits, 48);
+                    checkBlocks(trie, cache, probes, blockBits, random);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void ipv6TreeMatchesBitTrie() throws Exception {
+        Random random = new Random(2);
+        RandomPrefixes prefixes = RandomPrefixes.ipv6(random, 3000, 16);
+        BitTrie<String> trie = prefixes.trie();
+        List<byte[]> probes = prefixes.probes(random, 3000);
+        for (FPATree<String> tree : trees(prefixes)) {
+            for (int blockBits : new int[] {8, 32, 48, 64, 72, 100, 128}) {
+                for (int capacity : new int[] {16, 1 << 14}) {
+                    CachingSearcher<String> cache =
+                            new CachingSearcher<>(tree, capacity, 24, blockBits);
+                    checkBlocks(trie, cache, probes, blockBits, random);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void mutableTreeMatchesBitTrie() throws Exception {
+        Random random = new Random(3);
+        RandomPrefixes prefixes = RandomPrefixes.ipv6(random, 2000, 16);
+        MutableFPATree<String> tree = new MutableFPATree<>(prefixes.ipType, prefixes.trie());
+        CachingSearcher<String> cache = new CachingSearcher<>(tree, 1 << 12, 24, 40);
+        checkBlocks(prefixes.trie(), cache, prefixes.probes(random, 2000), 40, random);
+    }
+
+    @Test
+    public void onlyLeavesWithinTheBlockAreCached() throws Exception {
+        BitTrie<String> trie = new BitTrie<>();
+        trie.putExact(new byte[] {10, 0, 0, 0}, 8, "short");
+        trie.putExact(new byte[] {10, 1, 2, 3}, 32, "host");
+        FPATree<String> tree =
+                FPATree.<String>Builder().fpa(TrieToFPAConverter.IPV4_CONVERTER.convert(trie)).build();
+
+        // 10.0.0.0/8 在根数组中到达叶子（16 位），10.1.2.0/24 之下要查询到第 32 位
+        CachingSearcher<String> cache = new CachingSearcher<>(tree, 64, 24, 48);
+        assertEquals("short", cache.search(new byte[] {10, 9, 9, 1}));
+        assertEquals("short", cache.search(new byte[] {10, 9, 9, 2}));
+        assertCounts(cache, 1, 1, 0);
+        assertEquals("host", cache.search(new byte[] {10, 1, 2, 3}));
+        assertEquals("short", cache.search(new byte[] {10, 1, 2, 4}));
+        assertEquals("host", cache.search(new byte[] {10, 1, 2, 3}));
+        assertCounts(cache, 1, 4, 3);
+
+        // 块长度小于根数组的 16 位时不缓存任何结果
+        cache = new CachingSearcher<>(tree, 64, 8, 48);
+        assertEquals("short", cache.search(new byte[] {10, 9, 9, 1}));
+        assertEquals("short", cache.search(new byte[] {10, 9, 9, 1}));
+        assertCounts(cache, 0, 2, 2);
+
+        // 块长度为 32 时按完整地址缓存
+        cache = new CachingSearcher<>(tree, 64, 32, 48);
+        assertEquals("host", cache.search(new byte[] {10, 1, 2, 3}));
+        assertEquals("host", cache.search(new byte[] {10, 1, 2, 3}));
+        assertEquals("short", cache.search(new byte[] {10, 1, 2, 4}));
+        assertCounts(cache, 1, 2, 0);
+    }
+
+    @Test
+    public void plainDelegateIsCachedByAddress() throws Exception {
+        Map<String, String> values = new HashMap<>();
+        values.put("10.0.0.1", "a");
+        IpSearcher<String> delegate =
+                ipBytes -> values.get(InetAddress.getByAddress(ipBytes).getHostAddress());
+        CachingSearcher<String> cache = new CachingSearcher<>(delegate, 64, 8, 16);
+        assertEquals("a", cache.search(new byte[] {10, 0, 0, 1}));
+        assertEquals("a", cache.search(0x0A000001));
+        // 同一块中的其他地址不共用缓存项
+        assertEquals(null, cache.search(new byte[] {10, 0, 0, 2}));
+        assertEquals(null, cache.search(new byte[] {10, 0, 0, 2}));
+        assertCounts(cache, 2, 2, 0);
+
+        // 原地修改后须调用 invalidate
+        values.put("10.0.0.1", "b");
+        assertEquals("a", cache.search(new byte[] {10, 0, 0, 1}));
+        cache.invalidate();
+        assertEquals("b", cache.search(new byte[] {10, 0, 0, 1}));
+        assertEquals(1, cache.invalidations());
+    }
+
+    @Test
+    public void mutableTreeUpdateInvalidates() throws Exception {
+        BitTrie<String> trie = new BitTrie<>();
+        trie.putExact(new byte[] {10, 0, 0, 0}, 8, "old");
+        MutableFPATree<String> tree = new MutableFPATree<>(TrieToFPAConverter.IP_TYPE.IPV4, trie);
+        CachingSearcher<String> cache = new CachingSearcher<>(tree, 64, 24, 48);
+        byte[] address = {10, 1, 2, 3};
+        assertEquals("old", cache.search(address));
+        assertEquals("old", cache.search(address));
+        assertEquals(1, cache.hits());
+
+        tree.put(new byte[] {10, 1, 0, 0}, 16, "new");
+        assertEquals("new", cache.search(address));
+        assertEquals(1, cache.invalidations());
+        tree.remove(new byte[] {10, 1, 0, 0}, 16);
+        assertEquals("old", cache.search(address));
+        assertEquals(2, cache.invalidations());
+    }
+
+    @Test
+    public void reloadInvalidates() throws Exception {
+        BitTrie<String> oldTrie = new BitTrie<>();
+        oldTrie.putExact(new byte[16], 16, "old");
+        BitTrie<String> newTrie = new BitTrie<>();
+        newTrie.putExact(new byte[16], 16, "new");
+        try (ReloadableSearcher<String> reloadable =
+                new ReloadableSearcher<>(ipv6Tree(oldTrie))) {
+            CachingSearcher<String> cache = new CachingSearcher<>(reloadable, 64, 24, 48);
+            assertEquals("old", cache.search(0L, 1L));
+            assertEquals("old", cache.search(0L, 2L));
+            assertEquals(1, cache.hits());
+
+            assertTrue(
+                    reloadable
+                            .reload(() -> ipv6Tree(newTrie))
+                            .get());
+            assertEquals("new", cache.search(0L, 1L));
+            assertEquals(1, cache.invalidations());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badAddressLengthIsRejected() throws Exception {
+        new CachingSearcher<String>(ipBytes -> null).search(new byte[5]);
+    }
+
+    private static FPATree<String> ipv6Tree(BitTrie<String> trie) {
+        return FPATree.<String>Builder().fpa(TrieToFPAConverter.IPV6_CONVERTER.convert(trie)).build();
+    }
+
+    private static List<FPATree<String>> trees(RandomPrefixes prefixes) {
+        return Arrays.asList(
+                prefixes.build(FPATree.Builder()),
+                prefixes.build(FPATree.<String>Builder().packed(true).maxRangeRuns(256)),
+                prefixes.build(FPATree.<String>Builder().skipNodes(false).maxRangeRuns(0)));
+    }
+
+    /**
+     * 依次查询每个地址与同一块中的另一个随机地址，并交替使用两种查询入口，结果均须与 BitTrie 一致；共查询两轮，第二轮从缓存中取得
+     */
+    private static void checkBlocks(
+            BitTrie<String> trie,
+            CachingSearcher<String> cache,
+            List<byte[]> probes,
+            int blockBits,
+            Random random)
+            throws Exception {
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < probes.size(); i++) {
+                byte[] probe = probes.get(i);
+                byte[] neighbour = probe.clone();
+                for (int bit = blockBits; bit < probe.length * 8; bit++) {
+                    if (random.nextBoolean()) {
+                        neighbour[bit >>> 3] ^= (byte) (0x80 >>> (bit & 7));
+                    }
+                }
+                assertSearch(trie, cache, probe, i);
+                assertSearch(trie, cache, neighbour, i + 1);
+            }
+        }
+        assertEquals(probes.size() * 4, cache.hits() + cache.misses());
+        assertTrue(cache.uncacheable() <= cache.misses());
+    }
+
+    private static void assertSearch(
+            BitTrie<String> trie, CachingSearcher<String> cache, byte[] address, int entry)
+            throws Exception {
+        String expected = trie.search(address);
+        String message = Arrays.toString(address);
+        if (entry % 2 == 0) {
+            assertEquals(message, expected, cache.search(address));
+        } else if (address.length == 4) {
+            assertEquals(message, expected, cache.search(RandomPrefixes.toInt(address, 0)));
+        } else {
+            long hi =
+                    (long) RandomPrefixes.toInt(address, 0) << 32
+                            | RandomPrefixes.toInt(address, 4) & 0xFFFFFFFFL;
+            long lo =
+                    (long) RandomPrefixes.toInt(address, 8) << 32
+                            | RandomPrefixes.toInt(address, 12) & 0xFFFFFFFFL;
+            assertEquals(message, expected, cache.search(hi, lo));
+        }
+    }
+
+    private static void assertCounts(
+            CachingSearcher<?> cache, long hits, long misses, long uncacheable) {
+        assertEquals(hits, cache.hits());
+        assertEquals(misses, cache.misses());
+        assertEquals(uncacheable, cache.uncacheable());
+    }
+}
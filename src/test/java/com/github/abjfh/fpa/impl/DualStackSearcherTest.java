@@ -0,0 +1,222 @@
+package com.github.abjfh.fpa.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 双栈查询的结果与按地址类别分别查询两个 BitTrie 的结果一致
+ *
+ * <p>两棵树的值带有不同的前缀，IPv6 树的值索引未正确标记时会从 IPv4 树取值；IPv6 数据中也为 6to4、NAT64
+ * 与 IPv4 映射前缀配置了值，用于区分内嵌 IPv4 地址在 IPv4 树中未命中时是否回退到 IPv6 树
+ */
+public class DualStackSearcherTest {
+    // ::ffff:0:0/96、64:ff9b::/96 与 2002::/16 的前几个字节
+    private static final byte[] MAPPED_HEAD = {
+        0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xFF, (byte) 0xFF
+    };
+    private static final byte[] NAT64_HEAD = {
+        0, 0x64, (byte) 0xFF, (byte) 0x9B, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+    private static final byte[] SIX_TO_FOUR_HEAD = {0x20, 0x02};
+
+    @Test
+    public void embeddedIpv4MatchesBitTries() throws Exception {
+        for (long seed = 1; seed <= 3; seed++) {
+            check(new Random(seed), true);
+        }
+    }
+
+    @Test
+    public void disabledEmbeddedIpv4MatchesBitTries() throws Exception {
+        for (long seed = 1; seed <= 3; seed++) {
+            check(new Random(seed), false);
+        }
+    }
+
+    @Test
+    public void singleTree() throws Exception {
+        Random random = new Random(4);
+        RandomPrefixes ipv4 = prefixes(RandomPrefixes.ipv4(random, 500, 8), "4");
+        RandomPrefixes ipv6 = prefixes(RandomPrefixes.ipv6(random, 500, 8), "6");
+        FPATree<String> ipv4Tree = ipv4.build(FPATree.Builder());
+        FPATree<String> ipv6Tree = ipv6.build(FPATree.Builder());
+        BitTrie<String> ipv4Trie = ipv4.trie();
+        BitTrie<String> ipv6Trie = ipv6.trie();
+
+        DualStackSearcher<String> onlyIpv4 = new DualStackSearcher<>(ipv4Tree, null);
+        for (byte[] probe : ipv4.probes(random, 500)) {
+            assertEquals(ipv4Trie.search(probe), onlyIpv4.search(probe));
+            assertEquals(ipv4Trie.search(probe), onlyIpv4.search(mapped(probe)));
+            assertEquals(ipv4Trie.search(probe), onlyIpv4.search(nat64(probe)));
+        }
+        for (byte[] probe : ipv6.probes(random, 500)) {
+            assertNull(onlyIpv4.search(probe));
+        }
+
+        DualStackSearcher<String> onlyIpv6 = new DualStackSearcher<>(null, ipv6Tree);
+        for (byte[] probe : ipv6.probes(random, 500)) {
+            assertEquals(ipv6Trie.search(probe), onlyIpv6.search(probe));
+        }
+        for (byte[] probe : ipv4.probes(random, 500)) {
+            assertNull(onlyIpv6.search(probe));
+            assertNull(onlyIpv6.search(mapped(probe)));
+            assertEquals(ipv6Trie.search(nat64(probe)), onlyIpv6.search(nat64(probe)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void swappedTreesAreRejected() {
+        Random random = new Random(5);
+        new DualStackSearcher<>(
+                RandomPrefixes.ipv6(random, 10, 2).build(FPATree.Builder()),
+                RandomPrefixes.ipv4(random, 10, 2).build(FPATree.Builder()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingTreesAreRejected() {
+        new DualStackSearcher<String>(null, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badAddressLengthIsRejected() {
+        Random random = new Random(6);
+        new DualStackSearcher<>(RandomPrefixes.ipv4(random, 10, 2).build(FPATree.Builder()), null)
+                .search(new byte[6]);
+    }
+
+    private static void check(Random random, boolean embeddedIpv4) throws Exception {
+        RandomPrefixes ipv4 = prefixes(RandomPrefixes.ipv4(random, 2000, 16), "4");
+        RandomPrefixes ipv6 = prefixes(RandomPrefixes.ipv6(random, 2000, 16), "6");
+        addPrefix(ipv6, SIX_TO_FOUR_HEAD, 16, "6to4");
+        addPrefix(ipv6, NAT64_HEAD, 96, "nat64");
+        addPrefix(ipv6, MAPPED_HEAD, 96, "mapped");
+        BitTrie<String> ipv4Trie = ipv4.trie();
+        BitTrie<String> ipv6Trie = ipv6.trie();
+        DualStackSearcher<String> searcher =
+                new DualStackSearcher<>(
+                        ipv4.build(FPATree.Builder()),
+                        ipv6.build(FPATree.<String>Builder().packed(true)),
+                        embeddedIpv4);
+
+        List<byte[]> probes = new ArrayList<>(ipv6.probes(random, 1000));
+        for (byte[] probe : ipv4.probes(random, 1000)) {
+            probes.add(probe);
+            probes.add(mapped(probe));
+            probes.add(nat64(probe));
+            probes.add(sixToFour(probe, random));
+        }
+        for (byte[] probe : probes) {
+            assertSearch(expected(ipv4Trie, ipv6Trie, probe, embeddedIpv4), searcher, probe);
+        }
+    }
+
+    /** 按类注释中的规则分别查询两个 BitTrie */
+    private static String expected(
+            BitTrie<String> ipv4Trie,
+            BitTrie<String> ipv6Trie,
+            byte[] address,
+            boolean embeddedIpv4) {
+        if (address.length == 4) {
+            return ipv4Trie.search(address);
+        }
+        if (startsWith(address, MAPPED_HEAD)) {
+            return ipv4Trie.search(Arrays.copyOfRange(address, 12, 16));
+        }
+        String embedded = null;
+        if (embeddedIpv4 && startsWith(address, SIX_TO_FOUR_HEAD)) {
+            embedded = ipv4Trie.search(Arrays.copyOfRange(address, 2, 6));
+        } else if (embeddedIpv4 && startsWith(address, NAT64_HEAD)) {
+            embedded = ipv4Trie.search(Arrays.copyOfRange(address, 12, 16));
+        }
+        return embedded != null ? embedded : ipv6Trie.search(address);
+    }
+
+    /** 依次通过字节数组、基本类型、InetAddress 与两种文本入口查询 */
+    private static void assertSearch(
+            String expected, DualStackSearcher<String> searcher, byte[] address) throws Exception {
+        String message = Arrays.toString(address);
+        assertEquals(message, expected, searcher.search(address));
+        if (address.length == 4) {
+            assertEquals(message, expected, searcher.search(RandomPrefixes.toInt(address, 0)));
+        } else {
+            long hi =
+                    (long) RandomPrefixes.toInt(address, 0) << 32
+                            | RandomPrefixes.toInt(address, 4) & 0xFFFFFFFFL;
+            long lo =
+                    (long) RandomPrefixes.toInt(address, 8) << 32
+                            | RandomPrefixes.toInt(address, 12) & 0xFFFFFFFFL;
+            assertEquals(message, expected, searcher.search(hi, lo));
+        }
+        // IPv4 映射地址由 InetAddress 转换为 Inet4Address，走 hashCode 取地址的路径
+        assertEquals(message, expected, searcher.search(InetAddress.getByAddress(address)));
+        String text = text(address);
+        assertEquals(text, expected, searcher.search(text));
+        byte[] utf8 = (" " + text + " ").getBytes(StandardCharsets.US_ASCII);
+        assertEquals(text, expected, searcher.search(utf8, 1, text.length()));
+    }
+
+    /** 复制前缀集合，值加上地址族前缀 */
+    private static RandomPrefixes prefixes(RandomPrefixes prefixes, String family) {
+        RandomPrefixes copy = prefixes.mutate(new Random(0), 0, 1);
+        copy.values.replaceAll(value -> family + value);
+        return copy;
+    }
+
+    private static void addPrefix(RandomPrefixes prefixes, byte[] head, int length, String value) {
+        prefixes.keys.add(Arrays.copyOf(head, 16));
+        prefixes.lengths.add(length);
+        prefixes.values.add(value);
+    }
+
+    private static boolean startsWith(byte[] address, byte[] head) {
+        return Arrays.equals(Arrays.copyOf(address, head.length), head);
+    }
+
+    /** ::ffff:a.b.c.d */
+    private static byte[] mapped(byte[] ipv4) {
+        byte[] address = Arrays.copyOf(MAPPED_HEAD, 16);
+        System.arraycopy(ipv4, 0, address, 12, 4);
+        return address;
+    }
+
+    /** 64:ff9b::a.b.c.d */
+    private static byte[] nat64(byte[] ipv4) {
+        byte[] address = Arrays.copyOf(NAT64_HEAD, 16);
+        System.arraycopy(ipv4, 0, address, 12, 4);
+        return address;
+    }
+
+    /** 2002:aabb:ccdd::/48 下的随机地址 */
+    private static byte[] sixToFour(byte[] ipv4, Random random) {
+        byte[] address = new byte[16];
+        random.nextBytes(address);
+        address[0] = 0x20;
+        address[1] = 0x02;
+        System.arraycopy(ipv4, 0, address, 2, 4);
+        return address;
+    }
+
+    /** IPv4 为点分十进制，IPv6 为不省略零的完整形式 */
+    private static String text(byte[] address) throws Exception {
+        if (address.length == 4) {
+            return InetAddress.getByAddress(address).getHostAddress();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 16; i += 2) {
+            if (i > 0) {
+                sb.append(':');
+            }
+            sb.append(String.format("%02x%02x", address[i], address[i + 1]));
+        }
+        return sb.toString();
+    }
+}
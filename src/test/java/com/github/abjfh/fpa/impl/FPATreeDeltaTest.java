@@ -0,0 +1,100 @@
+package com.github.abjfh.fpa.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import com.github.abjfh.fpa.ValueCodec;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+/** 增量应用到基础版本后与目标版本的查询结果一致 */
+public class FPATreeDeltaTest {
+
+    @Test
+    public void ipv4ApplyMatchesTarget() throws Exception {
+        for (long seed = 1; seed <= 5; seed++) {
+            Random random = new Random(seed);
+            checkChain(RandomPrefixes.ipv4(random, 3000, 32), random);
+        }
+    }
+
+    @Test
+    public void ipv6ApplyMatchesTarget() throws Exception {
+        for (long seed = 1; seed <= 5; seed++) {
+            Random random = new Random(seed);
+            checkChain(RandomPrefixes.ipv6(random, 3000, 32), random);
+        }
+    }
+
+    @Test
+    public void differentBuildOptionsMatchTarget() {
+        Random random = new Random(11);
+        RandomPrefixes base = RandomPrefixes.ipv6(random, 2000, 32);
+        RandomPrefixes target = base.mutate(random, 300, 64);
+        FPATree<String> baseTree = base.build(FPATree.<String>Builder().maxRangeRuns(0));
+        FPATree<String> targetTree =
+                target.build(FPATree.<String>Builder().packed(true).skipNodes(false));
+
+        FPATree<String> applied =
+                FPATreeDelta.diff(baseTree, targetTree, ValueCodec.UTF8).apply(baseTree);
+        RandomPrefixes.assertSameLookups(
+                target.trie(), applied, probes(random, base, target));
+    }
+
+    @Test
+    public void identicalVersionsGiveEmptyDelta() {
+        Random random = new Random(3);
+        RandomPrefixes prefixes = RandomPrefixes.ipv4(random, 2000, 32);
+        FPATree<String> first = prefixes.build(FPATree.Builder());
+        FPATree<String> second = prefixes.build(FPATree.<String>Builder().packed(true));
+
+        FPATreeDelta<String> delta = FPATreeDelta.diff(first, second, ValueCodec.UTF8);
+        assertEquals(0, delta.changedRootSlots());
+        assertEquals(0, delta.addedChunkInts());
+        assertEquals(0, delta.addedValues());
+        RandomPrefixes.assertSameLookups(
+                prefixes.trie(), delta.apply(first), prefixes.probes(random, 2000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void applyRejectsOtherBase() {
+        Random random = new Random(5);
+        RandomPrefixes base = RandomPrefixes.ipv4(random, 1000, 32);
+        RandomPrefixes target = base.mutate(random, 100, 32);
+        FPATree<String> baseTree = base.build(FPATree.Builder());
+        FPATree<String> targetTree = target.build(FPATree.Builder());
+
+        FPATreeDelta.diff(baseTree, targetTree, ValueCodec.UTF8).apply(targetTree);
+    }
+
+    /** 连续计算并应用若干个增量，每一步的结果作为下一步的基础版本，并经过序列化 */
+    private static void checkChain(RandomPrefixes prefixes, Random random) throws Exception {
+        FPATree<String> current = prefixes.build(FPATree.Builder());
+        for (int step = 0; step < 3; step++) {
+            RandomPrefixes next = prefixes.mutate(random, 200, 64);
+            FPATree<String> target = next.build(FPATree.Builder());
+            FPATreeDelta<String> delta = FPATreeDelta.diff(current, target, ValueCodec.UTF8);
+            FPATreeDelta<String> decoded =
+                    FPATreeDelta.fromByteArray(delta.toByteArray(), ValueCodec.UTF8);
+
+            List<byte[]> probes = probes(random, prefixes, next);
+            BitTrie<String> expected = next.trie();
+            RandomPrefixes.assertSameLookups(expected, delta.apply(current), probes);
+            FPATree<String> applied = decoded.apply(current);
+            RandomPrefixes.assertSameLookups(expected, applied, probes);
+            assertEquals(next.ipType, applied.ipType());
+
+            current = applied;
+            prefixes = next;
+        }
+    }
+
+    /** 两个版本各自前缀内的地址，以及随机地址 */
+    private static List<byte[]> probes(Random random, RandomPrefixes base, RandomPrefixes target) {
+        List<byte[]> probes = base.probes(random, 2000);
+        probes.addAll(target.probes(random, 0));
+        return probes;
+    }
+}
@@ -0,0 +1,211 @@
+package com.github.abjfh.fpa.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import inet.ipaddr.IPAddressString;
+import inet.ipaddr.ipv4.IPv4Address;
+import inet.ipaddr.ipv6.IPv6Address;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/** 文本地址的解析结果与 IPAddressString 一致，格式错误与地址族不符的文本不会被查询 */
+public class IpAddressTextTest {
+
+    private static final List<String> MALFORMED =
+            Arrays.asList(
+                    "",
+                    ":",
+                    ":::",
+                    "1::2::3",
+                    "1:2:3:4:5:6:7:8:9",
+                    "1:2:3:4:5:6:7",
+                    "1:2:3:4:5:6:7::8",
+                    "::1.2.3",
+                    "::1.2.3.4.5",
+                    "::1.2.3.4:5",
+                    "1:2:3:4:5:6:7:1.2.3.4",
+                    "12345::",
+                    "g::",
+                    ":1::",
+                    "1::2:",
+                    "256.0.0.0",
+                    "1.2.3",
+                    "1.2.3.",
+                    ".1.2.3",
+                    "1.2.3.4.5",
+                    "1..2.3",
+                    "1234.0.0.0",
+                    " 1.2.3.4",
+                    "1.2.3.4 ",
+                    "fe80::1%eth0",
+                    "1.2.3.4%1",
+                    "10.0.0.0/8",
+                    "2001:db8::/32");
+
+    @Test
+    public void ipv4MatchesIPAddressString() {
+        Random random = new Random(1);
+        List<String> texts =
+                new ArrayList<>(Arrays.asList("0.0.0.0", "255.255.255.255", "1.2.3.4"));
+        for (int i = 0; i < 2000; i++) {
+            byte[] bytes = new byte[4];
+            random.nextBytes(bytes);
+            texts.add(new IPv4Address(bytes).toNormalizedString());
+        }
+        for (String text : texts) {
+            assertParsed(text, null);
+            assertParsed(text, TrieToFPAConverter.IP_TYPE.IPV4);
+        }
+    }
+
+    @Test
+    public void ipv6MatchesIPAddressString() {
+        Random random = new Random(2);
+        List<String> texts =
+                new ArrayList<>(
+                        Arrays.asList(
+                                "::",
+                                "::1",
+                                "1::",
+                                "1::2",
+                                "FFFF:ffff:FfFf:ffff:ffff:ffff:ffff:ffff",
+                                "::ffff:1.2.3.4",
+                                "64:ff9b::192.0.2.1",
+                                "1:2:3:4:5:6:1.2.3.4",
+                                "0001:02:003:0004::"));
+        for (int i = 0; i < 2000; i++) {
+            byte[] bytes = new byte[16];
+            random.nextBytes(bytes);
+            // 部分地址含连续的零组，产生不同位置的 ::
+            int zeros = random.nextInt(4) * 2;
+            int from = random.nextInt(16 - zeros + 1) & ~1;
+            Arrays.fill(bytes, from, from + zeros, (byte) 0);
+            IPv6Address address = new IPv6Address(bytes);
+            texts.add(address.toCanonicalString());
+            texts.add(address.toFullString());
+            texts.add(address.toMixedString());
+            texts.add(address.toCanonicalString().toUpperCase());
+        }
+        for (String text : texts) {
+            assertParsed(text, null);
+            assertParsed(text, TrieToFPAConverter.IP_TYPE.IPV6);
+        }
+    }
+
+    @Test
+    public void malformedTextIsNotLookedUp() {
+        for (String text : MALFORMED) {
+            for (TrieToFPAConverter.IP_TYPE ipType : TrieToFPAConverter.IP_TYPE.values()) {
+                assertRejected(text, ipType);
+            }
+            assertRejected(text, null);
+        }
+    }
+
+    @Test
+    public void otherFamilyIsRejected() {
+        assertRejected("1.2.3.4", TrieToFPAConverter.IP_TYPE.IPV6);
+        assertRejected("::", TrieToFPAConverter.IP_TYPE.IPV4);
+        assertRejected("::1.2.3.4", TrieToFPAConverter.IP_TYPE.IPV4);
+        assertRejected("::ffff:1.2.3.4", TrieToFPAConverter.IP_TYPE.IPV4);
+        assertRejected("1234::", TrieToFPAConverter.IP_TYPE.IPV4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void outOfBoundsSliceIsRejected() {
+        IpAddressText.lookupIndex(new Recorder(), null, new byte[4], 2, 3);
+    }
+
+    @Test
+    public void treeSearchMatchesBitTrie() {
+        Random random = new Random(3);
+        checkTree(RandomPrefixes.ipv4(random, 2000, 16), "::1", random);
+        checkTree(RandomPrefixes.ipv6(random, 2000, 16), "1.2.3.4", random);
+    }
+
+    /** FPATree 的两个文本查询方法与按字节查询 BitTrie 的结果一致，另一地址族与格式错误的文本返回 null */
+    private static void checkTree(RandomPrefixes prefixes, String otherFamily, Random random) {
+        BitTrie<String> trie = prefixes.trie();
+        FPATree<String> tree = prefixes.build(FPATree.Builder());
+        for (byte[] probe : prefixes.probes(random, 2000)) {
+            String text = toText(probe);
+            String expected = trie.search(probe);
+            assertEquals(text, expected, tree.search(text));
+            byte[] utf8 = ("x," + text + ",y").getBytes(StandardCharsets.US_ASCII);
+            assertEquals(text, expected, tree.search(utf8, 2, text.length()));
+        }
+        assertNull(tree.search(otherFamily));
+        for (String text : MALFORMED) {
+            assertNull(text, tree.search(text));
+        }
+    }
+
+    private static String toText(byte[] address) {
+        return address.length == 4
+                ? new IPv4Address(address).toNormalizedString()
+                : new IPv6Address(address).toCompressedString();
+    }
+
+    /** CharSequence 与嵌在更长字节数组中的 UTF-8 两种入口解析出的地址均与 IPAddressString 相同 */
+    private static void assertParsed(String text, TrieToFPAConverter.IP_TYPE ipType) {
+        byte[] expected = new IPAddressString(text).getAddress().getBytes();
+
+        Recorder recorder = new Recorder();
+        assertEquals(text, Recorder.INDEX, IpAddressText.lookupIndex(recorder, ipType, text));
+        assertArrayEquals(text, expected, recorder.address);
+
+        recorder = new Recorder();
+        byte[] utf8 = ("1:" + text + ":1").getBytes(StandardCharsets.US_ASCII);
+        assertEquals(
+                text,
+                Recorder.INDEX,
+                IpAddressText.lookupIndex(recorder, ipType, utf8, 2, text.length()));
+        assertArrayEquals(text, expected, recorder.address);
+    }
+
+    private static void assertRejected(String text, TrieToFPAConverter.IP_TYPE ipType) {
+        Recorder recorder = new Recorder();
+        assertEquals(
+                text, IpAddressText.MALFORMED, IpAddressText.lookupIndex(recorder, ipType, text));
+        byte[] utf8 = ("1:" + text + ":1").getBytes(StandardCharsets.US_ASCII);
+        assertEquals(
+                text,
+                IpAddressText.MALFORMED,
+                IpAddressText.lookupIndex(recorder, ipType, utf8, 2, text.length()));
+        assertNull(text, recorder.address);
+    }
+
+    /** 记录被查询的地址 */
+    private static final class Recorder implements IpAddressText.IndexLookup {
+        static final int INDEX = 7;
+
+        byte[] address;
+
+        @Override
+        public int lookupIndex(int ipv4) {
+            address =
+                    new byte[] {
+                        (byte) (ipv4 >>> 24), (byte) (ipv4 >>> 16), (byte) (ipv4 >>> 8), (byte) ipv4
+                    };
+            return INDEX;
+        }
+
+        @Override
+        public int lookupIndex(long hi, long lo) {
+            address = new byte[16];
+            for (int i = 0; i < 8; i++) {
+                address[i] = (byte) (hi >>> (56 - i * 8));
+                address[8 + i] = (byte) (lo >>> (56 - i * 8));
+            }
+            return INDEX;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.github.abjfh.fpa.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/** 从 CSV 加载的树与 BitTrie 或逐个区间比较的查询结果一致 */
+public class MappedCsvLoaderTest {
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void ipv4PrefixesMatchBitTrie() throws IOException {
+        for (long seed = 1; seed <= 3; seed++) {
+            Random random = new Random(seed);
+            checkPrefixes(RandomPrefixes.ipv4(random, 3000, 16), random);
+        }
+    }
+
+    @Test
+    public void ipv6PrefixesMatchBitTrie() throws IOException {
+        for (long seed = 1; seed <= 3; seed++) {
+            Random random = new Random(seed);
+            checkPrefixes(RandomPrefixes.ipv6(random, 3000, 16), random);
+        }
+    }
+
+    @Test
+    public void ipv4RangesMatchBruteForce() throws IOException {
+        for (long seed = 1; seed <= 3; seed++) {
+            Random random = new Random(seed);
+            for (boolean adjacent : new boolean[] {false, true}) {
+                checkRanges(RandomRanges.generate(4, random, 200, adjacent), ',', random);
+            }
+        }
+    }
+
+    @Test
+    public void ipv6RangesMatchBruteForce() throws IOException {
+        for (long seed = 1; seed <= 3; seed++) {
+            Random random = new Random(seed);
+            for (boolean adjacent : new boolean[] {false, true}) {
+                checkRanges(RandomRanges.generate(16, random, 100, adjacent), ';', random);
+            }
+        }
+    }
+
+    @Test
+    public void edgeRangesMatchBruteForce() throws IOException {
+        BigInteger ipv4Max = BigInteger.ONE.shiftLeft(32).subtract(BigInteger.ONE);
+        BigInteger ipv6Max = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+        BigInteger carry = BigInteger.ONE.shiftLeft(64);
+        Random random = new Random(1);
+        RandomRanges[] cases = {
+            RandomRanges.of(4, BigInteger.ZERO, ipv4Max),
+            RandomRanges.of(4, BigInteger.ZERO, BigInteger.ZERO, ipv4Max, ipv4Max),
+            RandomRanges.of(16, BigInteger.ZERO, ipv6Max),
+            RandomRanges.of(16, BigInteger.ZERO, BigInteger.ZERO, ipv6Max, ipv6Max),
+            RandomRanges.of(
+                    16, carry.subtract(BigInteger.valueOf(16)), carry.add(BigInteger.valueOf(15))),
+        };
+        for (RandomRanges ranges : cases) {
+            checkRanges(ranges, ',', random);
+        }
+    }
+
+    @Test
+    public void otherFamilyLinesAreSkipped() throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(
+                file,
+                "10.0.0.0/8,a\n2001:db8::/32,b\n\n10.1.0.0/16,c\n::1,d"
+                        .getBytes(StandardCharsets.UTF_8));
+        MappedCsvLoader loader = new MappedCsvLoader(TrieToFPAConverter.IP_TYPE.IPV4);
+        FPATree<String> tree = loader.load(file);
+        assertEquals(2, loader.skippedLines());
+        assertEquals("a", tree.search(new byte[] {10, 2, 0, 0}));
+        assertEquals("c", tree.search(new byte[] {10, 1, 0, 0}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformedRangeIsRejected() throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, "10.0.0.9,10.0.0.1,a\n".getBytes(StandardCharsets.UTF_8));
+        new MappedCsvLoader(TrieToFPAConverter.IP_TYPE.IPV4).ranges(true).load(file);
+    }
+
+    /** 以打乱的顺序写入 CSV，交给加载器排序 */
+    private void checkPrefixes(RandomPrefixes prefixes, Random random) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < prefixes.keys.size(); i++) {
+            lines.add(
+                    InetAddress.getByAddress(prefixes.keys.get(i)).getHostAddress()
+                            + "/"
+                            + prefixes.lengths.get(i)
+                            + ","
+                            + prefixes.values.get(i));
+        }
+        Collections.shuffle(lines, random);
+        BitTrie<String> expected = new BitTrie<>();
+        for (String line : lines) {
+            String[] parts = line.split("[/,]");
+            expected.putExact(
+                    InetAddress.getByName(parts[0]).getAddress(),
+                    Integer.parseInt(parts[1]),
+                    parts[2]);
+        }
+        Path file = write(lines);
+        List<byte[]> probes = prefixes.probes(random, 5000);
+        for (boolean packed : new boolean[] {false, true}) {
+            FPATree<String> tree =
+                    new MappedCsvLoader(prefixes.ipType)
+                            .builder(FPATree.<String>Builder().packed(packed))
+                            .load(file);
+            RandomPrefixes.assertSameLookups(expected, tree, probes);
+        }
+    }
+
+    private void checkRanges(RandomRanges ranges, char separator, Random random)
+            throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < ranges.starts.size(); i++) {
+            lines.add(
+                    text(ranges.starts.get(i), ranges.addressBytes)
+                            + separator
+                            + text(ranges.ends.get(i), ranges.addressBytes)
+                            + separator
+                            + ranges.values.get(i));
+        }
+        TrieToFPAConverter.IP_TYPE ipType =
+                ranges.addressBytes == 4
+                        ? TrieToFPAConverter.IP_TYPE.IPV4
+                        : TrieToFPAConverter.IP_TYPE.IPV6;
+        FPATree<String> tree =
+                new MappedCsvLoader(ipType).separator(separator).ranges(true).load(write(lines));
+        ranges.assertMatches(tree, ranges.probes(random, 2000));
+    }
+
+    /** IPv4 为点分十进制，IPv6 为不省略零的完整形式 */
+    private static String text(BigInteger address, int addressBytes) throws IOException {
+        byte[] bytes = RandomRanges.toBytes(address, addressBytes);
+        if (addressBytes == 4) {
+            return InetAddress.getByAddress(bytes).getHostAddress();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 16; i += 2) {
+            if (i > 0) {
+                sb.append(':');
+            }
+            sb.append(String.format("%02x%02x", bytes[i], bytes[i + 1]));
+        }
+        return sb.toString();
+    }
+
+    private Path write(List<String> lines) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, lines, StandardCharsets.UTF_8);
+        return file;
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.abjfh.fpa.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/** 合并后的树每一行都与各数据集单独的 BitTrie 查询结果一致 */
+public class MergedFPATreeTest {
+
+    @Test
+    public void ipv4RowsMatchEachBitTrie() {
+        for (long seed = 1; seed <= 5; seed++) {
+            Random random = new Random(seed);
+            RandomPrefixes first = RandomPrefixes.ipv4(random, 2000, 16);
+            check(
+                    TrieToFPAConverter.IP_TYPE.IPV4,
+                    Arrays.asList(
+                            first,
+                            first.mutate(random, 500, 16),
+                            RandomPrefixes.ipv4(random, 1000, 8)),
+                    random);
+        }
+    }
+
+    @Test
+    public void ipv6RowsMatchEachBitTrie() {
+        for (long seed = 1; seed <= 5; seed++) {
+            Random random = new Random(seed);
+            RandomPrefixes first = RandomPrefixes.ipv6(random, 2000, 16);
+            check(
+                    TrieToFPAConverter.IP_TYPE.IPV6,
+                    Arrays.asList(
+                            first,
+                            first.mutate(random, 500, 16),
+                            RandomPrefixes.ipv6(random, 1000, 8)),
+                    random);
+        }
+    }
+
+    @Test
+    public void singleDatasetMatchesBitTrie() {
+        Random random = new Random(9);
+        check(
+                TrieToFPAConverter.IP_TYPE.IPV4,
+                Arrays.asList(RandomPrefixes.ipv4(random, 2000, 16)),
+                random);
+    }
+
+    private static void check(
+            TrieToFPAConverter.IP_TYPE ipType, List<RandomPrefixes> datasets, Random random) {
+        List<BitTrie<String>> tries = new ArrayList<>();
+        List<byte[]> probes = new ArrayList<>();
+        for (RandomPrefixes dataset : datasets) {
+            tries.add(dataset.trie());
+            probes.addAll(dataset.probes(random, 1000));
+        }
+        List<FPATree.Builder<Integer>> options =
+                Arrays.asList(
+                        FPATree.<Integer>Builder(),
+                        FPATree.<Integer>Builder().packed(true),
+                        FPATree.<Integer>Builder().maxRangeRuns(0).skipNodes(false));
+        for (FPATree.Builder<Integer> option : options) {
+            MergedFPATree.Builder builder = new MergedFPATree.Builder(ipType, option);
+            for (BitTrie<String> trie : tries) {
+                builder.add(trie);
+            }
+            assertRowsMatch(tries, builder.build(), probes);
+        }
+    }
+
+    private static void assertRowsMatch(
+            List<BitTrie<String>> tries, MergedFPATree merged, List<byte[]> probes) {
+        assertEquals(tries.size(), merged.datasetCount());
+        Object[] out = new Object[tries.size()];
+        for (byte[] probe : probes) {
+            String address = Arrays.toString(probe);
+            int row = merged.lookupRow(probe);
+            Object[] values = merged.search(probe);
+            if (probe.length == 4) {
+                assertEquals(address, row, merged.lookupRow(RandomPrefixes.toInt(probe, 0)));
+                merged.search(RandomPrefixes.toInt(probe, 0), out);
+            } else {
+                long hi =
+                        (long) RandomPrefixes.toInt(probe, 0) << 32
+                                | RandomPrefixes.toInt(probe, 4) & 0xFFFFFFFFL;
+                long lo =
+                        (long) RandomPrefixes.toInt(probe, 8) << 32
+                                | RandomPrefixes.toInt(probe, 12) & 0xFFFFFFFFL;
+                assertEquals(address, row, merged.lookupRow(hi, lo));
+                merged.search(hi, lo, out);
+            }
+            for (int i = 0; i < tries.size(); i++) {
+                String expected = tries.get(i).search(probe);
+                assertEquals(address, expected, merged.value(row, i));
+                assertEquals(address, expected, values[i]);
+                assertEquals(address, expected, out[i]);
+                assertEquals(address, expected == null, merged.valueIndex(row, i) == 0);
+            }
+        }
+    }
+}
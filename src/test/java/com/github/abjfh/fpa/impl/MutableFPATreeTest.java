@@ -0,0 +1,204 @@
+package com.github.abjfh.fpa.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 增量更新后的每个版本都与同样更新的 BitTrie 查询结果一致，旧版本不受之后的更新影响，失败的更新不改变任何状态
+ *
+ * <p>随机更新的次数足以让 chunk 区多次扩容，并使被替换的 chunk 超过存活数据量而触发整体重建
+ */
+public class MutableFPATreeTest {
+
+    @Test
+    public void ipv4UpdatesMatchBitTrie() {
+        for (long seed = 1; seed <= 2; seed++) {
+            Random random = new Random(seed);
+            checkUpdates(RandomPrefixes.ipv4(random, 500, 16), random);
+        }
+    }
+
+    @Test
+    public void ipv6UpdatesMatchBitTrie() {
+        for (long seed = 1; seed <= 2; seed++) {
+            Random random = new Random(seed);
+            checkUpdates(RandomPrefixes.ipv6(random, 500, 16), random);
+        }
+    }
+
+    @Test
+    public void failedPutLeavesTreeUnchanged() {
+        Random random = new Random(5);
+        RandomPrefixes prefixes = RandomPrefixes.ipv4(random, 500, 16);
+        BitTrie<Object> expected = objectTrie(prefixes);
+        MutableFPATree<Object> tree =
+                new MutableFPATree<>(TrieToFPAConverter.IP_TYPE.IPV4, objectTrie(prefixes));
+        List<byte[]> probes = prefixes.probes(random, 2000);
+
+        // 新值写入值字典时抛出异常
+        byte[] key = prefixes.keys.get(0);
+        int length = prefixes.lengths.get(0);
+        assertFailedUpdate(expected, tree, probes, () -> tree.put(key, length, new Flaky(true)));
+        byte[] other = {(byte) 203, 0, 113, 0};
+        assertFailedUpdate(expected, tree, probes, () -> tree.put(other, 24, new Flaky(true)));
+
+        // 失败后写者状态已恢复，之后的更新正常发布
+        tree.put(other, 24, "after");
+        expected.putExact(other, 24, "after");
+        RandomPrefixes.assertSameLookups(expected, tree.snapshot(), probes);
+    }
+
+    @Test
+    public void failedRemoveLeavesTreeUnchanged() {
+        Random random = new Random(6);
+        RandomPrefixes prefixes = RandomPrefixes.ipv6(random, 500, 16);
+        BitTrie<Object> expected = objectTrie(prefixes);
+        MutableFPATree<Object> tree =
+                new MutableFPATree<>(TrieToFPAConverter.IP_TYPE.IPV6, objectTrie(prefixes));
+        List<byte[]> probes = prefixes.probes(random, 2000);
+
+        // 删除更具体的前缀时，覆盖前缀的值在重新编码被覆盖的子树时抛出异常
+        byte[] parent = new byte[16];
+        parent[0] = 0x20;
+        parent[1] = 0x01;
+        byte[] child = parent.clone();
+        child[4] = 0x12;
+        Flaky parentValue = new Flaky(false);
+        tree.put(parent, 16, parentValue);
+        tree.put(child, 40, "child");
+        expected.putExact(parent, 16, parentValue);
+        expected.putExact(child, 40, "child");
+        probes.add(child);
+        probes.add(parent);
+
+        parentValue.failing = true;
+        assertFailedUpdate(expected, tree, probes, () -> tree.remove(child, 40));
+        assertFailedUpdate(expected, tree, probes, () -> tree.put(child, 40, new Flaky(true)));
+
+        parentValue.failing = false;
+        assertEquals("child", tree.remove(child, 40));
+        expected.remove(child, 40);
+        assertEquals(parentValue, tree.search(child));
+        RandomPrefixes.assertSameLookups(expected, tree.snapshot(), probes);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullValueIsRejected() {
+        new MutableFPATree<String>(TrieToFPAConverter.IP_TYPE.IPV4, new BitTrie<>())
+                .put(new byte[4], 8, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void otherFamilyKeyIsRejected() {
+        new MutableFPATree<String>(TrieToFPAConverter.IP_TYPE.IPV4, new BitTrie<>())
+                .put(new byte[16], 8, "v");
+    }
+
+    /**
+     * 对 MutableFPATree 与 BitTrie 做相同的随机 put / remove，定期比较当前版本并保存快照，最后确认各快照的结果未变
+     */
+    private static void checkUpdates(RandomPrefixes initial, Random random) {
+        // 候选前缀包括已有前缀与其下更长的前缀
+        RandomPrefixes candidates = initial.mutate(random, 1000, 16);
+        List<byte[]> probes = candidates.probes(random, 2000);
+        BitTrie<String> expected = initial.trie();
+        MutableFPATree<String> tree = new MutableFPATree<>(initial.ipType, initial.trie());
+
+        List<FPATree<String>> snapshots = new ArrayList<>();
+        List<String[]> snapshotResults = new ArrayList<>();
+        for (int step = 1; step <= 2000; step++) {
+            int index = random.nextInt(candidates.keys.size());
+            byte[] key = candidates.keys.get(index);
+            int length = candidates.lengths.get(index);
+            long version = tree.version();
+            if (random.nextInt(3) == 0) {
+                String removed = expected.remove(key, length);
+                assertEquals(removed, tree.remove(key, length));
+                assertEquals(removed == null ? version : version + 1, tree.version());
+            } else {
+                String value = "u" + random.nextInt(64);
+                expected.putExact(key, length, value);
+                tree.put(key, length, value);
+                assertEquals(version + 1, tree.version());
+            }
+            if (step % 200 == 0) {
+                FPATree<String> snapshot = tree.snapshot();
+                RandomPrefixes.assertSameLookups(expected, snapshot, probes);
+                String[] results = new String[probes.size()];
+                for (int i = 0; i < results.length; i++) {
+                    results[i] = expected.search(probes.get(i));
+                    assertEquals(results[i], tree.search(probes.get(i)));
+                }
+                snapshots.add(snapshot);
+                snapshotResults.add(results);
+            }
+        }
+        for (int s = 0; s < snapshots.size(); s++) {
+            for (int i = 0; i < probes.size(); i++) {
+                assertEquals(
+                        "snapshot " + s + " " + Arrays.toString(probes.get(i)),
+                        snapshotResults.get(s)[i],
+                        snapshots.get(s).search(probes.get(i)));
+            }
+        }
+    }
+
+    /** 更新抛出异常后，版本号与已发布的树不变，查询结果仍与 expected 一致 */
+    private static void assertFailedUpdate(
+            BitTrie<Object> expected,
+            MutableFPATree<Object> tree,
+            List<byte[]> probes,
+            Runnable update) {
+        long version = tree.version();
+        FPATree<Object> published = tree.snapshot();
+        try {
+            update.run();
+            fail("update should have failed");
+        } catch (IllegalStateException e) {
+            // 预期的失败
+        }
+        assertEquals(version, tree.version());
+        assertSame(published, tree.snapshot());
+        for (byte[] probe : probes) {
+            assertEquals(Arrays.toString(probe), expected.search(probe), tree.search(probe));
+        }
+    }
+
+    private static BitTrie<Object> objectTrie(RandomPrefixes prefixes) {
+        BitTrie<Object> trie = new BitTrie<>();
+        for (int i = 0; i < prefixes.keys.size(); i++) {
+            trie.putExact(prefixes.keys.get(i), prefixes.lengths.get(i), prefixes.values.get(i));
+        }
+        return trie;
+    }
+
+    /** failing 为 true 时 hashCode 抛出异常，使写入或查找值字典失败 */
+    private static final class Flaky {
+        boolean failing;
+
+        Flaky(boolean failing) {
+            this.failing = failing;
+        }
+
+        @Override
+        public int hashCode() {
+            if (failing) {
+                throw new IllegalStateException("hashCode failed");
+            }
+            return 1;
+        }
+
+        @Override
+        public String toString() {
+            return "flaky";
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.github.abjfh.fpa.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 测试用的随机前缀集合
+ *
+ * <p>前缀集中在少数几个网段下，并带有少量随机散布的前缀，使各层既有稀疏的 chunk，也有长的单子节点链和连续的区间
+ */
+final class RandomPrefixes {
+    final TrieToFPAConverter.IP_TYPE ipType;
+    final List<byte[]> keys = new ArrayList<>();
+    final List<Integer> lengths = new ArrayList<>();
+    final List<String> values = new ArrayList<>();
+
+    private RandomPrefixes(TrieToFPAConverter.IP_TYPE ipType) {
+        this.ipType = ipType;
+    }
+
+    /**
+     * @param random 随机数来源
+     * @param count 前缀个数
+     * @param valueCount 不同值的个数
+     */
+    static RandomPrefixes ipv4(Random random, int count, int valueCount) {
+        return generate(TrieToFPAConverter.IP_TYPE.IPV4, random, count, valueCount, 12, 8);
+    }
+
+    /**
+     * @param random 随机数来源
+     * @param count 前缀个数
+     * @param valueCount 不同值的个数
+     */
+    static RandomPrefixes ipv6(Random random, int count, int valueCount) {
+        return generate(TrieToFPAConverter.IP_TYPE.IPV6, random, count, valueCount, 32, 16);
+    }
+
+    private static RandomPrefixes generate(
+            TrieToFPAConverter.IP_TYPE ipType,
+            Random random,
+            int count,
+            int valueCount,
+            int clusterBits,
+            int minLength) {
+        RandomPrefixes prefixes = new RandomPrefixes(ipType);
+        int addressBytes = ipType == TrieToFPAConverter.IP_TYPE.IPV4 ? 4 : 16;
+        byte[][] clusters = new byte[4][];
+        for (int i = 0; i < clusters.length; i++) {
+            clusters[i] = randomBytes(random, addressBytes);
+        }
+        for (int i = 0; i < count; i++) {
+            byte[] key = randomBytes(random, addressBytes);
+            // 大部分前缀落在几个网段内
+            if (random.nextInt(8) != 0) {
+                copyBits(clusters[random.nextInt(clusters.length)], key, clusterBits);
+            }
+            int length = minLength + random.nextInt(addressBytes * 8 - minLength + 1);
+            if (random.nextInt(4) == 0) {
+                // 常见的整字节长度
+                length = Math.max(minLength, length & -8);
+            }
+            maskTo(key, length);
+            prefixes.keys.add(key);
+            prefixes.lengths.add(length);
+            prefixes.values.add("v" + random.nextInt(valueCount));
+        }
+        return prefixes;
+    }
+
+    /**
+     * 复制本集合并随机修改：删除前缀、修改值，或在已有前缀下加入更长的前缀
+     *
+     * @param random 随机数来源
+     * @param changes 修改次数
+     * @param valueCount 不同值的个数
+     * @return 修改后的新集合，本集合不变
+     */
+    RandomPrefixes mutate(Random random, int changes, int valueCount) {
+        RandomPrefixes copy = new RandomPrefixes(ipType);
+        copy.keys.addAll(keys);
+        copy.lengths.addAll(lengths);
+        copy.values.addAll(values);
+        for (int i = 0; i < changes && !copy.keys.isEmpty(); i++) {
+            int index = random.nextInt(copy.keys.size());
+            switch (random.nextInt(3)) {
+                case 0:
+                    copy.keys.remove(index);
+                    copy.lengths.remove(index);
+                    copy.values.remove(index);
+                    break;
+                case 1:
+                    copy.values.set(index, "v" + random.nextInt(valueCount));
+                    break;
+                default:
+                    byte[] key = randomBytes(random, copy.keys.get(index).length);
+                    int parentLength = copy.lengths.get(index);
+                    int length =
+                            parentLength + random.nextInt(key.length * 8 - parentLength + 1);
+                    copyBits(copy.keys.get(index), key, parentLength);
+                    maskTo(key, length);
+                    copy.keys.add(key);
+                    copy.lengths.add(length);
+                    copy.values.add("v" + random.nextInt(valueCount));
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * @return 以 {@link BitTrie#putExact(byte[], int, Object)} 写入全部前缀的新 BitTrie，不压缩
+     */
+    BitTrie<String> trie() {
+        BitTrie<String> trie = new BitTrie<>();
+        for (int i = 0; i < keys.size(); i++) {
+            trie.putExact(keys.get(i), lengths.get(i), values.get(i));
+        }
+        return trie;
+    }
+
+    /**
+     * 由 FPATree.Builder 按本集合构建
+     *
+     * @param builder 提供构建参数的 Builder
+     * @return 构建好的树
+     */
+    FPATree<String> build(FPATree.Builder<String> builder) {
+        TrieToFPAConverter converter =
+                ipType == TrieToFPAConverter.IP_TYPE.IPV4
+                        ? TrieToFPAConverter.IPV4_CONVERTER
+                        : TrieToFPAConverter.IPV6_CONVERTER;
+        return builder.fpa(converter.convert(trie())).build();
+    }
+
+    /**
+     * 查询用的地址：每个前缀的首地址、末地址、前缀内的一个随机地址，以及 randomCount 个完全随机的地址
+     *
+     * @param random 随机数来源
+     * @param randomCount 完全随机的地址个数
+     * @return 地址
+     */
+    List<byte[]> probes(Random random, int randomCount) {
+        List<byte[]> probes = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] key = keys.get(i);
+            int length = lengths.get(i);
+            probes.add(key.clone());
+            byte[] last = key.clone();
+            byte[] inside = randomBytes(random, key.length);
+            for (int bit = length; bit < key.length * 8; bit++) {
+                last[bit >>> 3] |= (byte) (0x80 >>> (bit & 7));
+            }
+            copyBits(key, inside, length);
+            probes.add(last);
+            probes.add(inside);
+        }
+        int addressBytes = keys.isEmpty() ? 4 : keys.get(0).length;
+        for (int i = 0; i < randomCount; i++) {
+            probes.add(randomBytes(random, addressBytes));
+        }
+        return probes;
+    }
+
+    /** 断言 tree 在各个地址上的 byte[] 与原始类型查询均与 expected 一致 */
+    static <V> void assertSameLookups(BitTrie<V> expected, FPATree<V> tree, List<byte[]> probes) {
+        for (byte[] probe : probes) {
+            V value = expected.search(probe);
+            String address = Arrays.toString(probe);
+            assertEquals(address, value, tree.search(probe));
+            if (probe.length == 4) {
+                assertEquals(address, value, tree.search(toInt(probe, 0)));
+            } else {
+                long hi = (long) toInt(probe, 0) << 32 | toInt(probe, 4) & 0xFFFFFFFFL;
+                long lo = (long) toInt(probe, 8) << 32 | toInt(probe, 12) & 0xFFFFFFFFL;
+                assertEquals(address, value, tree.search(hi, lo));
+            }
+        }
+    }
+
+    static int toInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24
+                | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8
+                | bytes[offset + 3] & 0xFF;
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /** 将 from 的前 bits 位复制到 to */
+    private static void copyBits(byte[] from, byte[] to, int bits) {
+        for (int bit = 0; bit < bits; bit++) {
+            int mask = 0x80 >>> (bit & 7);
+            to[bit >>> 3] = (byte) ((to[bit >>> 3] & ~mask) | (from[bit >>> 3] & mask));
+        }
+    }
+
+    /** 清除前 length 位之后的所有位 */
+    private static void maskTo(byte[] key, int length) {
+        for (int bit = length; bit < key.length * 8; bit++) {
+            key[bit >>> 3] &= (byte) ~(0x80 >>> (bit & 7));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.github.abjfh.fpa.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * 测试用的随机地址区间：按地址升序、互不重叠，查询结果以逐个区间比较的方式得到
+ *
+ * <p>地址以 BigInteger 表示，IPv4 地址取值范围为 [0, 2^32)
+ */
+final class RandomRanges {
+    final int addressBytes;
+    final List<BigInteger> starts = new ArrayList<>();
+    final List<BigInteger> ends = new ArrayList<>();
+    final List<String> values = new ArrayList<>();
+
+    private RandomRanges(int addressBytes) {
+        this.addressBytes = addressBytes;
+    }
+
+    /**
+     * @param addressBytes 4 或 16
+     * @param random 随机数来源
+     * @param count 区间个数
+     * @param adjacent 为 true 时相邻区间首尾相接，且第一个区间从 0 开始、最后一个区间到全 1 地址结束
+     */
+    static RandomRanges generate(int addressBytes, Random random, int count, boolean adjacent) {
+        RandomRanges ranges = new RandomRanges(addressBytes);
+        BigInteger max = BigInteger.ONE.shiftLeft(addressBytes * 8).subtract(BigInteger.ONE);
+        TreeSet<BigInteger> bounds = new TreeSet<>();
+        while (bounds.size() < count * 2) {
+            BigInteger bound = new BigInteger(addressBytes * 8, random);
+            // 一部分边界落在低 64 位进位附近
+            if (addressBytes == 16 && random.nextInt(4) == 0) {
+                BigInteger carry = bound.shiftRight(64).shiftLeft(64);
+                bound = carry.add(BigInteger.valueOf(random.nextInt(64) - 32)).and(max);
+            }
+            bounds.add(bound);
+        }
+        List<BigInteger> sorted = new ArrayList<>(bounds);
+        if (adjacent) {
+            sorted.set(0, BigInteger.ZERO);
+            for (int i = 0; i < sorted.size(); i++) {
+                BigInteger end =
+                        i + 1 < sorted.size()
+                                ? sorted.get(i + 1).subtract(BigInteger.ONE)
+                                : max;
+                ranges.add(sorted.get(i), end, "r" + random.nextInt(8));
+            }
+        } else {
+            for (int i = 0; i < sorted.size(); i += 2) {
+                ranges.add(sorted.get(i), sorted.get(i + 1), "r" + random.nextInt(8));
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * @param addressBytes 4 或 16
+     * @param bounds 依次为各区间的起始、结束地址
+     */
+    static RandomRanges of(int addressBytes, BigInteger... bounds) {
+        RandomRanges ranges = new RandomRanges(addressBytes);
+        for (int i = 0; i < bounds.length; i += 2) {
+            ranges.add(bounds[i], bounds[i + 1], "r" + i / 2);
+        }
+        return ranges;
+    }
+
+    private void add(BigInteger start, BigInteger end, String value) {
+        starts.add(start);
+        ends.add(end);
+        values.add(value);
+    }
+
+    /** 包含 address 的区间的值，不在任何区间内时为 null */
+    String expected(BigInteger address) {
+        for (int i = 0; i < starts.size(); i++) {
+            if (starts.get(i).compareTo(address) <= 0 && ends.get(i).compareTo(address) >= 0) {
+                return values.get(i);
+            }
+        }
+        return null;
+    }
+
+    /** 每个区间的首尾地址及其前后相邻的地址、区间内的一个随机地址，以及 randomCount 个随机地址 */
+    List<BigInteger> probes(Random random, int randomCount) {
+        BigInteger max = BigInteger.ONE.shiftLeft(addressBytes * 8).subtract(BigInteger.ONE);
+        List<BigInteger> probes = new ArrayList<>();
+        for (int i = 0; i < starts.size(); i++) {
+            BigInteger start = starts.get(i);
+            BigInteger end = ends.get(i);
+            probes.add(start);
+            probes.add(end);
+            if (start.signum() > 0) {
+                probes.add(start.subtract(BigInteger.ONE));
+            }
+            if (end.compareTo(max) < 0) {
+                probes.add(end.add(BigInteger.ONE));
+            }
+            BigInteger span = end.subtract(start).add(BigInteger.ONE);
+            probes.add(start.add(new BigInteger(span.bitLength() + 8, random).mod(span)));
+        }
+        for (int i = 0; i < randomCount; i++) {
+            probes.add(new BigInteger(addressBytes * 8, random));
+        }
+        return probes;
+    }
+
+    /** 断言 tree 在各个地址上的查询结果与逐个区间比较的结果一致 */
+    void assertMatches(FPATree<String> tree, List<BigInteger> probes) {
+        for (BigInteger probe : probes) {
+            byte[] bytes = toBytes(probe, addressBytes);
+            String expected = expected(probe);
+            assertEquals(probe.toString(16), expected, tree.search(bytes));
+            if (addressBytes == 4) {
+                assertEquals(probe.toString(16), expected, tree.search(probe.intValue()));
+            } else {
+                assertEquals(probe.toString(16), expected, tree.search(hi(probe), lo(probe)));
+            }
+        }
+    }
+
+    static byte[] toBytes(BigInteger address, int addressBytes) {
+        byte[] raw = address.toByteArray();
+        byte[] bytes = new byte[addressBytes];
+        int copy = Math.min(raw.length, addressBytes);
+        System.arraycopy(raw, raw.length - copy, bytes, addressBytes - copy, copy);
+        return bytes;
+    }
+
+    /** 由高、低 64 位组成的无符号地址 */
+    static BigInteger address(long hi, long lo) {
+        return new BigInteger(Long.toUnsignedString(hi))
+                .shiftLeft(64)
+                .or(new BigInteger(Long.toUnsignedString(lo)));
+    }
+
+    static long hi(BigInteger address) {
+        return address.shiftRight(64).longValue();
+    }
+
+    static long lo(BigInteger address) {
+        return address.longValue();
+    }
+}
@@ -0,0 +1,58 @@
+package com.github.abjfh.fpa.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+/** 区间 chunk 编码的树与 BitTrie 的查询结果一致 */
+public class RangeChunkTest {
+
+    @Test
+    public void ipv4MatchesBitTrie() {
+        for (long seed = 1; seed <= 5; seed++) {
+            Random random = new Random(seed);
+            check(RandomPrefixes.ipv4(random, 3000, 16), random);
+        }
+    }
+
+    @Test
+    public void ipv6MatchesBitTrie() {
+        for (long seed = 1; seed <= 5; seed++) {
+            Random random = new Random(seed);
+            check(RandomPrefixes.ipv6(random, 3000, 16), random);
+        }
+    }
+
+    @Test
+    public void disabledRangeChunksMatchBitTrie() {
+        Random random = new Random(42);
+        RandomPrefixes prefixes = RandomPrefixes.ipv4(random, 3000, 16);
+        FPATree<String> tree = prefixes.build(FPATree.<String>Builder().maxRangeRuns(0));
+        assertEquals(0, tree.memoryStats().layer("range").count());
+        RandomPrefixes.assertSameLookups(prefixes.trie(), tree, prefixes.probes(random, 5000));
+    }
+
+    private static void check(RandomPrefixes prefixes, Random random) {
+        BitTrie<String> expected = prefixes.trie();
+        List<byte[]> probes = prefixes.probes(random, 5000);
+        for (boolean packed : new boolean[] {false, true}) {
+            // 探测代价为 0 时只比较字节数，区间 chunk 最常被选中
+            for (int probeWeight : new int[] {0, FPATree.DEFAULT_PROBE_WEIGHT}) {
+                FPATree<String> tree =
+                        prefixes.build(
+                                FPATree.<String>Builder()
+                                        .packed(packed)
+                                        .probeWeight(probeWeight)
+                                        .maxRangeRuns(256));
+                if (probeWeight == 0) {
+                    assertTrue(tree.memoryStats().layer("range").count() > 0);
+                }
+                RandomPrefixes.assertSameLookups(expected, tree, probes);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.github.abjfh.fpa.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+/** 带跳跃节点的树与 BitTrie 的查询结果一致 */
+public class SkipNodeTest {
+
+    @Test
+    public void ipv6MatchesBitTrie() {
+        for (long seed = 1; seed <= 5; seed++) {
+            Random random = new Random(seed);
+            check(RandomPrefixes.ipv6(random, 2000, 16), random);
+        }
+    }
+
+    @Test
+    public void ipv4MatchesBitTrie() {
+        for (long seed = 1; seed <= 5; seed++) {
+            Random random = new Random(seed);
+            check(RandomPrefixes.ipv4(random, 2000, 16), random);
+        }
+    }
+
+    @Test
+    public void sparseIpv6HostRoutesMatchBitTrie() {
+        // 少量 /128 前缀：根之下几乎全是单子节点链，跳跃节点合并的层数最多
+        Random random = new Random(7);
+        RandomPrefixes prefixes = RandomPrefixes.ipv6(random, 50, 4);
+        for (int i = 0; i < prefixes.lengths.size(); i++) {
+            byte[] key = prefixes.keys.get(i);
+            random.nextBytes(key);
+            prefixes.lengths.set(i, 128);
+        }
+        check(prefixes, random);
+    }
+
+    @Test
+    public void disabledSkipNodesMatchBitTrie() {
+        Random random = new Random(42);
+        RandomPrefixes prefixes = RandomPrefixes.ipv6(random, 2000, 16);
+        FPATree<String> tree = prefixes.build(FPATree.<String>Builder().skipNodes(false));
+        assertEquals(0, tree.memoryStats().layer("skip").count());
+        RandomPrefixes.assertSameLookups(prefixes.trie(), tree, prefixes.probes(random, 5000));
+    }
+
+    private static void check(RandomPrefixes prefixes, Random random) {
+        BitTrie<String> expected = prefixes.trie();
+        List<byte[]> probes = prefixes.probes(random, 5000);
+        for (boolean packed : new boolean[] {false, true}) {
+            FPATree<String> tree =
+                    prefixes.build(FPATree.<String>Builder().packed(packed).skipNodes(true));
+            if (prefixes.ipType == TrieToFPAConverter.IP_TYPE.IPV6) {
+                assertTrue(tree.memoryStats().layer("skip").count() > 0);
+            }
+            RandomPrefixes.assertSameLookups(expected, tree, probes);
+        }
+    }
+}
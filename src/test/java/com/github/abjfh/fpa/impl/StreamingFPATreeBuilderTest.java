@@ -0,0 +1,213 @@
+package com.github.abjfh.fpa.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/** 流式构建的树与 BitTrie 或逐个区间比较的查询结果一致 */
+public class StreamingFPATreeBuilderTest {
+
+    @Test
+    public void ipv4PrefixesMatchBitTrie() {
+        for (long seed = 1; seed <= 5; seed++) {
+            Random random = new Random(seed);
+            checkPrefixes(RandomPrefixes.ipv4(random, 3000, 16), random);
+        }
+    }
+
+    @Test
+    public void ipv6PrefixesMatchBitTrie() {
+        for (long seed = 1; seed <= 5; seed++) {
+            Random random = new Random(seed);
+            checkPrefixes(RandomPrefixes.ipv6(random, 3000, 16), random);
+        }
+    }
+
+    @Test
+    public void repeatedPrefixKeepsLastValue() {
+        Random random = new Random(8);
+        RandomPrefixes prefixes = RandomPrefixes.ipv4(random, 500, 16);
+        // 同一前缀再次出现，值不同
+        RandomPrefixes repeated = prefixes.mutate(random, 0, 16);
+        for (int i = 0; i < 100; i++) {
+            int index = random.nextInt(prefixes.keys.size());
+            repeated.keys.add(prefixes.keys.get(index));
+            repeated.lengths.add(prefixes.lengths.get(index));
+            repeated.values.add("again" + i);
+        }
+        checkPrefixes(repeated, random);
+    }
+
+    @Test
+    public void ipv4RangesMatchBruteForce() {
+        for (long seed = 1; seed <= 5; seed++) {
+            Random random = new Random(seed);
+            for (boolean adjacent : new boolean[] {false, true}) {
+                checkRanges(RandomRanges.generate(4, random, 200, adjacent), random);
+            }
+        }
+    }
+
+    @Test
+    public void ipv6RangesMatchBruteForce() {
+        for (long seed = 1; seed <= 5; seed++) {
+            Random random = new Random(seed);
+            for (boolean adjacent : new boolean[] {false, true}) {
+                checkRanges(RandomRanges.generate(16, random, 100, adjacent), random);
+            }
+        }
+    }
+
+    @Test
+    public void edgeRangesMatchBruteForce() {
+        BigInteger ipv4Max = BigInteger.ONE.shiftLeft(32).subtract(BigInteger.ONE);
+        BigInteger ipv6Max = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+        BigInteger carry = BigInteger.ONE.shiftLeft(64);
+        BigInteger signBit = BigInteger.ONE.shiftLeft(63);
+        Random random = new Random(1);
+        RandomRanges[] cases = {
+            RandomRanges.of(4, BigInteger.ZERO, ipv4Max),
+            RandomRanges.of(4, BigInteger.ZERO, BigInteger.ZERO, ipv4Max, ipv4Max),
+            RandomRanges.of(4, BigInteger.ONE, ipv4Max.subtract(BigInteger.ONE)),
+            RandomRanges.of(4, big(0x7FFFFFF0L), big(0x8000000FL)),
+            RandomRanges.of(16, BigInteger.ZERO, ipv6Max),
+            RandomRanges.of(16, BigInteger.ZERO, BigInteger.ZERO, ipv6Max, ipv6Max),
+            RandomRanges.of(16, BigInteger.ONE, ipv6Max.subtract(BigInteger.ONE)),
+            // 低 64 位进位
+            RandomRanges.of(16, carry.subtract(big(16)), carry.add(big(15))),
+            RandomRanges.of(16, carry.subtract(BigInteger.ONE), carry),
+            RandomRanges.of(16, BigInteger.ZERO, carry.subtract(BigInteger.ONE)),
+            RandomRanges.of(16, carry, ipv6Max),
+            // 高 64 位的符号位与低 64 位的符号位
+            RandomRanges.of(16, signBit.subtract(BigInteger.ONE), signBit),
+            RandomRanges.of(
+                    16, signBit.shiftLeft(64).subtract(big(3)), signBit.shiftLeft(64).add(big(3))),
+        };
+        for (RandomRanges ranges : cases) {
+            checkRanges(ranges, random);
+        }
+    }
+
+    @Test
+    public void splitRangeEmitsMinimalAlignedBlocks() {
+        Random random = new Random(4);
+        for (int addressBytes : new int[] {4, 16}) {
+            for (boolean adjacent : new boolean[] {false, true}) {
+                RandomRanges ranges = RandomRanges.generate(addressBytes, random, 200, adjacent);
+                for (int i = 0; i < ranges.starts.size(); i++) {
+                    checkSplit(addressBytes, ranges.starts.get(i), ranges.ends.get(i));
+                }
+            }
+        }
+        BigInteger carry = BigInteger.ONE.shiftLeft(64);
+        checkSplit(16, carry.subtract(big(16)), carry.add(big(15)));
+        checkSplit(16, BigInteger.ZERO, BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE));
+        checkSplit(4, BigInteger.ZERO, BigInteger.ONE.shiftLeft(32).subtract(BigInteger.ONE));
+    }
+
+    /** splitRange 的输出与按 BigInteger 逐块贪心取最大对齐块的结果相同 */
+    private static void checkSplit(int addressBytes, BigInteger start, BigInteger end) {
+        int addressBits = addressBytes * 8;
+        List<String> expected = new ArrayList<>();
+        BigInteger next = start;
+        while (next.compareTo(end) <= 0) {
+            int blockBits = next.signum() == 0 ? addressBits : next.getLowestSetBit();
+            while (next.add(BigInteger.ONE.shiftLeft(blockBits)).compareTo(end.add(BigInteger.ONE)) > 0) {
+                blockBits--;
+            }
+            expected.add(next.toString(16) + "/" + (addressBits - blockBits));
+            next = next.add(BigInteger.ONE.shiftLeft(blockBits));
+        }
+
+        List<String> actual = new ArrayList<>();
+        StreamingFPATreeBuilder.splitRange(
+                RandomRanges.hi(start),
+                RandomRanges.lo(start),
+                RandomRanges.hi(end),
+                RandomRanges.lo(end),
+                addressBits,
+                (hi, lo, prefixLength) ->
+                        actual.add(RandomRanges.address(hi, lo).toString(16) + "/" + prefixLength));
+        assertEquals(start.toString(16) + "-" + end.toString(16), expected, actual);
+    }
+
+    /** 分别经 byte[] 与基本类型两种 addRange 构建，结果均与逐个区间比较一致 */
+    private static void checkRanges(RandomRanges ranges, Random random) {
+        TrieToFPAConverter.IP_TYPE ipType =
+                ranges.addressBytes == 4
+                        ? TrieToFPAConverter.IP_TYPE.IPV4
+                        : TrieToFPAConverter.IP_TYPE.IPV6;
+        StreamingFPATreeBuilder<String> bytes = new StreamingFPATreeBuilder<>(ipType);
+        StreamingFPATreeBuilder<String> primitive = new StreamingFPATreeBuilder<>(ipType);
+        for (int i = 0; i < ranges.starts.size(); i++) {
+            BigInteger start = ranges.starts.get(i);
+            BigInteger end = ranges.ends.get(i);
+            String value = ranges.values.get(i);
+            bytes.addRange(
+                    RandomRanges.toBytes(start, ranges.addressBytes),
+                    RandomRanges.toBytes(end, ranges.addressBytes),
+                    value);
+            if (ranges.addressBytes == 4) {
+                primitive.addRange(start.intValue(), end.intValue(), value);
+            } else {
+                primitive.addRange(
+                        RandomRanges.hi(start),
+                        RandomRanges.lo(start),
+                        RandomRanges.hi(end),
+                        RandomRanges.lo(end),
+                        value);
+            }
+        }
+        List<BigInteger> probes = ranges.probes(random, 2000);
+        ranges.assertMatches(bytes.build(), probes);
+        ranges.assertMatches(primitive.build(), probes);
+    }
+
+    private static BigInteger big(long value) {
+        return BigInteger.valueOf(value);
+    }
+
+    private static void checkPrefixes(RandomPrefixes prefixes, Random random) {
+        BitTrie<String> expected = prefixes.trie();
+        List<byte[]> probes = prefixes.probes(random, 5000);
+        for (boolean packed : new boolean[] {false, true}) {
+            StreamingFPATreeBuilder<String> builder =
+                    new StreamingFPATreeBuilder<>(
+                            prefixes.ipType, FPATree.<String>Builder().packed(packed));
+            for (int i : sortedOrder(prefixes)) {
+                builder.add(prefixes.keys.get(i), prefixes.lengths.get(i), prefixes.values.get(i));
+            }
+            FPATree<String> tree = builder.build();
+            RandomPrefixes.assertSameLookups(expected, tree, probes);
+        }
+    }
+
+    /** 按地址、前缀长度升序的稳定排序，相同前缀保持加入的先后 */
+    static List<Integer> sortedOrder(RandomPrefixes prefixes) {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < prefixes.keys.size(); i++) {
+            order.add(i);
+        }
+        order.sort(
+                Comparator.<Integer, byte[]>comparing(
+                                prefixes.keys::get, StreamingFPATreeBuilderTest::compareUnsigned)
+                        .thenComparing(prefixes.lengths::get));
+        return order;
+    }
+
+    static int compareUnsigned(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int cmp = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+}